@@ -0,0 +1,73 @@
+#This program reads a value from the console (device 0), stores it on
+#the disk (device 1), reads it back from the disk, and writes it to the
+#console.  It then writes two values to the disk in a single batch.
+#Started with 42 as console input it prints 42 and then 43.  When it
+#completes, the registers should have these values:
+#r0=43 r1=7 r2=42 r3=43 r4=0
+
+SET r0 0       #read from the console
+PUSH r0
+PUSH r0
+SET r1 6
+PUSH r1
+TRAP
+POP r2
+
+SET r0 1       #save it on the disk at address 5
+PUSH r0
+SET r0 5
+PUSH r0
+PUSH r2
+SET r1 7
+PUSH r1
+TRAP
+
+SET r0 1       #read it back from the disk
+PUSH r0
+SET r0 5
+PUSH r0
+SET r1 6
+PUSH r1
+TRAP
+POP r3
+
+SET r0 0       #print it
+PUSH r0
+PUSH r0
+PUSH r3
+SET r1 7
+PUSH r1
+TRAP
+
+SET r0 1       #write it and the next value to the disk at once
+PUSH r0
+SET r0 6
+PUSH r0
+PUSH r3
+SET r1 7
+PUSH r1
+SET r0 1
+PUSH r0
+SET r0 7
+PUSH r0
+SET r0 1
+ADD r3 r0 r3
+PUSH r3
+PUSH r1
+SET r0 2
+PUSH r0
+SET r0 5
+PUSH r0
+TRAP
+
+SET r0 0       #print the next value
+PUSH r0
+PUSH r0
+PUSH r3
+SET r1 7
+PUSH r1
+TRAP
+COPY r0 r3
+SET r4 0       #exit
+PUSH r4
+TRAP
@@ -0,0 +1,20 @@
+#This program spends nearly all of its time in one loop of register
+#instructions, the kind of code that the block engine compiles.  It runs
+#for 800008 instructions and stops.  When it completes, the registers
+#should have these values:    r0=0 r1=100000 r2=1 r3=100000 r4=7
+
+SET R0 0
+SET R1 0
+SET R2 1
+SET R3 100000
+SET R4 7
+
+:loop
+MUL R0 R4 R0   #scramble R0
+ADD R0 R1 R0
+SUB R0 R0 R2
+COPY R4 R4
+SET R4 -100000
+SET R4 7
+ADD R1 R2 R1   #count the iterations
+BLT R1 R3 loop
@@ -0,0 +1,359 @@
+package sos;
+
+import java.util.concurrent.*;
+
+/**
+ * This class runs a large batch of independent simulated machines in one
+ * JVM.  Each job describes a machine (its program, RAM size and latency)
+ * and gets a RAM, CPU and SOS of its own, so no state is shared between
+ * machines; the outcome of each one is returned in a Result.
+ *
+ * The machines share a small pool of host threads.  Rather than tying a
+ * thread up for the whole life of a machine, each machine runs a slice of
+ * instructions at a time and then gives its thread back, so thousands of
+ * machines make progress together on a handful of threads.  A machine with
+ * wall-clock latency never sleeps on a pool thread either: it runs with
+ * virtual latency and its next slice is simply scheduled for when the
+ * simulated time it has used up would have passed.
+ *
+ * @see Sim#runBatch
+ */
+public class BatchRunner
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the default number of instructions a machine runs before giving its
+     * thread to another machine
+     **/
+    public static final int DEFAULT_SLICE = 10000;
+
+    /**
+     * failure codes stored in Result.m_error
+     **/
+    public static final int ERR_NONE      = 0;
+    public static final int ERR_LOAD      = -1;  // the program did not load
+    public static final int ERR_MEMORY    = -2;  // the process did not fit
+    public static final int ERR_EXCEPTION = -3;  // the machine threw
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the host threads the machines run on
+     **/
+    private ScheduledExecutorService m_executor = null;
+
+    /**
+     * the number of instructions in each slice
+     **/
+    private int m_slice = DEFAULT_SLICE;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * BatchRunner ctor
+     *
+     * @param threads the number of host threads to run machines on
+     */
+    public BatchRunner(int threads)
+    {
+        m_executor = Executors.newScheduledThreadPool(Math.max(threads, 1));
+    }//ctor
+
+    /**
+     * setSlice
+     *
+     * @param slice the number of instructions a machine runs before giving
+     *              its thread to another machine
+     */
+    public void setSlice(int slice)
+    {
+        m_slice = Math.max(slice, 1);
+    }
+
+    /**
+     * run
+     *
+     * runs every job to completion
+     *
+     * @param jobs the machines to run
+     * @return the result of each job (in the same order as the jobs)
+     */
+    public Result[] run(Job[] jobs)
+    {
+        Result[] results = new Result[jobs.length];
+        CountDownLatch done = new CountDownLatch(jobs.length);
+        for(int i = 0; i < jobs.length; i++)
+        {
+            results[i] = new Result(jobs[i]);
+            m_executor.execute(new Machine(jobs[i], results[i], done));
+        }
+
+        //Wait for the last machine to finish
+        boolean finished = false;
+        while (!finished)
+        {
+            try
+            {
+                done.await();
+                finished = true;
+            }
+            catch(InterruptedException ie)
+            {/* keep waiting */ }
+        }
+        return results;
+    }//run
+
+    /**
+     * shutdown
+     *
+     * stops the host threads once the machines already started are done
+     */
+    public void shutdown()
+    {
+        m_executor.shutdown();
+    }//shutdown
+
+    //======================================================================
+    //Classes
+    //----------------------------------------------------------------------
+
+    /**
+     * The description of one machine in a batch
+     **/
+    public static class Job
+    {
+        /**
+         * the file holding the program the machine runs
+         **/
+        public String m_fileName;
+
+        /**
+         * the size of the machine's RAM and the latency of an access
+         **/
+        public int m_ramSize = 1000;
+        public int m_latency = 10;
+
+        /**
+         * RAM.LATENCY_VIRTUAL or RAM.LATENCY_WALLCLOCK
+         **/
+        public int m_latencyMode = RAM.LATENCY_VIRTUAL;
+
+        /**
+         * the amount of memory given to the process
+         **/
+        public int m_allocSize = 300;
+
+        /**
+         * the most instructions the machine may run
+         **/
+        public long m_maxInstructions = Long.MAX_VALUE;
+
+        /**
+         * Job ctor
+         *
+         * @param fileName the file holding the program the machine runs
+         */
+        public Job(String fileName)
+        {
+            m_fileName = fileName;
+        }
+    };//class Job
+
+    /**
+     * The outcome of running one machine
+     **/
+    public static class Result
+    {
+        /**
+         * the job that was run
+         **/
+        public Job m_job;
+
+        /**
+         * one of the ERR_* values
+         **/
+        public int m_error = ERR_NONE;
+
+        /**
+         * the CPU.STATUS_* value the machine stopped with
+         **/
+        public int m_status = CPU.STATUS_HALT;
+
+        /**
+         * the registers of the CPU when the machine stopped
+         **/
+        public int m_registers[] = new int[CPU.NUMREG];
+
+        /**
+         * the instructions run, the simulated RAM time and the host time
+         * from the first slice to the last
+         **/
+        public long m_instructions = 0;
+        public long m_simTime = 0;
+        public long m_hostNanos = 0;
+
+        /**
+         * Result ctor
+         *
+         * @param job the job that was run
+         */
+        public Result(Job job)
+        {
+            m_job = job;
+        }
+
+        /**
+         * formatResult
+         *
+         * @return the result as a line of text
+         */
+        public String formatResult()
+        {
+            if (m_error != ERR_NONE)
+            {
+                return m_job.m_fileName + ": error " + m_error;
+            }
+            String[] statuses = { "budget", "trap", "fault", "halt",
+                                  "timer" };
+            return m_job.m_fileName + ": " + statuses[m_status]
+                + " instructions=" + m_instructions
+                + " simulated=" + m_simTime + " ns "
+                + CPU.formatRegs(m_registers);
+        }//formatResult
+    };//class Result
+
+    /**
+     * One machine being run a slice at a time
+     **/
+    private class Machine implements Runnable
+    {
+        private Job m_job;
+        private Result m_result;
+        private CountDownLatch m_done;
+
+        /**
+         * the machine itself (null until its first slice)
+         **/
+        private RAM m_RAM = null;
+        private CPU m_CPU = null;
+
+        /**
+         * the host time the machine started
+         **/
+        private long m_start = 0;
+
+        public Machine(Job job, Result result, CountDownLatch done)
+        {
+            m_job = job;
+            m_result = result;
+            m_done = done;
+        }
+
+        /**
+         * run
+         *
+         * runs the next slice of the machine and then either schedules the
+         * slice after it or records the result
+         */
+        public void run()
+        {
+            try
+            {
+                if ((m_CPU == null) && !start())
+                {
+                    finish();
+                    return;
+                }
+
+                long budget = Math.min(m_slice, m_job.m_maxInstructions
+                                       - m_CPU.getInstructionCount());
+                int status = m_CPU.run(budget);
+                m_result.m_status = status;
+                if ((status != CPU.STATUS_BUDGET)
+                    || (m_CPU.getInstructionCount() >= m_job.m_maxInstructions))
+                {
+                    finish();
+                    return;
+                }
+
+                //Give the thread back until it is time for the next slice
+                if (m_job.m_latencyMode == RAM.LATENCY_WALLCLOCK)
+                {
+                    long due = m_start + m_RAM.getSimulatedTime();
+                    m_executor.schedule(this, due - System.nanoTime(),
+                                        TimeUnit.NANOSECONDS);
+                }
+                else
+                {
+                    m_executor.execute(this);
+                }
+            }
+            catch(Throwable e)
+            {
+                //Errors too (e.g. a StackOverflowError), or the latch in
+                //run() would never reach zero
+                System.out.println("ERROR: " + m_job.m_fileName + ": " + e);
+                m_result.m_error = ERR_EXCEPTION;
+                finish();
+            }
+        }//run
+
+        /**
+         * start
+         *
+         * builds the machine and loads its program
+         *
+         * @return true if the machine is ready to run
+         */
+        private boolean start()
+        {
+            m_start = System.nanoTime();
+            Program prog = new Program();
+            if (prog.load(m_job.m_fileName, false) != 0)
+            {
+                m_result.m_error = ERR_LOAD;
+                return false;
+            }
+
+            //Latency is always virtual here; wall-clock jobs are paced by
+            //scheduling their slices instead of sleeping
+            m_RAM = new RAM(m_job.m_ramSize, m_job.m_latency);
+            m_CPU = new CPU(m_RAM);
+            m_CPU.setVerbose(false);
+            SOS os = new SOS(m_CPU, m_RAM);
+            if (os.createProcess(prog, m_job.m_allocSize) != 0)
+            {
+                m_result.m_error = ERR_MEMORY;
+                return false;
+            }
+            return true;
+        }//start
+
+        /**
+         * finish
+         *
+         * records the final state of the machine and lets run() know it is
+         * done
+         */
+        private void finish()
+        {
+            if (m_CPU != null)
+            {
+                System.arraycopy(m_CPU.getRegisters(), 0,
+                                 m_result.m_registers, 0, CPU.NUMREG);
+                m_result.m_instructions = m_CPU.getInstructionCount();
+                m_result.m_simTime = m_RAM.getSimulatedTime();
+            }
+            m_result.m_hostNanos = System.nanoTime() - m_start;
+            m_done.countDown();
+        }//finish
+    };//class Machine
+
+};//class BatchRunner
@@ -0,0 +1,219 @@
+package sos;
+
+/**
+ * This class measures how many simulated instructions per second the CPU can
+ * run in each of its execution modes.  Each program (the ones in PROGRAMS
+ * unless other files are given) is loaded once and then run over and over
+ * by resetting the registers to their starting values between runs.
+ *
+ * The modes take turns, one round each, so that whatever the JIT has
+ * learned from one mode affects all of them alike, and the median round of
+ * each mode is reported.  crazycount.asm is short and writes into its own
+ * code, so it shows the cost of each mode on code that keeps changing;
+ * hotloop.asm is a long loop of register instructions.
+ *
+ * @see CPU#setHoisting
+ * @see CPU#setTimer
+ * @see CPU#setBlockEngine
+ * @see CPU#setFusion
+ * @see Sim
+ */
+public class Benchmark
+{
+    /**
+     * the execution modes that are compared
+     **/
+    public static final int MODE_INTERPRETER = 0;
+    public static final int MODE_HOISTED     = 1;
+    public static final int MODE_TIMER       = 2;  // hoisted with the timer on
+    public static final int MODE_BLOCKS      = 3;  // hot blocks as bytecode
+    public static final int MODE_FUSED       = 4;  // fused instruction groups
+    public static final String MODE_NAMES[] = { "interpreter", "hoisted",
+                                                "hoisted+timer", "blocks",
+                                                "fused" };
+
+    /**
+     * the programs that are measured when none are given
+     **/
+    public static final String PROGRAMS[] = { "crazycount.asm",
+                                              "hotloop.asm" };
+
+    /**
+     * the number of instructions between clock interrupts in MODE_TIMER
+     * (a short scheduler quantum)
+     **/
+    public static final long TIMER_PERIOD = 100;
+
+    /**
+     * the number of times each mode is run before it is timed (so the JIT
+     * has compiled it) and the number of times it is timed
+     **/
+    public static final int WARMUP_ROUNDS = 3;
+    public static final int TIMED_ROUNDS  = 7;
+
+    /**
+     * the minimum number of instructions run in each round
+     **/
+    public static final long ROUND_INSTRUCTIONS = 20000000L;
+
+    /**
+     * the constructor does nothing
+     *
+     */
+    public Benchmark()
+    {
+    }
+
+    /**
+     * setMode
+     *
+     * configures a CPU for one of the execution modes
+     *
+     * @param cpu  the CPU to configure
+     * @param mode one of the MODE_* values
+     */
+    private static void setMode(CPU cpu, int mode)
+    {
+        cpu.setVerbose(false);
+        cpu.setHoisting((mode == MODE_HOISTED) || (mode == MODE_TIMER));
+        cpu.setTimer((mode == MODE_TIMER) ? TIMER_PERIOD : 0);
+        cpu.setBlockEngine(mode == MODE_BLOCKS);
+        cpu.setFusion(mode == MODE_FUSED);
+    }//setMode
+
+    /**
+     * round
+     *
+     * runs the program repeatedly until at least ROUND_INSTRUCTIONS have
+     * been run
+     *
+     * @param prog the program to run
+     * @param mode one of the MODE_* values
+     * @return the number of instructions run per second
+     */
+    private static double round(Program prog, int mode)
+    {
+        RAM ram = new RAM(1000, 10);
+        CPU cpu = new CPU(ram);
+        SOS os = new SOS(cpu, ram);
+        setMode(cpu, mode);
+        os.createProcess(prog, 300);
+
+        int[] regs = cpu.getRegisters();
+        int[] start = new int[CPU.NUMREG];
+        System.arraycopy(regs, 0, start, 0, CPU.NUMREG);
+
+        long begin = System.nanoTime();
+        while (cpu.getInstructionCount() < ROUND_INSTRUCTIONS)
+        {
+            System.arraycopy(start, 0, regs, 0, CPU.NUMREG);
+            if (cpu.run() == CPU.STATUS_FAULT)
+            {
+                return 0.0;
+            }
+        }//while
+        long elapsed = System.nanoTime() - begin;
+
+        return cpu.getInstructionCount() * 1e9 / elapsed;
+    }//round
+
+    /**
+     * countFusions
+     *
+     * runs the program once with fusion turned on
+     *
+     * @param prog the program to run
+     * @return the number of instruction groups that were fused
+     */
+    private static long countFusions(Program prog)
+    {
+        RAM ram = new RAM(1000, 10);
+        CPU cpu = new CPU(ram);
+        SOS os = new SOS(cpu, ram);
+        setMode(cpu, MODE_FUSED);
+        os.createProcess(prog, 300);
+        cpu.run();
+        return cpu.getDecodeCache().getFusions();
+    }//countFusions
+
+    /**
+     * measure
+     *
+     * times every mode on one program and prints the results
+     *
+     * @param prog the program to run
+     */
+    private static void measure(Program prog)
+    {
+        for(int i = 0; i < WARMUP_ROUNDS; i++)
+        {
+            for(int mode = 0; mode < MODE_NAMES.length; mode++)
+            {
+                round(prog, mode);
+            }
+        }
+
+        double[][] rates = new double[MODE_NAMES.length][TIMED_ROUNDS];
+        for(int i = 0; i < TIMED_ROUNDS; i++)
+        {
+            for(int mode = 0; mode < MODE_NAMES.length; mode++)
+            {
+                rates[mode][i] = round(prog, mode);
+            }
+        }
+
+        double[] medians = new double[MODE_NAMES.length];
+        for(int mode = 0; mode < MODE_NAMES.length; mode++)
+        {
+            java.util.Arrays.sort(rates[mode]);
+            medians[mode] = rates[mode][TIMED_ROUNDS / 2];
+        }
+
+        double baseline = medians[MODE_INTERPRETER];
+        for(int mode = 0; mode < MODE_NAMES.length; mode++)
+        {
+            double median = medians[mode];
+            String extra = "";
+            if (mode == MODE_TIMER)
+            {
+                //The cost of the timer is measured against the same loop
+                //without it
+                extra = ", "
+                    + Math.round(100.0 * median / medians[MODE_HOISTED])
+                    + "% of hoisted";
+            }
+            if (mode == MODE_FUSED)
+            {
+                extra = ", " + countFusions(prog) + " fusions";
+            }
+            System.out.println("  " + MODE_NAMES[mode] + ": "
+                               + Math.round(median / 1e6)
+                               + "M instructions/sec ("
+                               + Math.round(100.0 * median / baseline)
+                               + "% of interpreter" + extra + ")");
+        }//for
+    }//measure
+
+    /**
+     * main
+     *
+     * runs the benchmark and prints the results
+     *
+     */
+    public static void main(String[] args)
+    {
+        String[] files = (args.length > 0) ? args : PROGRAMS;
+        for(int i = 0; i < files.length; i++)
+        {
+            Program prog = new Program();
+            if (prog.load(files[i], false) != 0)
+            {
+                //Error loading program so exit
+                return;
+            }
+            System.out.println(files[i] + ":");
+            measure(prog);
+        }
+    }//main
+
+};//class Benchmark
@@ -0,0 +1,519 @@
+package sos;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class turns a basic block of Pidgin code into JVM bytecode.  Each
+ * block becomes a class of its own that extends {@link CompiledBlock} and
+ * whose execute method copies the registers the block uses into local
+ * variables, runs the block on them, writes back the ones it changed and
+ * returns the next value of the program counter.  The class is defined by
+ * a class loader belonging to this writer, so when the writer is thrown
+ * away (see {@link BlockCompiler#flush}) its blocks can be unloaded.
+ *
+ * Classes are written in the Java 5 (49.0) format, which the JVM verifies
+ * without the stack map frames that later formats need, so the writer
+ * only has to lay out a constant pool and two methods.
+ *
+ * @see BlockCompiler
+ * @see CompiledBlock
+ */
+public class BlockClassWriter
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the class file format written
+     **/
+    private static final int MAGIC         = 0xCAFEBABE;
+    private static final int MAJOR_VERSION = 49;
+
+    /**
+     * the prefix of the name of each generated class
+     **/
+    public static final String CLASS_PREFIX = "sos.GeneratedBlock";
+
+    /**
+     * the JVM instructions used
+     **/
+    private static final int ICONST_0      = 0x03;
+    private static final int BIPUSH        = 0x10;
+    private static final int SIPUSH        = 0x11;
+    private static final int LDC_W         = 0x13;
+    private static final int ILOAD         = 0x15;
+    private static final int ALOAD_0       = 0x2a;
+    private static final int ALOAD_1       = 0x2b;
+    private static final int ILOAD_1       = 0x1b;
+    private static final int ILOAD_2       = 0x1c;
+    private static final int ILOAD_3       = 0x1d;
+    private static final int IALOAD        = 0x2e;
+    private static final int ISTORE        = 0x36;
+    private static final int IASTORE       = 0x4f;
+    private static final int IADD          = 0x60;
+    private static final int ISUB          = 0x64;
+    private static final int IMUL          = 0x68;
+    private static final int IF_ICMPEQ     = 0x9f;
+    private static final int IF_ICMPGE     = 0xa2;
+    private static final int IRETURN       = 0xac;
+    private static final int RETURN        = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    /**
+     * the constant pool entries every class starts with
+     **/
+    private static final int CP_THIS_NAME    = 1;
+    private static final int CP_THIS         = 2;
+    private static final int CP_SUPER_NAME   = 3;
+    private static final int CP_SUPER        = 4;
+    private static final int CP_INIT         = 5;
+    private static final int CP_INIT_DESC    = 6;
+    private static final int CP_INIT_NT      = 7;
+    private static final int CP_SUPER_INIT   = 8;
+    private static final int CP_EXECUTE      = 9;
+    private static final int CP_EXECUTE_DESC = 10;
+    private static final int CP_CODE         = 11;
+    private static final int CP_FIXED        = 11;
+
+    /**
+     * constant pool tags
+     **/
+    private static final int TAG_UTF8         = 1;
+    private static final int TAG_INTEGER      = 3;
+    private static final int TAG_CLASS        = 7;
+    private static final int TAG_METHODREF    = 10;
+    private static final int TAG_NAME_AND_TYPE = 12;
+
+    /**
+     * the first local variable used to hold a register in execute (0 is
+     * this and 1 is the register file)
+     **/
+    private static final int FIRST_REG_LOCAL = 2;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the class loader that defines the blocks
+     **/
+    private BlockLoader m_loader =
+        new BlockLoader(CompiledBlock.class.getClassLoader());
+
+    /**
+     * the number of classes written (used to give each a unique name)
+     **/
+    private int m_classes = 0;
+
+    /**
+     * the bytecode of the method being written
+     **/
+    private byte m_code[] = new byte[256];
+    private int m_codeLen = 0;
+
+    /**
+     * the integer constants used by the class being written and their
+     * constant pool indexes
+     **/
+    private ArrayList<Integer> m_ints = new ArrayList<Integer>();
+    private HashMap<Integer, Integer> m_intIndexes =
+        new HashMap<Integer, Integer>();
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * define
+     *
+     * writes a class for a basic block, loads it and creates the block
+     *
+     * @param start   the address of the first instruction in the block
+     * @param ops     the opcodes of the body
+     * @param args1   the first arguments of the body
+     * @param args2   the second arguments of the body
+     * @param args3   the third arguments of the body
+     * @param len     the number of instructions in the body
+     * @param term    the branch ending the block or -1 if there is none
+     * @param term1   the first argument of the ending branch
+     * @param term2   the second argument of the ending branch
+     * @param takenPC the program counter (relative to BASE) after a taken
+     *                branch
+     * @param fallPC  the program counter when no branch is taken
+     * @return the block or null if the JVM would not load it
+     */
+    public CompiledBlock define(int start, int[] ops, int[] args1,
+                                int[] args2, int[] args3, int len, int term,
+                                int term1, int term2, int takenPC, int fallPC)
+    {
+        String name = CLASS_PREFIX + m_classes++;
+        byte[] classFile = write(name, ops, args1, args2, args3, len,
+                                 term, term1, term2, takenPC, fallPC);
+        int length = len + ((term >= 0) ? 1 : 0);
+        try
+        {
+            Class<?> c = m_loader.define(name, classFile);
+            return (CompiledBlock)c.getDeclaredConstructor(
+                int.class, int.class, int.class).newInstance(start, length,
+                                                             fallPC);
+        }
+        catch(ReflectiveOperationException e)
+        {
+            System.out.println("ERROR: could not create block " + name
+                               + ": " + e);
+        }
+        catch(LinkageError e)
+        {
+            System.out.println("ERROR: could not load block " + name
+                               + ": " + e);
+        }
+        return null;
+    }//define
+
+    /**
+     * write
+     *
+     * @return the class file of a block (see define for the parameters)
+     */
+    public byte[] write(String name, int[] ops, int[] args1, int[] args2,
+                        int[] args3, int len, int term, int term1, int term2,
+                        int takenPC, int fallPC)
+    {
+        m_ints.clear();
+        m_intIndexes.clear();
+
+        //The constructor just passes its arguments on
+        m_codeLen = 0;
+        emit(ALOAD_0);
+        emit(ILOAD_1);
+        emit(ILOAD_2);
+        emit(ILOAD_3);
+        emit(INVOKESPECIAL);
+        emit2(CP_SUPER_INIT);
+        emit(RETURN);
+        byte[] init = Arrays.copyOf(m_code, m_codeLen);
+
+        m_codeLen = 0;
+        writeExecute(ops, args1, args2, args3, len, term, term1, term2,
+                     takenPC, fallPC);
+        byte[] execute = Arrays.copyOf(m_code, m_codeLen);
+
+        //Lay out the class file
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+
+            out.writeShort(CP_FIXED + m_ints.size() + 1);
+            writeUtf8(out, name.replace('.', '/'));                 // 1
+            writeRef(out, TAG_CLASS, CP_THIS_NAME);                 // 2
+            writeUtf8(out, CompiledBlock.class.getName().replace('.', '/'));
+            writeRef(out, TAG_CLASS, CP_SUPER_NAME);                // 4
+            writeUtf8(out, "<init>");                               // 5
+            writeUtf8(out, "(III)V");                               // 6
+            writeRef2(out, TAG_NAME_AND_TYPE, CP_INIT, CP_INIT_DESC);
+            writeRef2(out, TAG_METHODREF, CP_SUPER, CP_INIT_NT);    // 8
+            writeUtf8(out, "execute");                              // 9
+            writeUtf8(out, "([I)I");                                // 10
+            writeUtf8(out, "Code");                                 // 11
+            for(Integer value : m_ints)
+            {
+                out.writeByte(TAG_INTEGER);
+                out.writeInt(value);
+            }
+
+            out.writeShort(0x0031);         // public final super
+            out.writeShort(CP_THIS);
+            out.writeShort(CP_SUPER);
+            out.writeShort(0);              // interfaces
+            out.writeShort(0);              // fields
+            out.writeShort(2);              // methods
+            writeMethod(out, CP_INIT, CP_INIT_DESC, 4, 4, init);
+            writeMethod(out, CP_EXECUTE, CP_EXECUTE_DESC, 4,
+                        FIRST_REG_LOCAL + CPU.NUMREG, execute);
+            out.writeShort(0);              // attributes
+            out.flush();
+        }
+        catch(IOException e)
+        {
+            //A ByteArrayOutputStream never throws
+        }
+        return bytes.toByteArray();
+    }//write
+
+    /**
+     * writeExecute
+     *
+     * emits the body of the execute method (see define for the parameters)
+     */
+    private void writeExecute(int[] ops, int[] args1, int[] args2,
+                              int[] args3, int len, int term, int term1,
+                              int term2, int takenPC, int fallPC)
+    {
+        //Work out which registers the block reads and writes
+        boolean[] used = new boolean[CPU.NUMREG];
+        boolean[] written = new boolean[CPU.NUMREG];
+        for(int i = 0; i < len; i++)
+        {
+            used[args1[i]] = true;
+            written[args1[i]] = true;
+            if (ops[i] != CPU.SET)
+            {
+                used[args2[i]] = true;
+            }
+            if ((ops[i] != CPU.SET) && (ops[i] != CPU.COPY))
+            {
+                used[args3[i]] = true;
+            }
+        }
+        if ((term == CPU.BNE) || (term == CPU.BLT))
+        {
+            used[term1] = true;
+            used[term2] = true;
+        }
+
+        //Copy the registers into locals so the JIT can keep them in
+        //machine registers
+        for(int reg = 0; reg < CPU.NUMREG; reg++)
+        {
+            if (used[reg])
+            {
+                emit(ALOAD_1);
+                emitInt(reg);
+                emit(IALOAD);
+                emit(ISTORE);
+                emit(FIRST_REG_LOCAL + reg);
+            }
+        }
+
+        //The body
+        for(int i = 0; i < len; i++)
+        {
+            switch(ops[i])
+            {
+                case CPU.SET:
+                    emitInt(args2[i]);
+                    break;
+                case CPU.COPY:
+                    emitLoad(args2[i]);
+                    break;
+                case CPU.ADD:
+                case CPU.SUB:
+                case CPU.MUL:
+                    emitLoad(args2[i]);
+                    emitLoad(args3[i]);
+                    emit((ops[i] == CPU.ADD) ? IADD
+                         : (ops[i] == CPU.SUB) ? ISUB : IMUL);
+                    break;
+            }//switch
+            emit(ISTORE);
+            emit(FIRST_REG_LOCAL + args1[i]);
+        }//for
+
+        //Write back what changed
+        for(int reg = 0; reg < CPU.NUMREG; reg++)
+        {
+            if (written[reg])
+            {
+                emit(ALOAD_1);
+                emitInt(reg);
+                emitLoad(reg);
+                emit(IASTORE);
+            }
+        }
+
+        //Branch targets are relative to the base register
+        if ((term == CPU.BNE) || (term == CPU.BLT))
+        {
+            emitLoad(term1);
+            emitLoad(term2);
+            int branch = m_codeLen;
+            emit((term == CPU.BNE) ? IF_ICMPEQ : IF_ICMPGE);
+            emit2(0);
+            emitTaken(takenPC);
+            int offset = m_codeLen - branch;
+            m_code[branch + 1] = (byte)(offset >> 8);
+            m_code[branch + 2] = (byte)offset;
+        }
+        else if (term == CPU.BRANCH)
+        {
+            emitTaken(takenPC);
+            return;
+        }
+        emitInt(fallPC);
+        emit(IRETURN);
+    }//writeExecute
+
+    /**
+     * emitTaken
+     *
+     * emits code that returns BASE plus the given offset
+     */
+    private void emitTaken(int takenPC)
+    {
+        emit(ALOAD_1);
+        emitInt(CPU.BASE);
+        emit(IALOAD);
+        emitInt(takenPC);
+        emit(IADD);
+        emit(IRETURN);
+    }//emitTaken
+
+    /**
+     * emitLoad
+     *
+     * emits code that pushes the local holding a register
+     */
+    private void emitLoad(int reg)
+    {
+        emit(ILOAD);
+        emit(FIRST_REG_LOCAL + reg);
+    }//emitLoad
+
+    /**
+     * emitInt
+     *
+     * emits the shortest instruction that pushes a constant
+     */
+    private void emitInt(int value)
+    {
+        if ((value >= -1) && (value <= 5))
+        {
+            emit(ICONST_0 + value);
+        }
+        else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE))
+        {
+            emit(BIPUSH);
+            emit(value);
+        }
+        else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE))
+        {
+            emit(SIPUSH);
+            emit2(value);
+        }
+        else
+        {
+            Integer index = m_intIndexes.get(value);
+            if (index == null)
+            {
+                m_ints.add(value);
+                index = CP_FIXED + m_ints.size();
+                m_intIndexes.put(value, index);
+            }
+            emit(LDC_W);
+            emit2(index);
+        }
+    }//emitInt
+
+    /**
+     * emit
+     *
+     * appends a byte to the code of the method being written
+     */
+    private void emit(int b)
+    {
+        if (m_codeLen == m_code.length)
+        {
+            m_code = Arrays.copyOf(m_code, 2 * m_codeLen);
+        }
+        m_code[m_codeLen++] = (byte)b;
+    }//emit
+
+    /**
+     * emit2
+     *
+     * appends a big-endian 16 bit value to the code
+     */
+    private void emit2(int value)
+    {
+        emit(value >> 8);
+        emit(value);
+    }//emit2
+
+    /**
+     * writeUtf8
+     *
+     * writes a string constant pool entry
+     */
+    private static void writeUtf8(DataOutputStream out, String s)
+        throws IOException
+    {
+        out.writeByte(TAG_UTF8);
+        out.writeUTF(s);
+    }//writeUtf8
+
+    /**
+     * writeRef
+     *
+     * writes a constant pool entry that refers to one other entry
+     */
+    private static void writeRef(DataOutputStream out, int tag,
+                                 int index) throws IOException
+    {
+        out.writeByte(tag);
+        out.writeShort(index);
+    }//writeRef
+
+    /**
+     * writeRef2
+     *
+     * writes a constant pool entry that refers to two other entries
+     */
+    private static void writeRef2(DataOutputStream out, int tag,
+                                  int index1, int index2)
+        throws IOException
+    {
+        out.writeByte(tag);
+        out.writeShort(index1);
+        out.writeShort(index2);
+    }//writeRef2
+
+    /**
+     * writeMethod
+     *
+     * writes a public method with a Code attribute
+     */
+    private static void writeMethod(DataOutputStream out, int name,
+                                    int desc, int maxStack, int maxLocals,
+                                    byte[] code) throws IOException
+    {
+        out.writeShort(0x0001);         // public
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);              // attributes
+        out.writeShort(CP_CODE);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);              // exception table
+        out.writeShort(0);              // attributes
+    }//writeMethod
+
+    //======================================================================
+    //Classes
+    //----------------------------------------------------------------------
+
+    /**
+     * The class loader that defines the classes of one writer
+     **/
+    private static class BlockLoader extends ClassLoader
+    {
+        public BlockLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        public Class<?> define(String name, byte[] classFile)
+        {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    };//class BlockLoader
+
+};//class BlockClassWriter
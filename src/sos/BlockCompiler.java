@@ -0,0 +1,386 @@
+package sos;
+
+/**
+ * This class is the optional block execution engine for the CPU.  It counts
+ * how often each branch target is reached and, once a target is hot,
+ * translates the basic block starting there into JVM bytecode (see
+ * {@link BlockClassWriter}), which the JIT then compiles like any other
+ * Java method.  Compiled blocks are linked to their successors so that a
+ * hot loop runs from block to block without going back through the
+ * interpreter.
+ *
+ * Only register instructions (SET, ADD, SUB, MUL, COPY) and the branches
+ * that end a block are compiled.  Everything else (TRAP, memory access,
+ * DIV and any instruction that could fault) ends the block and is left to
+ * the interpreter in {@link CPU#run}, as is any code that is not hot yet.
+ *
+ * @see CompiledBlock
+ * @see CPU
+ */
+public class BlockCompiler
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the number of times a branch target has to be reached before the
+     * block starting there is compiled
+     **/
+    public static final int HOT_THRESHOLD = 16;
+
+    /**
+     * the maximum number of instructions in one compiled block
+     **/
+    public static final int MAX_BLOCK_LEN = 64;
+
+    /**
+     * the default number of entries in the block cache
+     **/
+    public static final int DEFAULT_SIZE = 256;
+
+    /**
+     * count value used to mark a block start that can not be compiled
+     **/
+    private static final int UNCOMPILABLE = Integer.MIN_VALUE;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the decoded instructions that blocks are translated from
+     **/
+    private DecodeCache m_decodeCache = null;
+
+    /**
+     * the generation of the decode cache when the blocks were compiled.  If
+     * code they were built from has been overwritten since then all blocks
+     * are discarded.
+     **/
+    private int m_generation;
+
+    /**
+     * used to turn an address into an index into the entry arrays
+     **/
+    private int m_mask;
+
+    /**
+     * the block start address, hit count and compiled block of each entry
+     **/
+    private int m_tags[];
+    private int m_counts[];
+    private CompiledBlock m_blocks[];
+
+    /**
+     * writes and loads the classes of the blocks.  A new writer is made
+     * whenever the blocks are flushed so the old classes can be unloaded.
+     **/
+    private BlockClassWriter m_writer = null;
+
+    /**
+     * statistics describing the work done by the engine
+     **/
+    private long m_compiled = 0;
+    private long m_blocksRun = 0;
+    private long m_instrsRun = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * BlockCompiler ctor
+     *
+     * @param cache the decode cache to translate instructions from
+     * @param size  the number of entries in the block cache (rounded up to a
+     *              power of two)
+     */
+    public BlockCompiler(DecodeCache cache, int size)
+    {
+        int entries = 1;
+        while (entries < size)
+        {
+            entries <<= 1;
+        }
+
+        m_decodeCache = cache;
+        m_mask = entries - 1;
+        m_tags = new int[entries];
+        m_counts = new int[entries];
+        m_blocks = new CompiledBlock[entries];
+        flush();
+    }//ctor
+
+    /**
+     * flush
+     *
+     * discards every compiled block and all profiling counts
+     */
+    public void flush()
+    {
+        for(int i = 0; i <= m_mask; i++)
+        {
+            m_tags[i] = -1;
+            m_counts[i] = 0;
+            m_blocks[i] = null;
+        }
+        m_writer = new BlockClassWriter();
+        m_generation = m_decodeCache.getGeneration();
+    }//flush
+
+    /**
+     * lookup
+     *
+     * is called each time the CPU reaches a branch target.  It counts the
+     * visit and compiles the block starting there once it becomes hot.
+     *
+     * @param pc the address of the branch target
+     * @return the compiled block starting at pc or null if there is none
+     */
+    public CompiledBlock lookup(int pc)
+    {
+        //Throw everything away if any code has been overwritten
+        if (m_generation != m_decodeCache.getGeneration())
+        {
+            flush();
+        }
+
+        int slot = (pc >>> 2) & m_mask;
+        if (m_tags[slot] != pc)
+        {
+            m_tags[slot] = pc;
+            m_counts[slot] = 0;
+            m_blocks[slot] = null;
+        }
+        if (m_blocks[slot] != null)
+        {
+            return m_blocks[slot];
+        }
+        if (m_counts[slot] == UNCOMPILABLE)
+        {
+            return null;
+        }
+
+        m_counts[slot]++;
+        if (m_counts[slot] < HOT_THRESHOLD)
+        {
+            return null;
+        }
+
+        m_blocks[slot] = compile(pc);
+        if (m_blocks[slot] == null)
+        {
+            m_counts[slot] = UNCOMPILABLE;
+        }
+        return m_blocks[slot];
+    }//lookup
+
+    /**
+     * run
+     *
+     * runs a compiled block and then any compiled blocks that follow it.  The
+     * program counter register is left pointing at the first instruction
+     * that must be run by the interpreter.  A block is only started if all
+     * of it fits in the remaining budget.
+     *
+     * @param block  the block to start with
+     * @param regs   the register file of the CPU
+     * @param budget the most instructions that may be run
+     * @return the number of instructions that were run
+     */
+    public long run(CompiledBlock block, int[] regs, long budget)
+    {
+        long count = 0;
+        int pc = regs[CPU.PC];
+        while ((block != null) && (count + block.getLength() <= budget))
+        {
+            pc = block.execute(regs);
+            count += block.getLength();
+            m_blocksRun++;
+
+            //Follow (and remember) the link to the next block
+            if (pc == block.getFallPC())
+            {
+                if (block.m_fall == null) block.m_fall = lookup(pc);
+                block = block.m_fall;
+            }
+            else
+            {
+                if ((block.m_taken == null) || (block.m_taken.getStart() != pc))
+                {
+                    block.m_taken = lookup(pc);
+                }
+                block = block.m_taken;
+            }
+        }//while
+
+        regs[CPU.PC] = pc;
+        m_instrsRun += count;
+        return count;
+    }//run
+
+    /**
+     * compile
+     *
+     * translates the basic block starting at the given address
+     *
+     * @param pc the address of the first instruction in the block
+     * @return the compiled block or null if the first instruction can not be
+     *         compiled (or the JVM would not load the block)
+     */
+    private CompiledBlock compile(int pc)
+    {
+        int[] ops = new int[MAX_BLOCK_LEN];
+        int[] args1 = new int[MAX_BLOCK_LEN];
+        int[] args2 = new int[MAX_BLOCK_LEN];
+        int[] args3 = new int[MAX_BLOCK_LEN];
+        int len = 0;
+        int term = -1;
+        int term1 = 0;
+        int term2 = 0;
+        int takenPC = 0;
+        int addr = pc;
+
+        while (len < MAX_BLOCK_LEN)
+        {
+            int slot = m_decodeCache.lookup(addr);
+            int op = m_decodeCache.getOpcode(slot);
+            int a1 = m_decodeCache.getArg1(slot);
+            int a2 = m_decodeCache.getArg2(slot);
+            int a3 = m_decodeCache.getArg3(slot);
+
+            if (isBranch(op, a1, a2))
+            {
+                //A branch sets the PC and the CPU then steps past the target
+                m_decodeCache.pin(slot);
+                term = op;
+                term1 = a1;
+                term2 = a2;
+                takenPC = ((op == CPU.BRANCH) ? a1 : a3) + CPU.INSTRSIZE;
+                addr += CPU.INSTRSIZE;
+                break;
+            }
+            if (!isCompilable(op, a1, a2, a3))
+            {
+                break;
+            }
+
+            //The block must be thrown away if this instruction is ever
+            //overwritten, even after the decode cache has dropped it
+            m_decodeCache.pin(slot);
+
+            ops[len] = op;
+            args1[len] = a1;
+            args2[len] = a2;
+            args3[len] = a3;
+            len++;
+            addr += CPU.INSTRSIZE;
+        }//while
+
+        if ((len == 0) && (term < 0))
+        {
+            return null;
+        }
+
+        CompiledBlock block = m_writer.define(pc, ops, args1, args2, args3,
+                                              len, term, term1, term2,
+                                              takenPC, addr);
+        if (block != null)
+        {
+            m_compiled++;
+        }
+        return block;
+    }//compile
+
+    /**
+     * isBranch
+     *
+     * @return true if the given instruction is a branch that can end a
+     *         compiled block
+     */
+    private boolean isBranch(int op, int a1, int a2)
+    {
+        switch(op)
+        {
+            case CPU.BRANCH:
+                return true;
+            case CPU.BNE:
+            case CPU.BLT:
+                return isDataReg(a1) && isDataReg(a2);
+            default:
+                return false;
+        }//switch
+    }//isBranch
+
+    /**
+     * isCompilable
+     *
+     * @return true if the given instruction only works on registers and so
+     *         can be part of a compiled block
+     */
+    private boolean isCompilable(int op, int a1, int a2, int a3)
+    {
+        switch(op)
+        {
+            case CPU.SET:
+                return isDataReg(a1);
+            case CPU.COPY:
+                return isDataReg(a1) && isDataReg(a2);
+            case CPU.ADD:
+            case CPU.SUB:
+            case CPU.MUL:
+                return isDataReg(a1) && isDataReg(a2) && isDataReg(a3);
+            default:
+                return false;
+        }//switch
+    }//isCompilable
+
+    /**
+     * isDataReg
+     *
+     * The program counter is not updated inside a compiled block and branch
+     * targets are linked assuming the base register does not change, so any
+     * instruction that uses the PC, BASE or LIM registers has to be left to
+     * the interpreter.
+     *
+     * @return true if the given register index is valid and not the PC,
+     *         BASE or LIM
+     */
+    private boolean isDataReg(int reg)
+    {
+        return (reg >= 0) && (reg < CPU.NUMREG) && (reg != CPU.PC)
+            && (reg != CPU.BASE) && (reg != CPU.LIM);
+    }//isDataReg
+
+    /**
+     * getCompiledCount
+     *
+     * @return the number of blocks that have been compiled
+     */
+    public long getCompiledCount()
+    {
+        return m_compiled;
+    }
+
+    /**
+     * getBlocksRun
+     *
+     * @return the number of compiled blocks that have been run
+     */
+    public long getBlocksRun()
+    {
+        return m_blocksRun;
+    }
+
+    /**
+     * getInstructionsRun
+     *
+     * @return the number of instructions run inside compiled blocks
+     */
+    public long getInstructionsRun()
+    {
+        return m_instrsRun;
+    }
+
+};//class BlockCompiler
@@ -0,0 +1,519 @@
+package sos;
+
+import java.util.Arrays;
+
+/**
+ * This class hands out blocks of RAM to processes using the buddy system.
+ * Every block is a power of two words long and starts at a multiple of its
+ * own size, so the "buddy" that a block was split from is found by flipping
+ * a single bit of its address.  Freeing a block merges it with its buddy
+ * (and that block with its buddy and so on) whenever the buddy is also
+ * free, so memory given back by processes that exit is coalesced into
+ * large blocks again.
+ *
+ * There is one free list per block size.  The lists are doubly linked
+ * through a table of blocks indexed by block number so that a buddy can be
+ * taken out of the middle of its list in constant time.  Allocating and
+ * freeing therefore take O(log n) steps.  Like the chunks of a
+ * {@link SparseMemory}, the table is a directory of pages of ints that are
+ * only allocated the first time a block in them is used, so finding a
+ * block is two array indexes without any hashing, and a huge, mostly
+ * empty (sparse) RAM costs next to nothing to manage.
+ *
+ * @see SOS#createProcess
+ */
+public class BuddyAllocator
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the smallest block handed out is 2^MIN_ORDER words
+     **/
+    public static final int MIN_ORDER = 4;
+
+    /**
+     * value used to end a free list and to mark a block number that does
+     * not start a free block
+     **/
+    private static final int NONE = -1;
+
+    /**
+     * each page of the block table describes 2^PAGE_BITS blocks
+     **/
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    //These constants define the ints describing each block in a page
+    private static final int NEXT        = 0;   // next block in free list
+    private static final int PREV        = 1;   // previous block in free list
+    private static final int FREE_ORDER  = 2;   // order while free (or NONE)
+    private static final int ALLOC_ORDER = 3;   // order while allocated
+    private static final int REQUESTED   = 4;   // words asked for
+    private static final int FIELDS      = 5;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the number of words being managed
+     **/
+    private int m_size;
+
+    /**
+     * the largest order of block that fits in the managed memory
+     **/
+    private int m_maxOrder;
+
+    /**
+     * the first block of each free list (indexed by order)
+     **/
+    private int m_heads[];
+
+    /**
+     * the pages of the block table (null until a block in them is used).
+     * Block numbers count units of 2^MIN_ORDER words.
+     **/
+    private int m_pages[][];
+
+    /**
+     * statistics describing the allocator
+     **/
+    private int m_freeWords = 0;
+    private long m_requestedWords = 0;
+    private long m_allocatedWords = 0;
+    private long m_allocs = 0;
+    private long m_frees = 0;
+    private long m_failures = 0;
+    private long m_opNanos = 0;
+    private long m_maxOpNanos = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * BuddyAllocator ctor
+     *
+     * @param size the number of words to manage (only whole blocks of the
+     *             smallest size are used)
+     */
+    public BuddyAllocator(int size)
+    {
+        int blocks = size >>> MIN_ORDER;
+        m_size = blocks << MIN_ORDER;
+        m_maxOrder = MIN_ORDER;
+        while ((m_maxOrder < 30) && ((1 << (m_maxOrder + 1)) <= m_size))
+        {
+            m_maxOrder++;
+        }
+
+        m_pages = new int[((m_size >>> MIN_ORDER) + PAGE_MASK) >>> PAGE_BITS][];
+        m_heads = new int[m_maxOrder + 1];
+        for(int i = 0; i <= m_maxOrder; i++)
+        {
+            m_heads[i] = NONE;
+        }
+
+        //Cover the memory with the largest aligned blocks that fit
+        int addr = 0;
+        for(int order = m_maxOrder; order >= MIN_ORDER; order--)
+        {
+            while ((1 << order) <= m_size - addr)
+            {
+                insert(addr, order);
+                addr += 1 << order;
+            }
+        }
+    }//ctor
+
+    /**
+     * orderOf
+     *
+     * @param words a number of words
+     * @return the order of the smallest block that holds that many words
+     */
+    public static int orderOf(int words)
+    {
+        int order = MIN_ORDER;
+        while ((1 << order) < words)
+        {
+            order++;
+        }
+        return order;
+    }//orderOf
+
+    /**
+     * blockSize
+     *
+     * @param words a number of words
+     * @return the size of the block that would be handed out for them
+     */
+    public static int blockSize(int words)
+    {
+        return 1 << orderOf(words);
+    }
+
+    /**
+     * allocate
+     *
+     * finds a free block big enough for the given number of words
+     *
+     * @param words the number of words needed
+     * @return the address of the block or -1 if there is no room
+     */
+    public int allocate(int words)
+    {
+        long start = System.nanoTime();
+        int order = orderOf(Math.max(words, 1));
+
+        //Find the smallest free block that is big enough
+        int found = order;
+        while ((found <= m_maxOrder) && (m_heads[found] == NONE))
+        {
+            found++;
+        }
+        if (found > m_maxOrder)
+        {
+            m_failures++;
+            timeOp(start);
+            return -1;
+        }
+
+        //Split it until it is the right size, freeing the upper halves
+        int addr = m_heads[found] << MIN_ORDER;
+        remove(addr, found);
+        while (found > order)
+        {
+            found--;
+            insert(addr + (1 << found), found);
+        }
+
+        int block = addr >>> MIN_ORDER;
+        set(block, ALLOC_ORDER, order);
+        set(block, REQUESTED, words);
+        m_requestedWords += words;
+        m_allocatedWords += 1 << order;
+        m_allocs++;
+        timeOp(start);
+        return addr;
+    }//allocate
+
+    /**
+     * allocateLowest
+     *
+     * finds the free block with the lowest address that is big enough for
+     * the given number of words.  This is slower than allocate (it looks at
+     * every free block) and is meant for compaction, which moves blocks
+     * toward the bottom of memory.
+     *
+     * @param words the number of words needed
+     * @return the address of the block or -1 if there is no room
+     */
+    public int allocateLowest(int words)
+    {
+        long start = System.nanoTime();
+        int order = orderOf(Math.max(words, 1));
+
+        //Find the lowest free block that is big enough
+        int best = NONE;
+        int bestOrder = 0;
+        for(int o = order; o <= m_maxOrder; o++)
+        {
+            for(int b = m_heads[o]; b != NONE; b = get(b, NEXT))
+            {
+                if ((best == NONE) || (b < best))
+                {
+                    best = b;
+                    bestOrder = o;
+                }
+            }
+        }
+        if (best == NONE)
+        {
+            m_failures++;
+            timeOp(start);
+            return -1;
+        }
+
+        //Split it keeping the lower half each time
+        int addr = best << MIN_ORDER;
+        remove(addr, bestOrder);
+        while (bestOrder > order)
+        {
+            bestOrder--;
+            insert(addr + (1 << bestOrder), bestOrder);
+        }
+
+        set(best, ALLOC_ORDER, order);
+        set(best, REQUESTED, words);
+        m_requestedWords += words;
+        m_allocatedWords += 1 << order;
+        m_allocs++;
+        timeOp(start);
+        return addr;
+    }//allocateLowest
+
+    /**
+     * getBlockSize
+     *
+     * @param addr the address of an allocated block
+     * @return the size of the block or 0 if addr is not an allocated block
+     */
+    public int getBlockSize(int addr)
+    {
+        return isAllocated(addr)
+            ? 1 << get(addr >>> MIN_ORDER, ALLOC_ORDER) : 0;
+    }//getBlockSize
+
+    /**
+     * getRequested
+     *
+     * @param addr the address of an allocated block
+     * @return the number of words that were asked for when it was allocated
+     */
+    public int getRequested(int addr)
+    {
+        return isAllocated(addr) ? get(addr >>> MIN_ORDER, REQUESTED) : 0;
+    }
+
+    /**
+     * free
+     *
+     * gives a block back, merging it with its buddies as far as possible
+     *
+     * @param addr the address returned by allocate
+     * @return true if successful, false if addr is not an allocated block
+     */
+    public boolean free(int addr)
+    {
+        long start = System.nanoTime();
+        if (!isAllocated(addr))
+        {
+            timeOp(start);
+            return false;
+        }
+
+        int block = addr >>> MIN_ORDER;
+        int order = get(block, ALLOC_ORDER);
+        set(block, ALLOC_ORDER, NONE);
+        m_requestedWords -= get(block, REQUESTED);
+        m_allocatedWords -= 1 << order;
+        m_frees++;
+
+        //Merge with the buddy for as long as it is free and the same size
+        while (order < m_maxOrder)
+        {
+            int buddy = addr ^ (1 << order);
+            if ((buddy > m_size - (1 << order))
+                || (get(buddy >>> MIN_ORDER, FREE_ORDER) != order))
+            {
+                break;
+            }
+            remove(buddy, order);
+            addr = Math.min(addr, buddy);
+            order++;
+        }
+        insert(addr, order);
+        timeOp(start);
+        return true;
+    }//free
+
+    /**
+     * insert
+     *
+     * puts a block at the front of the free list for its order
+     */
+    private void insert(int addr, int order)
+    {
+        int block = addr >>> MIN_ORDER;
+        set(block, FREE_ORDER, order);
+        set(block, PREV, NONE);
+        set(block, NEXT, m_heads[order]);
+        if (m_heads[order] != NONE)
+        {
+            set(m_heads[order], PREV, block);
+        }
+        m_heads[order] = block;
+        m_freeWords += 1 << order;
+    }//insert
+
+    /**
+     * remove
+     *
+     * takes a block out of the free list for its order
+     */
+    private void remove(int addr, int order)
+    {
+        int block = addr >>> MIN_ORDER;
+        int next = get(block, NEXT);
+        int prev = get(block, PREV);
+        if (prev != NONE)
+        {
+            set(prev, NEXT, next);
+        }
+        else
+        {
+            m_heads[order] = next;
+        }
+        if (next != NONE)
+        {
+            set(next, PREV, prev);
+        }
+        set(block, FREE_ORDER, NONE);
+        m_freeWords -= 1 << order;
+    }//remove
+
+    /**
+     * get
+     *
+     * @param block a block number
+     * @param field one of the fields describing a block (e.g. NEXT)
+     * @return the value of the field (NONE if the block has never been used)
+     */
+    private int get(int block, int field)
+    {
+        int[] page = m_pages[block >>> PAGE_BITS];
+        if (page == null)
+        {
+            return NONE;
+        }
+        return page[(block & PAGE_MASK) * FIELDS + field];
+    }//get
+
+    /**
+     * set
+     *
+     * allocates the page holding the block if none of its blocks has been
+     * used before
+     *
+     * @param block a block number
+     * @param field one of the fields describing a block (e.g. NEXT)
+     * @param val   the new value of the field
+     */
+    private void set(int block, int field, int val)
+    {
+        int[] page = m_pages[block >>> PAGE_BITS];
+        if (page == null)
+        {
+            page = new int[FIELDS << PAGE_BITS];
+            Arrays.fill(page, NONE);
+            m_pages[block >>> PAGE_BITS] = page;
+        }
+        page[(block & PAGE_MASK) * FIELDS + field] = val;
+    }//set
+
+    /**
+     * isAllocated
+     *
+     * @param addr an address
+     * @return true if an allocated block starts at addr
+     */
+    private boolean isAllocated(int addr)
+    {
+        if ((addr < 0) || (addr >= m_size)
+            || ((addr & ((1 << MIN_ORDER) - 1)) != 0))
+        {
+            return false;
+        }
+        return get(addr >>> MIN_ORDER, ALLOC_ORDER) != NONE;
+    }//isAllocated
+
+    /**
+     * timeOp
+     *
+     * adds the time taken by an allocate or free to the statistics
+     *
+     * @param start the value of System.nanoTime when the call started
+     */
+    private void timeOp(long start)
+    {
+        long elapsed = System.nanoTime() - start;
+        m_opNanos += elapsed;
+        m_maxOpNanos = Math.max(m_maxOpNanos, elapsed);
+    }//timeOp
+
+    /**
+     * getFreeWords
+     *
+     * @return the number of words in free blocks
+     */
+    public int getFreeWords()
+    {
+        return m_freeWords;
+    }
+
+    /**
+     * getLargestFree
+     *
+     * @return the size of the largest free block (0 if there is none)
+     */
+    public int getLargestFree()
+    {
+        for(int order = m_maxOrder; order >= MIN_ORDER; order--)
+        {
+            if (m_heads[order] != NONE) return 1 << order;
+        }
+        return 0;
+    }//getLargestFree
+
+    /**
+     * getExternalFragmentation
+     *
+     * @return the fraction of free memory that is not in the largest free
+     *         block (0.0 when all free memory is in one block)
+     */
+    public double getExternalFragmentation()
+    {
+        if (m_freeWords == 0)
+        {
+            return 0.0;
+        }
+        return 1.0 - (double)getLargestFree() / m_freeWords;
+    }//getExternalFragmentation
+
+    /**
+     * getInternalFragmentation
+     *
+     * @return the fraction of allocated memory that was not asked for
+     *         (because requests are rounded up to a power of two)
+     */
+    public double getInternalFragmentation()
+    {
+        if (m_allocatedWords == 0)
+        {
+            return 0.0;
+        }
+        return 1.0 - (double)m_requestedWords / m_allocatedWords;
+    }//getInternalFragmentation
+
+    /**
+     * getAverageNanos
+     *
+     * @return the average host time taken by an allocate or free
+     */
+    public double getAverageNanos()
+    {
+        long ops = m_allocs + m_frees + m_failures;
+        return (ops == 0) ? 0.0 : (double)m_opNanos / ops;
+    }//getAverageNanos
+
+    /**
+     * formatStats
+     *
+     * @return the statistics of the allocator as a line of text
+     */
+    public String formatStats()
+    {
+        return "allocs=" + m_allocs + " frees=" + m_frees
+            + " failures=" + m_failures + " free=" + m_freeWords
+            + " largest free=" + getLargestFree()
+            + " external frag=" + Math.round(100 * getExternalFragmentation())
+            + "% internal frag=" + Math.round(100 * getInternalFragmentation())
+            + "% avg op=" + Math.round(getAverageNanos()) + " ns"
+            + " max op=" + m_maxOpNanos + " ns";
+    }//formatStats
+
+};//class BuddyAllocator
@@ -1,6 +1,7 @@
 package sos;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class is the centerpiece of a simulation of the essential hardware of a
@@ -38,6 +39,15 @@ public class CPU
     public static final int LOAD   = 11;   // load value from heap
     public static final int SAVE   = 12;   // save value to heap
     public static final int TRAP   = 15;   // system call
+
+    //These constants define internal operations that stand for a group of
+    //instructions fused together by the decode cache.  They never appear in
+    //RAM.
+    public static final int ADD_BNE       = 16;  // ADD then BNE
+    public static final int SUB_BNE       = 17;  // SUB then BNE
+    public static final int SET_PUSH      = 18;  // SET then PUSH
+    public static final int POP_COPY      = 19;  // POP then COPY
+    public static final int SET_PUSH_TRAP = 20;  // SET, PUSH then TRAP
     
     //These constants define the indexes to each register
     public static final int R0   = 0;     // general purpose registers
@@ -55,6 +65,15 @@ public class CPU
     public static final int NUMGENREG = PC; // the number of general registers
     public static final int INSTRSIZE = 4;  // number of ints in a single instr +
                                             // args.  (Set to a fixed value for simplicity.)
+    public static final int MAXFUSED = 3;   // most instructions in a fused group
+    public static final int TLB_SIZE = 16;  // entries in the TLB (a power of two)
+
+    //These constants describe why a call to run() returned
+    public static final int STATUS_BUDGET = 0;  // instruction budget used up
+    public static final int STATUS_TRAP   = 1;  // a TRAP instruction was run
+    public static final int STATUS_FAULT  = 2;  // an instruction failed
+    public static final int STATUS_HALT   = 3;  // the CPU is halted
+    public static final int STATUS_TIMER  = 4;  // the timer interrupt stopped it
 
     //======================================================================
     //Member variables
@@ -76,6 +95,116 @@ public class CPU
      **/
     private RAM m_RAM = null;
 
+    /**
+     * Instructions that have already been fetched from RAM, kept in decoded
+     * form so that the main loop does not allocate.
+     *
+     * @see DecodeCache
+     **/
+    private DecodeCache m_decodeCache = null;
+
+    /**
+     * The optional engine that compiles hot basic blocks.  When this is null
+     * every instruction is interpreted.
+     *
+     * @see BlockCompiler
+     **/
+    private BlockCompiler m_blockCompiler = null;
+
+    /**
+     * the number of instruction dispatches avoided by running fused groups
+     **/
+    private long m_dispatchesSaved = 0;
+
+    /**
+     * the total number of instructions run by this CPU
+     **/
+    private long m_instrCount = 0;
+
+    /**
+     * set when an instruction faults.  A halted CPU does not run until the
+     * flag is cleared.
+     **/
+    private boolean m_halted = false;
+
+    /**
+     * the number of addresses (LIM - BASE + 1) that LOAD and SAVE may use.
+     * This is kept up to date so checkAddr does not have to work it out.
+     **/
+    private int m_windowSize = 1;
+
+    /**
+     * specifies whether run() should use the register-hoisting loop
+     *
+     * @see #runHoisted
+     **/
+    private boolean m_hoisting = false;
+
+    /**
+     * When this is set every instruction is recorded in a binary trace
+     * instead of being printed.
+     *
+     * @see Tracer
+     **/
+    private Tracer m_tracer = null;
+
+    /**
+     * The operating system's handler for TRAP instructions (or null, in
+     * which case every TRAP just stops the CPU)
+     *
+     * @see TrapHandler
+     **/
+    private TrapHandler m_TH = null;
+
+    /**
+     * Completed I/O requests waiting to be delivered to the trap handler as
+     * interrupts.  Devices post to this from their own threads.
+     **/
+    private LinkedBlockingQueue<IORequest> m_interrupts =
+        new LinkedBlockingQueue<IORequest>();
+
+    /**
+     * The interval timer.  It counts down the instructions the CPU runs and
+     * raises a clock interrupt every m_timerPeriod instructions (it is off
+     * when the period is zero).  The countdown is folded into the budget
+     * the execution loops already check, so the timer costs nothing per
+     * instruction.
+     *
+     * @see #setTimer
+     **/
+    private long m_timerPeriod = 0;
+    private long m_timerLeft = Long.MAX_VALUE;
+    private long m_clockInterrupts = 0;
+
+    /**
+     * The page table of the running process.  When this is null addresses
+     * are relocated with BASE and LIM alone; otherwise every address the CPU
+     * uses is a virtual address that is translated through the TLB.
+     *
+     * @see PageTable
+     **/
+    private PageTable m_pageTable = null;
+
+    /**
+     * the TLB: a small direct-mapped cache of the most recently used page
+     * translations.  Each entry holds a page number (or -1), its frame and
+     * whether the page may be written without being copied first.
+     **/
+    private int m_tlbPages[] = new int[TLB_SIZE];
+    private int m_tlbFrames[] = new int[TLB_SIZE];
+    private boolean m_tlbWritable[] = new boolean[TLB_SIZE];
+
+    /**
+     * statistics that describe how well the TLB is working
+     **/
+    private long m_tlbHits = 0;
+    private long m_tlbMisses = 0;
+
+    /**
+     * Scratch space used to print the current instruction in verbose mode
+     **/
+    private int m_instr[] = new int[INSTRSIZE];
+
     //======================================================================
     //Methods
     //----------------------------------------------------------------------
@@ -93,6 +222,9 @@ public class CPU
             m_registers[i] = 0;
         }
         m_RAM = ram;
+        m_decodeCache = new DecodeCache(ram, DecodeCache.DEFAULT_SIZE);
+        m_RAM.attachDecodeCache(m_decodeCache);
+        flushTLB();
 
     }//CPU ctor
 
@@ -146,6 +278,181 @@ public class CPU
         return m_registers;
     }
 
+    /**
+     * getDecodeCache
+     *
+     * @return the cache of decoded instructions used by this CPU
+     */
+    public DecodeCache getDecodeCache()
+    {
+        return m_decodeCache;
+    }
+
+    /**
+     * setPageTable
+     *
+     * switches the CPU to a new address space (or back to BASE/LIM
+     * relocation when the table is null).  The TLB is flushed.  While a page
+     * table is in use fused groups, compiled blocks and the
+     * register-hoisting loop are not used.
+     *
+     * @param table the page table of the process about to run
+     */
+    public void setPageTable(PageTable table)
+    {
+        m_pageTable = table;
+        flushTLB();
+    }
+
+    /**
+     * getPageTable
+     *
+     * @return the page table in use or null if there is none
+     */
+    public PageTable getPageTable()
+    {
+        return m_pageTable;
+    }
+
+    /**
+     * flushTLB
+     *
+     * throws away every cached page translation
+     */
+    public void flushTLB()
+    {
+        for(int i = 0; i < TLB_SIZE; i++)
+        {
+            m_tlbPages[i] = -1;
+        }
+    }//flushTLB
+
+    /**
+     * getTLBHits
+     *
+     * @return the number of translations found in the TLB
+     */
+    public long getTLBHits()
+    {
+        return m_tlbHits;
+    }
+
+    /**
+     * getTLBMisses
+     *
+     * @return the number of translations that had to walk the page table
+     */
+    public long getTLBMisses()
+    {
+        return m_tlbMisses;
+    }
+
+    /**
+     * setVerbose
+     *
+     * @param verbose true if the CPU should print each instruction it runs
+     */
+    public void setVerbose(boolean verbose)
+    {
+        m_verbose = verbose;
+    }
+
+    /**
+     * setHoisting
+     *
+     * turns the register-hoisting execution loop on or off.  It is not used
+     * while the CPU is in verbose mode or tracing.
+     *
+     * @param enabled true to keep the registers in locals while running
+     */
+    public void setHoisting(boolean enabled)
+    {
+        m_hoisting = enabled;
+    }
+
+    /**
+     * setTracer
+     *
+     * sends a record of every instruction run to the given tracer instead of
+     * printing it.  Like verbose mode this turns off fusion and compiled
+     * blocks.
+     *
+     * @param tracer the tracer to use or null to stop tracing
+     */
+    public void setTracer(Tracer tracer)
+    {
+        m_tracer = tracer;
+    }
+
+    /**
+     * registerTrapHandler
+     *
+     * gives the CPU the object that handles its TRAP instructions
+     *
+     * @param th the handler or null to have TRAP just stop the CPU
+     */
+    public void registerTrapHandler(TrapHandler th)
+    {
+        m_TH = th;
+    }
+
+    /**
+     * setBlockEngine
+     *
+     * turns the block compiling execution engine on or off.  Compiled blocks
+     * are not used while the CPU is in verbose mode since they do not print
+     * the instructions they run.
+     *
+     * @param enabled true to compile and run hot basic blocks
+     */
+    public void setBlockEngine(boolean enabled)
+    {
+        if (!enabled)
+        {
+            m_blockCompiler = null;
+        }
+        else if (m_blockCompiler == null)
+        {
+            m_blockCompiler = new BlockCompiler(m_decodeCache,
+                                                BlockCompiler.DEFAULT_SIZE);
+        }
+    }//setBlockEngine
+
+    /**
+     * setFusion
+     *
+     * turns superinstruction fusion on or off.  Fused groups are only run
+     * while the CPU is not in verbose mode so every instruction still gets
+     * printed when it is.  (The same goes for tracing.)
+     *
+     * @param enabled true to fuse common instruction groups
+     * @see DecodeCache#getFusions
+     */
+    public void setFusion(boolean enabled)
+    {
+        m_decodeCache.setFusion(enabled);
+    }//setFusion
+
+    /**
+     * getDispatchesSaved
+     *
+     * @return the number of instruction dispatches avoided by fusion
+     */
+    public long getDispatchesSaved()
+    {
+        return m_dispatchesSaved;
+    }
+
+    /**
+     * getBlockCompiler
+     *
+     * @return the block engine in use or null if it is turned off
+     */
+    public BlockCompiler getBlockCompiler()
+    {
+        return m_blockCompiler;
+    }
+
     /**
      * setPC
      *
@@ -174,6 +481,7 @@ public class CPU
     public void setBASE(int v)
     {
         m_registers[BASE] = v;
+        updateWindow();
     }
 
     /**
@@ -184,8 +492,22 @@ public class CPU
     public void setLIM(int v)
     {
         m_registers[LIM] = v;
+        updateWindow();
     }
 
+    /**
+     * updateWindow
+     *
+     * recomputes the number of heap addresses the current process may use
+     * from the BASE and LIM registers.  This happens whenever they are set
+     * through setBASE/setLIM, at the start of every call to run, and after
+     * any instruction that names a special register.
+     */
+    private void updateWindow()
+    {
+        m_windowSize = Math.max(0, m_registers[LIM] - m_registers[BASE] + 1);
+    }//updateWindow
+
     /**
      * regDump
      *
@@ -193,16 +515,30 @@ public class CPU
      */
     private void regDump()
     {
+        System.out.println(formatRegs(m_registers));
+    }//regDump
+
+    /**
+     * formatRegs
+     *
+     * Formats the values of the registers the way regDump prints them.
+     *
+     * @param regs the register file to format
+     * @return the formatted registers
+     */
+    public static String formatRegs(int[] regs)
+    {
+        String result = "";
         for(int i = 0; i < NUMGENREG; i++)
         {
-            System.out.print("r" + i + "=" + m_registers[i] + " ");
+            result += "r" + i + "=" + regs[i] + " ";
         }//for
-        System.out.print("PC=" + m_registers[PC] + " ");
-        System.out.print("SP=" + m_registers[SP] + " ");
-        System.out.print("BASE=" + m_registers[BASE] + " ");
-        System.out.print("LIM=" + m_registers[LIM] + " ");
-        System.out.println("");
-    }//regDump
+        result += "PC=" + regs[PC] + " ";
+        result += "SP=" + regs[SP] + " ";
+        result += "BASE=" + regs[BASE] + " ";
+        result += "LIM=" + regs[LIM] + " ";
+        return result;
+    }//formatRegs
 
     /**
      * printIntr
@@ -213,81 +549,227 @@ public class CPU
      * @param instr the current instruction
      */
     public static void printInstr(int[] instr)
+    {
+        System.out.print(formatInstr(instr));
+    }//printInstr
+
+    /**
+     * formatInstr
+     *
+     * Formats a given instruction the way printInstr prints it (including
+     * the line break).
+     *
+     * @param instr the instruction to format
+     * @return the formatted instruction
+     */
+    public static String formatInstr(int[] instr)
     {
             switch(instr[0])
             {
                 case SET:
-                    System.out.println("SET R" + instr[1] + " = " + instr[2]);
-                    break;
+                    return "SET R" + instr[1] + " = " + instr[2] + "\n";
                 case ADD:
-                    System.out.println("ADD R" + instr[1] + " = R" + instr[2] + " + R" + instr[3]);
-                    break;
+                    return "ADD R" + instr[1] + " = R" + instr[2] + " + R" + instr[3] + "\n";
                 case SUB:
-                    System.out.println("SUB R" + instr[1] + " = R" + instr[2] + " - R" + instr[3]);
-                    break;
+                    return "SUB R" + instr[1] + " = R" + instr[2] + " - R" + instr[3] + "\n";
                 case MUL:
-                    System.out.println("MUL R" + instr[1] + " = R" + instr[2] + " * R" + instr[3]);
-                    break;
+                    return "MUL R" + instr[1] + " = R" + instr[2] + " * R" + instr[3] + "\n";
                 case DIV:
-                    System.out.println("DIV R" + instr[1] + " = R" + instr[2] + " / R" + instr[3]);
-                    break;
+                    return "DIV R" + instr[1] + " = R" + instr[2] + " / R" + instr[3] + "\n";
                 case COPY:
-                    System.out.println("COPY R" + instr[1] + " = R" + instr[2]);
-                    break;
+                    return "COPY R" + instr[1] + " = R" + instr[2] + "\n";
                 case BRANCH:
-                    System.out.println("BRANCH @" + instr[1]);
-                    break;
+                    return "BRANCH @" + instr[1] + "\n";
                 case BNE:
-                    System.out.println("BNE (R" + instr[1] + " != R" + instr[2] + ") @" + instr[3]);
-                    break;
+                    return "BNE (R" + instr[1] + " != R" + instr[2] + ") @" + instr[3] + "\n";
                 case BLT:
-                    System.out.println("BLT (R" + instr[1] + " < R" + instr[2] + ") @" + instr[3]);
-                    break;
+                    return "BLT (R" + instr[1] + " < R" + instr[2] + ") @" + instr[3] + "\n";
                 case POP:
-                    System.out.println("POP R" + instr[1]);
-                    break;
+                    return "POP R" + instr[1] + "\n";
                 case PUSH:
-                    System.out.println("PUSH R" + instr[1]);
-                    break;
+                    return "PUSH R" + instr[1] + "\n";
                 case LOAD:
-                    System.out.println("LOAD R" + instr[1] + " <-- @R" + instr[2]);
-                    break;
+                    return "LOAD R" + instr[1] + " <-- @R" + instr[2] + "\n";
                 case SAVE:
-                    System.out.println("SAVE R" + instr[1] + " --> @R" + instr[2]);
-                    break;
+                    return "SAVE R" + instr[1] + " --> @R" + instr[2] + "\n";
                 case TRAP:
-                    System.out.print("TRAP ");
-                    break;
+                    return "TRAP ";
                 default:        // should never be reached
-                    System.out.println("?? ");
-                    break;          
+                    return "?? \n";
             }//switch
 
-    }//printInstr
+    }//formatInstr
 
 
     /**
      * run
      * 
-     * Main loop for the CPU
+     * Main loop for the CPU.  Runs until the program traps or faults.
+     *
+     * @return the STATUS_* value describing why the CPU stopped
      */
-    public void run()
+    public int run()
     {
-    	//Infinite loop for CPU
-    	while (true){
-    		//retrieve current instruction
-    		int [] instruction = m_RAM.fetch(getPC());
+        return run(Long.MAX_VALUE);
+    }//run
+
+    /**
+     * run
+     *
+     * Runs at most the given number of instructions.  If the budget runs out
+     * the registers are left exactly as they are so that a later call
+     * carries on where this one stopped.  After a TRAP the PC points past
+     * the TRAP so the program can also be resumed once the trap has been
+     * handled.
+     *
+     * If the timer is set it goes off whenever its countdown reaches zero,
+     * between two instructions.  Any I/O interrupts that are waiting are
+     * delivered first and then the trap handler's clock interrupt decides
+     * whether the CPU carries on or stops.
+     *
+     * @param maxInstructions the most instructions to run before returning
+     * @return STATUS_BUDGET if the budget ran out, STATUS_TRAP if a TRAP was
+     *         run, STATUS_FAULT if an instruction failed (the PC is left
+     *         pointing at it), STATUS_TIMER if the clock interrupt stopped
+     *         the CPU or STATUS_HALT if the CPU was (or has been) halted
+     */
+    public int run(long maxInstructions)
+    {
+        //Let the operating system see any I/O that has completed
+        if (!m_interrupts.isEmpty())
+        {
+            deliverInterrupts();
+        }
 
-            int opcode = instruction[0];
-            int instr1 = instruction[1];
-            int instr2 = instruction[2];
-            int instr3 = instruction[3];
+        boolean hoisted = m_hoisting && !m_verbose && (m_tracer == null)
+                          && (m_pageTable == null);
 
-    		//if verbose is true print extras
-    		if (m_verbose) {
+        //With the timer off the whole budget is a single slice
+        if (m_timerPeriod == 0)
+        {
+            if (m_halted)
+            {
+                return STATUS_HALT;
+            }
+            updateWindow();
+            return hoisted ? runHoisted(maxInstructions)
+                           : interpret(maxInstructions);
+        }
+
+        long remaining = maxInstructions;
+        while (true)
+        {
+            if (m_halted)
+            {
+                return STATUS_HALT;
+            }
+
+            //The registers may have been changed through getRegisters()
+            updateWindow();
+
+            //Run until the budget or the timer runs out, whichever is first
+            long slice = Math.min(remaining, m_timerLeft);
+            long before = m_instrCount;
+            int status = hoisted ? runHoisted(slice) : interpret(slice);
+            long executed = m_instrCount - before;
+            remaining -= executed;
+            m_timerLeft -= executed;
+            if ((status != STATUS_BUDGET) || (m_timerLeft > 0))
+            {
+                return status;
+            }
+
+            //The timer went off
+            m_timerLeft = m_timerPeriod;
+            m_clockInterrupts++;
+            if (!m_interrupts.isEmpty())
+            {
+                deliverInterrupts();
+            }
+            if ((m_TH != null) && (m_TH.interruptClock() == TrapHandler.STOP))
+            {
+                return STATUS_TIMER;
+            }
+            if (remaining <= 0)
+            {
+                return STATUS_BUDGET;
+            }
+        }//while
+    }//run
+
+    /**
+     * interpret
+     *
+     * The main interpreter loop.  Runs at most the given number of
+     * instructions one at a time, using fused groups and compiled blocks
+     * when they are turned on.
+     *
+     * @param maxInstructions the most instructions to run before returning
+     * @return one of the STATUS_* values (see {@link #run(long)})
+     */
+    @SuppressWarnings("fallthrough")    // SET_PUSH_TRAP ends with a TRAP
+    private int interpret(long maxInstructions)
+    {
+        long executed = 0;          // instructions run by this call
+        int status = STATUS_BUDGET; // why the loop ended
+        boolean branched = false;   // was the last instruction a taken branch?
+
+        // every instruction has to be run on its own when it is being
+        // printed or traced
+        boolean stepwise = m_verbose || (m_tracer != null);
+
+        // fused groups and compiled blocks assume the instructions that
+        // follow each other in the program also do so in RAM, which is not
+        // true across a page boundary
+        boolean single = stepwise || (m_pageTable != null);
+
+    	//Loop until the budget is used up or the program stops
+    	while (executed < maxInstructions){
+    		//let the block engine run any hot code at a branch target
+    		if (branched && (m_blockCompiler != null) && !single) {
+    			CompiledBlock block = m_blockCompiler.lookup(getPC());
+    			if (block != null) {
+    				executed += m_blockCompiler.run(block, m_registers,
+    				                                maxInstructions - executed);
+    				if (executed >= maxInstructions) break;
+    			}
+    		}
+    		branched = false;
+
+    		//retrieve current instruction from the decode cache
+    		int fetchAddr = getPC();
+    		if (m_pageTable != null) {
+    			fetchAddr = translate(fetchAddr, false);
+    			if (fetchAddr < 0) {
+    				status = STATUS_FAULT;
+    				m_halted = true;
+    				break;
+    			}
+    		}
+    		int slot = m_decodeCache.lookup(fetchAddr);
+
+            //fused groups are only used if the whole group fits the budget
+            int opcode = (single || (maxInstructions - executed < MAXFUSED))
+                         ? m_decodeCache.getOpcode(slot)
+                         : m_decodeCache.getFusedOpcode(slot);
+            int instr1 = m_decodeCache.getArg1(slot);
+            int instr2 = m_decodeCache.getArg2(slot);
+            int instr3 = m_decodeCache.getArg3(slot);
+
+    		//record the instruction in the trace, or if verbose is true
+    		//print extras
+    		if (m_tracer != null) {
+    			m_tracer.record(m_registers, opcode, instr1, instr2, instr3);
+    		}
+    		else if (m_verbose) {
     			regDump();
-    			printInstr(instruction);
+    			m_instr[0] = opcode;
+    			m_instr[1] = instr1;
+    			m_instr[2] = instr2;
+    			m_instr[3] = instr3;
+    			printInstr(m_instr);
     		}
+    		executed++;
     		
     		//takes opcode and performs instruction
     		switch (opcode) {
@@ -304,104 +786,537 @@ public class CPU
     				m_registers[instr1] = m_registers[instr2] * m_registers[instr3];
     				break;
     			case CPU.DIV:
+    				if (m_registers[instr3] == 0) {
+    					errorMessage("Divide by zero");
+    					status = STATUS_FAULT;
+    					break;
+    				}
     				m_registers[instr1] = m_registers[instr2] / m_registers[instr3];
     				break;
     			case CPU.COPY:
     				m_registers[instr1] = m_registers[instr2];
     				break;
     			case CPU.BRANCH:
-    				setPC(instr1);
+    				setPC(getBASE() + instr1);
+    				branched = true;
     				break;
     			case CPU.BNE:
-    				if (m_registers[instr1] != m_registers[instr2]) setPC(instr3);
+    				if (m_registers[instr1] != m_registers[instr2]) {
+    					setPC(getBASE() + instr3);
+    					branched = true;
+    				}
     				break;
     			case CPU.BLT:
-    				if (m_registers[instr1] < m_registers[instr2]) setPC(instr3);
+    				if (m_registers[instr1] < m_registers[instr2]) {
+    					setPC(getBASE() + instr3);
+    					branched = true;
+    				}
     				break;
     			case CPU.POP:
-    				m_registers[instr1] = pop();
+    				if (!pop(instr1)) status = STATUS_FAULT;
     				break;
     			case CPU.PUSH:
-    				push(m_registers[instr1]);
+    				if (!push(m_registers[instr1])) status = STATUS_FAULT;
     				break;
     			case CPU.LOAD:
     				
     			    // Attempts to load the value in the memory location given by 
     			    // the second register into the first register
-    				if (load(instr1, instruction[2])) break;
-    				
-    				// Escape the loop if the load fails
-    				else return;
+    				if (!load(instr1, instr2)) status = STATUS_FAULT;
+    				break;
     				
     			case CPU.SAVE:
     			    
     			    // Attempts to save the value in the first register to the memory
                     // location given by the second register
-    				if (save(instr1, instr2)) break;
-    				
-    				// Escape the loop if the save fails
-    				else return;
+    				if (!save(instr1, instr2)) status = STATUS_FAULT;
+    				break;
     				
+
+    			// Fused groups run each instruction in turn, stepping the PC
+    			// between them so it is always correct if one of them fails
+    			case CPU.ADD_BNE:
+    			case CPU.SUB_BNE:
+    				if (opcode == CPU.ADD_BNE) {
+    					m_registers[instr1] = m_registers[instr2] + m_registers[instr3];
+    				} else {
+    					m_registers[instr1] = m_registers[instr2] - m_registers[instr3];
+    				}
+    				setPC(getPC() + INSTRSIZE);
+    				executed++;
+    				m_dispatchesSaved++;
+    				if (m_registers[m_decodeCache.getArg4(slot)]
+    						!= m_registers[m_decodeCache.getArg5(slot)]) {
+    					setPC(getBASE() + m_decodeCache.getArg6(slot));
+    					branched = true;
+    				}
+    				break;
+    			case CPU.POP_COPY:
+    				if (!pop(instr1)) {
+    					status = STATUS_FAULT;
+    					break;
+    				}
+    				setPC(getPC() + INSTRSIZE);
+    				executed++;
+    				m_dispatchesSaved++;
+    				m_registers[m_decodeCache.getArg4(slot)] =
+    						m_registers[m_decodeCache.getArg5(slot)];
+    				break;
+    			case CPU.SET_PUSH:
+    			case CPU.SET_PUSH_TRAP:
+    				m_registers[instr1] = instr2;
+    				setPC(getPC() + INSTRSIZE);
+    				executed++;
+    				m_dispatchesSaved++;
+    				if (!push(m_registers[m_decodeCache.getArg4(slot)])) {
+    					status = STATUS_FAULT;
+    					break;
+    				}
+    				if (opcode == CPU.SET_PUSH) break;
+    				setPC(getPC() + INSTRSIZE);
+    				executed++;
+    				m_dispatchesSaved++;
+    				//fall through to the TRAP
+
     			case CPU.TRAP:
-    				if(trap()) return;
-    				else {
+    				int result = trap();
+    				if (result == TrapHandler.STOP) {
+    					status = STATUS_TRAP;
+    				}
+    				else if (result == TrapHandler.FAIL) {
     				    errorMessage("Trap instruction failed");
-    				    return;
+    				    status = STATUS_FAULT;
     				}
+    				break;
     			default:
     				errorMessage("Illegal opcode");
-    				return;
+    				status = STATUS_FAULT;
+    				break;
+    		}
+
+    		//an instruction naming a special register may have moved BASE or LIM
+    		if (m_decodeCache.isSpecial(slot)) {
+    			updateWindow();
+    		}
+
+    		//a faulting instruction leaves the PC pointing at itself
+    		if (status == STATUS_FAULT) {
+    			m_halted = true;
+    			break;
     		}
     		
     		//increment PC to next instruction
-    		setPC(getPC() + 4);
+    		setPC(getPC() + INSTRSIZE);
+    		if (status == STATUS_TRAP) break;
     	} 
-    }//run
+
+        m_instrCount += executed;
+        return status;
+    }//interpret
+
+    /**
+     * runHoisted
+     *
+     * A version of the interpreter loop that keeps the general registers
+     * (R0 - R4) and the PC, SP, BASE and LIM registers in local variables so
+     * that the JIT can keep them in machine registers.  They are written
+     * back to m_registers whenever the loop exits (at a TRAP, a fault or
+     * the end of the budget), so getRegisters() is always accurate between
+     * calls to run.  The paging hardware is never on here, so LOAD and SAVE
+     * go straight to RAM.
+     *
+     * TRAP and the few instructions that name the PC, SP, BASE or LIM
+     * register as an operand (or are illegal) are handed to the regular
+     * interpreter one at a time, with the registers written back first and
+     * read again afterward.  Fused groups and compiled blocks are not used
+     * here.
+     *
+     * @param maxInstructions the most instructions to run before returning
+     * @return one of the STATUS_* values (see {@link #run(long)})
+     */
+    private int runHoisted(long maxInstructions)
+    {
+        int[] r = m_registers;
+        DecodeCache cache = m_decodeCache;
+        int[] tags = cache.getTags();
+        int mask = cache.getMask();
+        RAM ram = m_RAM;
+        int r0 = r[R0];
+        int r1 = r[R1];
+        int r2 = r[R2];
+        int r3 = r[R3];
+        int r4 = r[R4];
+        int pc = r[PC];
+        int sp = r[SP];
+        int base = r[BASE];
+        int lim = r[LIM];
+
+        long executed = 0;          // instructions run by this loop
+        long delegated = 0;         // ...of which the interpreter ran
+        long hits = 0;              // decode cache hits found here
+        int status = STATUS_BUDGET; // why the loop ended
+
+        while (executed < maxInstructions) {
+            int slot = (pc >>> 2) & mask;
+            if (tags[slot] == pc) {
+                hits++;
+            }
+            else {
+                slot = cache.lookup(pc);
+            }
+            int opcode = cache.getOpcode(slot);
+
+            //Let the interpreter deal with the special registers and with
+            //system calls, which work on the register file
+            if (cache.isSpecial(slot) || (opcode == CPU.TRAP)) {
+                r[R0] = r0;
+                r[R1] = r1;
+                r[R2] = r2;
+                r[R3] = r3;
+                r[R4] = r4;
+                r[PC] = pc;
+                r[SP] = sp;
+                status = interpret(1);
+                executed++;
+                delegated++;
+                r0 = r[R0];
+                r1 = r[R1];
+                r2 = r[R2];
+                r3 = r[R3];
+                r4 = r[R4];
+                pc = r[PC];
+                sp = r[SP];
+                base = r[BASE];
+                lim = r[LIM];
+                if (status != STATUS_BUDGET) break;
+                continue;
+            }
+
+            int instr1 = cache.getArg1(slot);
+            int instr2 = cache.getArg2(slot);
+            int instr3 = cache.getArg3(slot);
+            executed++;
+
+            //Only the operands an instruction uses are fetched
+            int x = 0;      // the register named by instr1
+            int y = 0;      // the register named by instr2
+            int z = 0;      // the register named by instr3
+            int result;     // the new value of the register named by instr1
+            switch (opcode) {
+                case CPU.SET:
+                    result = instr2;
+                    break;
+                case CPU.ADD:
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    switch (instr3) {
+                        case R0: z = r0; break;
+                        case R1: z = r1; break;
+                        case R2: z = r2; break;
+                        case R3: z = r3; break;
+                        default: z = r4; break;
+                    }
+                    result = y + z;
+                    break;
+                case CPU.SUB:
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    switch (instr3) {
+                        case R0: z = r0; break;
+                        case R1: z = r1; break;
+                        case R2: z = r2; break;
+                        case R3: z = r3; break;
+                        default: z = r4; break;
+                    }
+                    result = y - z;
+                    break;
+                case CPU.MUL:
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    switch (instr3) {
+                        case R0: z = r0; break;
+                        case R1: z = r1; break;
+                        case R2: z = r2; break;
+                        case R3: z = r3; break;
+                        default: z = r4; break;
+                    }
+                    result = y * z;
+                    break;
+                case CPU.DIV:
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    switch (instr3) {
+                        case R0: z = r0; break;
+                        case R1: z = r1; break;
+                        case R2: z = r2; break;
+                        case R3: z = r3; break;
+                        default: z = r4; break;
+                    }
+                    if (z == 0) {
+                        errorMessage("Divide by zero");
+                        status = STATUS_FAULT;
+                        result = 0;
+                        break;
+                    }
+                    result = y / z;
+                    break;
+                case CPU.COPY:
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    result = y;
+                    break;
+                case CPU.BRANCH:
+                    pc = base + instr1 + INSTRSIZE;
+                    continue;
+                case CPU.BNE:
+                    switch (instr1) {
+                        case R0: x = r0; break;
+                        case R1: x = r1; break;
+                        case R2: x = r2; break;
+                        case R3: x = r3; break;
+                        default: x = r4; break;
+                    }
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    if (x != y) pc = base + instr3;
+                    pc += INSTRSIZE;
+                    continue;
+                case CPU.BLT:
+                    switch (instr1) {
+                        case R0: x = r0; break;
+                        case R1: x = r1; break;
+                        case R2: x = r2; break;
+                        case R3: x = r3; break;
+                        default: x = r4; break;
+                    }
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    if (x < y) pc = base + instr3;
+                    pc += INSTRSIZE;
+                    continue;
+                case CPU.POP:
+                    if (sp + 1 > lim) {
+                        errorMessage("Seg fault: Popping off of empty stack");
+                        status = STATUS_FAULT;
+                        result = 0;
+                        break;
+                    }
+                    result = ram.read(sp);
+                    sp++;
+                    break;
+                case CPU.PUSH:
+                    if (sp - 1 < base) {
+                        errorMessage("STACK OVERFLOW");
+                        status = STATUS_FAULT;
+                        result = 0;
+                        break;
+                    }
+                    switch (instr1) {
+                        case R0: x = r0; break;
+                        case R1: x = r1; break;
+                        case R2: x = r2; break;
+                        case R3: x = r3; break;
+                        default: x = r4; break;
+                    }
+                    sp--;
+                    ram.write(sp, x);
+                    pc += INSTRSIZE;
+                    continue;
+                case CPU.LOAD:
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    if (!checkAddr(y)) {
+                        status = STATUS_FAULT;
+                        result = 0;
+                        break;
+                    }
+                    result = ram.read(y + base);
+                    break;
+                case CPU.SAVE:
+                    switch (instr2) {
+                        case R0: y = r0; break;
+                        case R1: y = r1; break;
+                        case R2: y = r2; break;
+                        case R3: y = r3; break;
+                        default: y = r4; break;
+                    }
+                    if (!checkAddr(y)) {
+                        status = STATUS_FAULT;
+                        result = 0;
+                        break;
+                    }
+                    switch (instr1) {
+                        case R0: x = r0; break;
+                        case R1: x = r1; break;
+                        case R2: x = r2; break;
+                        case R3: x = r3; break;
+                        default: x = r4; break;
+                    }
+                    ram.write(y + base, x);
+                    pc += INSTRSIZE;
+                    continue;
+                default:
+                    pc += INSTRSIZE;
+                    continue;
+            }
+
+            //a faulting instruction leaves the PC pointing at itself
+            if (status == STATUS_FAULT) {
+                m_halted = true;
+                break;
+            }
+
+            switch (instr1) {
+                case R0: r0 = result; break;
+                case R1: r1 = result; break;
+                case R2: r2 = result; break;
+                case R3: r3 = result; break;
+                case R4: r4 = result; break;
+            }
+            pc += INSTRSIZE;
+        }
+
+        //Write the hoisted registers back
+        r[R0] = r0;
+        r[R1] = r1;
+        r[R2] = r2;
+        r[R3] = r3;
+        r[R4] = r4;
+        r[PC] = pc;
+        r[SP] = sp;
+        m_instrCount += executed - delegated;
+        cache.addHits(hits);
+        return status;
+    }//runHoisted
+
+    /**
+     * isHalted
+     *
+     * @return true if the CPU has stopped because of a fault
+     */
+    public boolean isHalted()
+    {
+        return m_halted;
+    }
+
+    /**
+     * setHalted
+     *
+     * halts the CPU (or clears the halted state, e.g. after the registers
+     * have been loaded with a new process)
+     *
+     * @param halted true to halt the CPU
+     */
+    public void setHalted(boolean halted)
+    {
+        m_halted = halted;
+    }
+
+    /**
+     * getInstructionCount
+     *
+     * @return the total number of instructions run by this CPU
+     */
+    public long getInstructionCount()
+    {
+        return m_instrCount;
+    }
     
     
     /**
      * pop
      * 
-     * reads the top of the stack and decrements the SP by one
+     * reads the top of the stack into a register and increments the SP by one
      * 
-     * @return popped the value popped off the stack
+     * @param reg the register receiving the popped value
+     * @return true if successful, false if the stack is empty
      */
-    private int pop() {
+    private boolean pop(int reg) {
         
         // Prevent stack pointer from falling into instruction memory
         if(getSP() + 1 > getLIM()) {
             errorMessage("Seg fault: Popping off of empty stack");
-            System.exit(1);
+            return false;
         }
         
         // Return the last element added to the stack and decrement the
         // stack pointer
-    	int popped = m_RAM.read(getSP());
+        int addr = physical(getSP(), false);
+        if (addr < 0) {
+            return false;
+        }
+    	m_registers[reg] = m_RAM.read(addr);
         setSP(getSP() + 1);
-    	return popped;
+    	return true;
     }//pop
     
     
     /**
      * push
      * 
-     * increment the SP and write the value of the register
+     * decrement the SP and write the value of the register
      * to the stack
      * 
      * @param reg the value to push to the stack
+     * @return true if successful, false if the stack is full
      */
-    private void push(int reg) {
+    private boolean push(int reg) {
         
-        // Increment the SP and ensure that the SP is pointing at
+        // Decrement the SP and ensure that the SP is pointing at
         // memory owned by the stack
-        setSP(getSP() - 1);
-        if(getSP() < getBASE()) {
+        if(getSP() - 1 < getBASE()) {
             errorMessage("STACK OVERFLOW");
-            System.exit(1);
+            return false;
+        }
+        int addr = physical(getSP() - 1, true);
+        if (addr < 0) {
+            return false;
         }
+        setSP(getSP() - 1);
         
         // Write the pushed value to memory
-    	m_RAM.write(getSP(), reg);
+    	m_RAM.write(addr, reg);
+        return true;
     }//push
     
     
@@ -419,7 +1334,11 @@ public class CPU
     private boolean load(int targetReg, int addrReg) {
       //checks if trying to access out of base or limit
         if (checkAddr(m_registers[addrReg])) {
-            m_registers[targetReg] = m_RAM.read(m_registers[addrReg] + getBASE());
+            int addr = physical(m_registers[addrReg] + getBASE(), false);
+            if (addr < 0) {
+                return false;
+            }
+            m_registers[targetReg] = m_RAM.read(addr);
             return true;
         } else {
             return false;
@@ -439,7 +1358,11 @@ public class CPU
     private boolean save(int targetReg, int addrReg) {
       //checks if trying to access out of base or limit
         if (checkAddr(m_registers[addrReg])) {
-            m_RAM.write(m_registers[addrReg] + getBASE(), m_registers[targetReg]);
+            int addr = physical(m_registers[addrReg] + getBASE(), true);
+            if (addr < 0) {
+                return false;
+            }
+            m_RAM.write(addr, m_registers[targetReg]);
             return true;
         }  else {
             return false;
@@ -451,14 +1374,142 @@ public class CPU
     /**
      * trap
      * 
-     * Run the trap instruction
+     * Run the trap instruction by handing it to the operating system
      * 
-     * @return For now, only return true.
+     * @return TrapHandler.RESUME to carry on running, TrapHandler.STOP to
+     *         stop the CPU or TrapHandler.FAIL if the trap failed
      */
-    private boolean trap() {
-        
-        return true;
+    private int trap() {
+        if (m_TH == null) {
+            return TrapHandler.STOP;
+        }
+        return m_TH.systemCall();
     }//trap
+
+    /**
+     * setTimer
+     *
+     * sets the interval timer and starts its countdown afresh
+     *
+     * @param period the number of instructions between clock interrupts
+     *               (zero or less turns the timer off)
+     */
+    public void setTimer(long period)
+    {
+        m_timerPeriod = Math.max(period, 0);
+        m_timerLeft = (m_timerPeriod > 0) ? m_timerPeriod : Long.MAX_VALUE;
+    }//setTimer
+
+    /**
+     * getTimerPeriod
+     *
+     * @return the number of instructions between clock interrupts (or zero
+     *         if the timer is off)
+     */
+    public long getTimerPeriod()
+    {
+        return m_timerPeriod;
+    }
+
+    /**
+     * getClockInterrupts
+     *
+     * @return the number of times the timer has gone off
+     */
+    public long getClockInterrupts()
+    {
+        return m_clockInterrupts;
+    }
+
+    /**
+     * postInterrupt
+     *
+     * raises an I/O completion interrupt.  This may be called from any
+     * thread; the interrupt is delivered to the trap handler on the CPU's
+     * own thread the next time run() is called or the timer goes off (or by
+     * waitForInterrupt).
+     *
+     * @param req the completed request
+     */
+    public void postInterrupt(IORequest req)
+    {
+        m_interrupts.offer(req);
+    }//postInterrupt
+
+    /**
+     * waitForInterrupt
+     *
+     * idles the CPU until an interrupt arrives and then delivers it (and any
+     * others that are waiting)
+     */
+    public void waitForInterrupt()
+    {
+        try
+        {
+            IORequest req = m_interrupts.take();
+            if (m_TH != null)
+            {
+                m_TH.interruptIOComplete(req);
+            }
+        }
+        catch(InterruptedException ie)
+        {/* do nothing*/ }
+        deliverInterrupts();
+    }//waitForInterrupt
+
+    /**
+     * deliverInterrupts
+     *
+     * hands every waiting interrupt to the trap handler
+     */
+    private void deliverInterrupts()
+    {
+        IORequest req;
+        while ((req = m_interrupts.poll()) != null)
+        {
+            if (m_TH != null)
+            {
+                m_TH.interruptIOComplete(req);
+            }
+        }
+    }//deliverInterrupts
+
+    /**
+     * isStackEmpty
+     *
+     * @return true if there is nothing on the stack of the running program
+     */
+    public boolean isStackEmpty() {
+        return getSP() + 1 > getLIM();
+    }//isStackEmpty
+
+    /**
+     * popValue
+     *
+     * pops the top of the stack for the operating system (e.g. the
+     * arguments of a system call).  The stack must not be empty.
+     *
+     * @return the value that was on top of the stack
+     */
+    public int popValue() {
+        int addr = physical(getSP(), false);
+        int value = (addr < 0) ? 0 : m_RAM.read(addr);
+        setSP(getSP() + 1);
+        return value;
+    }//popValue
+
+    /**
+     * pushValue
+     *
+     * pushes a value for the operating system (e.g. the result of a system
+     * call)
+     *
+     * @param value the value to push
+     * @return true if successful, false if the stack is full
+     */
+    public boolean pushValue(int value) {
+        return push(value);
+    }//pushValue
     
     /**
      * errorMessage
@@ -481,15 +1532,122 @@ public class CPU
      * @return true if address is allowed, false if not
      */
     private boolean checkAddr(int addr) {
+    	//Fast path: a single unsigned compare against the precomputed window
+    	//(flipping the sign bit turns a signed compare into an unsigned one)
+    	if ((addr ^ Integer.MIN_VALUE) < (m_windowSize ^ Integer.MIN_VALUE)) {
+    		return true;
+    	}
+
+    	//Slow path: work out which bound was broken
     	if (addr < 0) {
     		errorMessage("Specified address is lower than base");
     		return false;
     	}
-    	if (addr > getLIM() - getBASE()) {
-    		errorMessage("Specified address is greater than limit");
-    		return false;
-    	}
-    	return true;
+    	errorMessage("Specified address is greater than limit");
+    	return false;
     }//checkAddr
+
+    /**
+     * physical
+     *
+     * turns an address used by the running program into a RAM address
+     *
+     * @param addr  the address used by the program
+     * @param write true if the address is about to be written
+     * @return the RAM address or -1 (after printing an error) if the address
+     *         is not mapped
+     */
+    private int physical(int addr, boolean write) {
+    	if (m_pageTable == null) {
+    		return addr;
+    	}
+    	return translate(addr, write);
+    }//physical
+
+    /**
+     * translate
+     *
+     * turns a virtual address into a RAM address using the TLB, walking the
+     * page table when the TLB does not hold the page.  Writing a shared page
+     * always walks the page table so that the page gets its own copy.
+     *
+     * @param addr  the virtual address
+     * @param write true if the address is about to be written
+     * @return the RAM address or -1 (after printing an error) if the page
+     *         can not be mapped
+     */
+    private int translate(int addr, boolean write) {
+    	int page = addr >>> PageTable.PAGE_BITS;
+    	int slot = page & (TLB_SIZE - 1);
+    	if ((m_tlbPages[slot] == page) && (m_tlbWritable[slot] || !write)) {
+    		m_tlbHits++;
+    		return (m_tlbFrames[slot] << PageTable.PAGE_BITS)
+    		       | (addr & PageTable.PAGE_MASK);
+    	}
+
+    	m_tlbMisses++;
+    	int frame = write ? m_pageTable.lookupForWrite(page)
+    	                  : m_pageTable.lookup(page);
+    	if (frame < 0) {
+    		errorMessage("Page fault at address " + addr);
+    		return -1;
+    	}
+    	m_tlbPages[slot] = page;
+    	m_tlbFrames[slot] = frame;
+    	m_tlbWritable[slot] = !m_pageTable.isShared(page);
+    	return (frame << PageTable.PAGE_BITS) | (addr & PageTable.PAGE_MASK);
+    }//translate
+
+    //======================================================================
+    //Callback Interface
+    //----------------------------------------------------------------------
+
+    /**
+     * TrapHandler
+     *
+     * This interface is implemented by the operating system so that the CPU
+     * can hand it the system calls made with the TRAP instruction and the
+     * interrupts raised by devices.
+     */
+    public interface TrapHandler
+    {
+        /**
+         * what the CPU should do once a system call has been handled
+         **/
+        public static final int RESUME = 0;  // carry on running the program
+        public static final int STOP   = 1;  // stop and return STATUS_TRAP
+        public static final int FAIL   = 2;  // fault on the TRAP
+
+        /**
+         * systemCall
+         *
+         * handles a TRAP.  The call number and arguments are on the stack
+         * of the running program and the PC points at the TRAP.
+         *
+         * @return RESUME, STOP or FAIL
+         */
+        public int systemCall();
+
+        /**
+         * interruptIOComplete
+         *
+         * handles the interrupt raised when a device finishes a request
+         *
+         * @param req the completed request
+         */
+        public void interruptIOComplete(IORequest req);
+
+        /**
+         * interruptClock
+         *
+         * handles the interrupt raised when the timer goes off.  The
+         * registers are those of the interrupted program and the PC points
+         * at the next instruction it will run.
+         *
+         * @return RESUME to carry on running or STOP to stop and return
+         *         STATUS_TIMER
+         */
+        public int interruptClock();
+    };//interface TrapHandler
     
 };//class CPU
@@ -0,0 +1,394 @@
+package sos;
+
+/**
+ * This class models one level of a set-associative cache sitting between
+ * the CPU and the RAM.  It only keeps track of which lines would be held
+ * (the words themselves always live in the RAM) so that each access can be
+ * charged the simulated time it would really take: a hit costs the latency
+ * of this level, a miss also costs whatever the next level (or the RAM
+ * itself) charges to fill the line.
+ *
+ * Levels are chained through their constructor, so an L1 is built on top of
+ * an L2 and so on.  Every access works on preallocated arrays and never
+ * allocates.
+ *
+ * @see RAM#setCache
+ */
+public class Cache
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * eviction policies.  LRU evicts the least recently used line in a set;
+     * PLRU approximates it with a binary tree of bits per set.
+     **/
+    public static final int EVICT_LRU  = 0;
+    public static final int EVICT_PLRU = 1;
+
+    /**
+     * write policies.  A write-back cache marks written lines dirty and only
+     * writes them to the next level when they are evicted.  A write-through
+     * cache passes every write on to the next level and does not allocate a
+     * line for a write that misses.
+     **/
+    public static final int WRITE_BACK    = 0;
+    public static final int WRITE_THROUGH = 1;
+
+    /**
+     * tag value used to mark an empty line
+     **/
+    private static final int EMPTY = -1;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the name of this level (e.g. "L1") used when printing statistics
+     **/
+    private String m_name;
+
+    /**
+     * the shape of the cache: log2 of the line size in words, the mask that
+     * selects a set from a line number and the number of ways in each set
+     **/
+    private int m_lineBits;
+    private int m_setMask;
+    private int m_ways;
+
+    /**
+     * the simulated time (in nanoseconds) charged for an access that hits
+     **/
+    private int m_hitLatency;
+
+    /**
+     * the EVICT_* and WRITE_* policies of this level
+     **/
+    private int m_eviction;
+    private int m_writePolicy;
+
+    /**
+     * the next level down or null if misses go straight to the RAM
+     **/
+    private Cache m_next = null;
+
+    /**
+     * the line number held by each way of each set (or EMPTY) and whether
+     * it has been written since it was filled.  Way w of set s is at index
+     * s * m_ways + w.
+     **/
+    private int m_tags[];
+    private boolean m_dirty[];
+
+    /**
+     * the time each line was last used (LRU) and the tree bits of each set
+     * (PLRU)
+     **/
+    private long m_stamps[];
+    private long m_clock = 0;
+    private int m_plru[];
+
+    /**
+     * statistics that describe how well the cache is working
+     **/
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_evictions = 0;
+    private long m_writebacks = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * Cache ctor
+     *
+     * @param name        the name of this level used in statistics
+     * @param sizeWords   the capacity of the cache in words
+     * @param lineWords   the size of a line in words (rounded up to a power
+     *                    of two)
+     * @param ways        the associativity (rounded up to a power of two,
+     *                    at most 32)
+     * @param hitLatency  the simulated nanoseconds charged for a hit
+     * @param eviction    EVICT_LRU or EVICT_PLRU
+     * @param writePolicy WRITE_BACK or WRITE_THROUGH
+     * @param next        the next level down or null for the last level
+     */
+    public Cache(String name, int sizeWords, int lineWords, int ways,
+                 int hitLatency, int eviction, int writePolicy, Cache next)
+    {
+        m_name = name;
+        m_lineBits = 0;
+        while ((1 << m_lineBits) < lineWords)
+        {
+            m_lineBits++;
+        }
+        m_ways = 1;
+        while ((m_ways < ways) && (m_ways < 32))
+        {
+            m_ways <<= 1;
+        }
+        int sets = 1;
+        while (sets * 2 * m_ways * (1 << m_lineBits) <= sizeWords)
+        {
+            sets <<= 1;
+        }
+
+        m_setMask = sets - 1;
+        m_hitLatency = hitLatency;
+        m_eviction = eviction;
+        m_writePolicy = writePolicy;
+        m_next = next;
+        m_tags = new int[sets * m_ways];
+        m_dirty = new boolean[sets * m_ways];
+        m_stamps = new long[sets * m_ways];
+        m_plru = new int[sets];
+        flush();
+    }//ctor
+
+    /**
+     * flush
+     *
+     * empties the cache without writing anything back (the data is in the
+     * RAM anyway)
+     */
+    public void flush()
+    {
+        for(int i = 0; i < m_tags.length; i++)
+        {
+            m_tags[i] = EMPTY;
+            m_dirty[i] = false;
+            m_stamps[i] = 0;
+        }
+        for(int i = 0; i < m_plru.length; i++)
+        {
+            m_plru[i] = 0;
+        }
+    }//flush
+
+    /**
+     * access
+     *
+     * looks up the line holding an address, filling it on a miss, and works
+     * out how long the access takes
+     *
+     * @param addr       the address being read or written
+     * @param write      true for a write
+     * @param memLatency the simulated time the RAM charges for an access
+     * @return the simulated nanoseconds the access takes
+     */
+    public int access(int addr, boolean write, int memLatency)
+    {
+        int line = addr >>> m_lineBits;
+        int first = (line & m_setMask) * m_ways;
+        int cost = m_hitLatency;
+
+        for(int way = 0; way < m_ways; way++)
+        {
+            if (m_tags[first + way] == line)
+            {
+                m_hits++;
+                touch(first, way);
+                if (write)
+                {
+                    if (m_writePolicy == WRITE_BACK)
+                    {
+                        m_dirty[first + way] = true;
+                    }
+                    else
+                    {
+                        cost += below(addr, true, memLatency);
+                    }
+                }
+                return cost;
+            }
+        }//for
+
+        m_misses++;
+
+        //A write-through cache does not allocate on a write miss
+        if (write && (m_writePolicy == WRITE_THROUGH))
+        {
+            return cost + below(addr, true, memLatency);
+        }
+
+        //Make room (writing the old line back if it is dirty)
+        int way = victim(first);
+        int index = first + way;
+        if (m_tags[index] != EMPTY)
+        {
+            m_evictions++;
+            if (m_dirty[index])
+            {
+                m_writebacks++;
+                cost += below(m_tags[index] << m_lineBits, true, memLatency);
+            }
+        }
+
+        //Fill the line from below
+        cost += below(addr, false, memLatency);
+        m_tags[index] = line;
+        m_dirty[index] = write;
+        touch(first, way);
+        return cost;
+    }//access
+
+    /**
+     * below
+     *
+     * @return the simulated time the next level (or the RAM) takes for an
+     *         access
+     */
+    private int below(int addr, boolean write, int memLatency)
+    {
+        if (m_next == null)
+        {
+            return memLatency;
+        }
+        return m_next.access(addr, write, memLatency);
+    }//below
+
+    /**
+     * victim
+     *
+     * @param first the index of way 0 of the set
+     * @return the way of the set to evict (an empty way if there is one)
+     */
+    private int victim(int first)
+    {
+        for(int way = 0; way < m_ways; way++)
+        {
+            if (m_tags[first + way] == EMPTY) return way;
+        }
+
+        if (m_eviction == EVICT_PLRU)
+        {
+            //Follow the tree bits down to a leaf
+            int bits = m_plru[first / m_ways];
+            int node = 0;
+            while (node < m_ways - 1)
+            {
+                node = 2 * node + 1 + ((bits >>> node) & 1);
+            }
+            return node - (m_ways - 1);
+        }
+
+        int oldest = 0;
+        for(int way = 1; way < m_ways; way++)
+        {
+            if (m_stamps[first + way] < m_stamps[first + oldest]) oldest = way;
+        }
+        return oldest;
+    }//victim
+
+    /**
+     * touch
+     *
+     * records that a line has just been used
+     *
+     * @param first the index of way 0 of the set
+     * @param way   the way that was used
+     */
+    private void touch(int first, int way)
+    {
+        if (m_eviction == EVICT_PLRU)
+        {
+            //Point every node on the path to the line away from it
+            int set = first / m_ways;
+            int bits = m_plru[set];
+            int node = way + m_ways - 1;
+            while (node > 0)
+            {
+                int parent = (node - 1) >>> 1;
+                if (node == 2 * parent + 1)
+                {
+                    bits |= (1 << parent);
+                }
+                else
+                {
+                    bits &= ~(1 << parent);
+                }
+                node = parent;
+            }
+            m_plru[set] = bits;
+        }
+        else
+        {
+            m_stamps[first + way] = ++m_clock;
+        }
+    }//touch
+
+    /**
+     * getName
+     *
+     * @return the name of this level
+     */
+    public String getName()
+    {
+        return m_name;
+    }
+
+    /**
+     * getNext
+     *
+     * @return the next level down or null if this is the last level
+     */
+    public Cache getNext()
+    {
+        return m_next;
+    }
+
+    /**
+     * getHits
+     *
+     * @return the number of accesses that found their line in this level
+     */
+    public long getHits()
+    {
+        return m_hits;
+    }
+
+    /**
+     * getMisses
+     *
+     * @return the number of accesses that did not find their line
+     */
+    public long getMisses()
+    {
+        return m_misses;
+    }
+
+    /**
+     * getEvictions
+     *
+     * @return the number of lines thrown out to make room for another
+     */
+    public long getEvictions()
+    {
+        return m_evictions;
+    }
+
+    /**
+     * getWritebacks
+     *
+     * @return the number of dirty lines written to the next level
+     */
+    public long getWritebacks()
+    {
+        return m_writebacks;
+    }
+
+    /**
+     * formatStats
+     *
+     * @return the statistics of this level as a line of text
+     */
+    public String formatStats()
+    {
+        return m_name + ": hits=" + m_hits + " misses=" + m_misses
+            + " evictions=" + m_evictions + " writebacks=" + m_writebacks;
+    }//formatStats
+
+};//class Cache
@@ -0,0 +1,402 @@
+package sos;
+
+import java.io.*;
+
+/**
+ * This class saves the state of a machine (its RAM and the registers of
+ * its CPUs) to an append-only checkpoint file.  The first checkpoint in a
+ * file is a base that holds every page of RAM that is not all zero.  Every
+ * later checkpoint is a delta that holds only the pages written since the
+ * checkpoint before it, so the cost of a checkpoint follows the pages the
+ * machine writes rather than the size of its RAM.  A machine is restored by
+ * replaying the base and then each delta in turn.
+ *
+ * Each checkpoint record looks like this (all values are big-endian ints):
+ *
+ *   MAGIC, kind (KIND_BASE or KIND_DELTA), number of CPUs, NUMREG,
+ *   the registers of each CPU, number of pages,
+ *   then for each page: the page number and DIRTY_PAGE_SIZE words,
+ *   and finally END.
+ *
+ * A record that was not completely written (say because the host crashed
+ * while writing it) is ignored when the file is restored.  The state of the
+ * SOS itself (its allocator and page tables) is not saved.
+ *
+ * @see RAM#setDirtyTracking
+ */
+public class Checkpointer
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * mark the start and end of a checkpoint record
+     **/
+    public static final int MAGIC = 0x534F5343;     // "SOSC"
+    public static final int END   = ~MAGIC;
+
+    /**
+     * the kinds of checkpoint record
+     **/
+    public static final int KIND_BASE  = 0;
+    public static final int KIND_DELTA = 1;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the machine being checkpointed
+     **/
+    private RAM m_RAM = null;
+    private CPU m_CPUs[] = null;
+
+    /**
+     * the checkpoint file
+     **/
+    private FileOutputStream m_file = null;
+    private DataOutputStream m_out = null;
+
+    /**
+     * true until the base checkpoint has been written
+     **/
+    private boolean m_needBase = true;
+
+    /**
+     * statistics describing the checkpoints written
+     **/
+    private long m_checkpoints = 0;
+    private long m_pagesWritten = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * Checkpointer ctor
+     *
+     * @param ram  the RAM of the machine
+     * @param cpus the CPUs of the machine
+     */
+    public Checkpointer(RAM ram, CPU[] cpus)
+    {
+        m_RAM = ram;
+        m_CPUs = cpus;
+    }//ctor
+
+    /**
+     * open
+     *
+     * opens the checkpoint file for appending and starts tracking the pages
+     * the machine writes.  If the file already holds checkpoints (because
+     * the machine was restored from it) the next checkpoint is a delta.
+     *
+     * @param fileName the checkpoint file
+     * @return 0 is success; anything else is a failure code
+     */
+    public int open(String fileName)
+    {
+        File file = new File(fileName);
+        m_needBase = (file.length() == 0);
+        try
+        {
+            m_file = new FileOutputStream(file, true);
+            m_out = new DataOutputStream(new BufferedOutputStream(m_file));
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not open checkpoint file "
+                               + fileName + ": " + e);
+            return -1;
+        }
+
+        m_RAM.setDirtyTracking(true);
+        return 0;
+    }//open
+
+    /**
+     * checkpoint
+     *
+     * appends a checkpoint of the machine to the file.  None of the CPUs
+     * should be running while this is called.
+     *
+     * @return the number of pages written or -1 if the file could not be
+     *         written
+     */
+    public int checkpoint()
+    {
+        int kind = m_needBase ? KIND_BASE : KIND_DELTA;
+        int[] words = new int[RAM.DIRTY_PAGE_SIZE];
+
+        //Work out which pages go into the checkpoint.  A delta only has to
+        //look at the pages written since the last checkpoint.
+        int[] pages = m_RAM.takeDirtyPages();
+        int count = pages.length;
+        if (kind == KIND_BASE)
+        {
+            int numPages = m_RAM.getPageCount();
+            count = 0;
+            pages = new int[16];
+            for(int page = 0; page < numPages; page++)
+            {
+                if (!isZero(page, words))
+                {
+                    if (count == pages.length)
+                    {
+                        int[] bigger = new int[2 * count];
+                        System.arraycopy(pages, 0, bigger, 0, count);
+                        pages = bigger;
+                    }
+                    pages[count++] = page;
+                }
+            }//for
+        }
+
+        try
+        {
+            m_out.writeInt(MAGIC);
+            m_out.writeInt(kind);
+            m_out.writeInt(m_CPUs.length);
+            m_out.writeInt(CPU.NUMREG);
+            for(int i = 0; i < m_CPUs.length; i++)
+            {
+                int[] regs = m_CPUs[i].getRegisters();
+                for(int r = 0; r < CPU.NUMREG; r++)
+                {
+                    m_out.writeInt(regs[r]);
+                }
+            }
+            m_out.writeInt(count);
+            for(int i = 0; i < count; i++)
+            {
+                readPage(pages[i], words);
+                m_out.writeInt(pages[i]);
+                for(int w = 0; w < words.length; w++)
+                {
+                    m_out.writeInt(words[w]);
+                }
+            }
+            m_out.writeInt(END);
+            m_out.flush();
+            m_file.getFD().sync();
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not write checkpoint: " + e);
+            return -1;
+        }
+
+        m_needBase = false;
+        m_checkpoints++;
+        m_pagesWritten += count;
+        return count;
+    }//checkpoint
+
+    /**
+     * readPage
+     *
+     * copies a page of RAM without charging any latency.  The words past
+     * the end of the RAM in a partial last page are zero.
+     *
+     * @param page  the page number
+     * @param words receives the words of the page
+     */
+    private void readPage(int page, int[] words)
+    {
+        long addr = (long)page << RAM.DIRTY_PAGE_BITS;
+        int len = (int)Math.min(words.length, m_RAM.getCapacity() - addr);
+        m_RAM.getMemory().getBlock(addr, words, 0, len);
+        for(int i = len; i < words.length; i++)
+        {
+            words[i] = 0;
+        }
+    }//readPage
+
+    /**
+     * isZero
+     *
+     * @param page  the page number
+     * @param words scratch space for the words of the page
+     * @return true if every word of the page is zero
+     */
+    private boolean isZero(int page, int[] words)
+    {
+        readPage(page, words);
+        for(int i = 0; i < words.length; i++)
+        {
+            if (words[i] != 0) return false;
+        }
+        return true;
+    }//isZero
+
+    /**
+     * close
+     *
+     * closes the checkpoint file
+     */
+    public void close()
+    {
+        try
+        {
+            if (m_out != null) m_out.close();
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not close checkpoint file: " + e);
+        }
+        m_out = null;
+        m_file = null;
+    }//close
+
+    /**
+     * getCheckpointCount
+     *
+     * @return the number of checkpoints written by this checkpointer
+     */
+    public long getCheckpointCount()
+    {
+        return m_checkpoints;
+    }
+
+    /**
+     * getPagesWritten
+     *
+     * @return the number of pages written by this checkpointer
+     */
+    public long getPagesWritten()
+    {
+        return m_pagesWritten;
+    }
+
+    /**
+     * restore
+     *
+     * rebuilds a machine from a checkpoint file by replaying the base and
+     * every complete delta after it.  The RAM should be freshly created (so
+     * all zero) and the same size as the one that was checkpointed, and
+     * there should be as many CPUs.
+     *
+     * @param fileName the checkpoint file
+     * @param ram      the RAM to restore into
+     * @param cpus     the CPUs to restore the registers of
+     * @return the number of checkpoints replayed or a negative failure code
+     */
+    public static int restore(String fileName, RAM ram, CPU[] cpus)
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                                         new FileInputStream(fileName)));
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not open checkpoint file "
+                               + fileName + ": " + e);
+            return -1;
+        }
+
+        int replayed = 0;
+        int[][] regs = new int[cpus.length][CPU.NUMREG];
+        try
+        {
+            while (true)
+            {
+                //Stop cleanly at the end of the file
+                int magic;
+                try
+                {
+                    magic = in.readInt();
+                }
+                catch(EOFException e)
+                {
+                    break;
+                }
+                if (magic != MAGIC)
+                {
+                    System.out.println("ERROR: " + fileName
+                                       + " is not a checkpoint file");
+                    return -2;
+                }
+                in.readInt();       // kind
+                if ((in.readInt() != cpus.length)
+                    || (in.readInt() != CPU.NUMREG))
+                {
+                    System.out.println("ERROR: " + fileName
+                                       + " is a checkpoint of another machine");
+                    return -3;
+                }
+
+                //Read the whole record before applying any of it
+                int[][] recRegs = new int[cpus.length][CPU.NUMREG];
+                for(int i = 0; i < cpus.length; i++)
+                {
+                    for(int r = 0; r < CPU.NUMREG; r++)
+                    {
+                        recRegs[i][r] = in.readInt();
+                    }
+                }
+                int count = in.readInt();
+                int[] pages = new int[count];
+                int[][] words = new int[count][RAM.DIRTY_PAGE_SIZE];
+                for(int i = 0; i < count; i++)
+                {
+                    pages[i] = in.readInt();
+                    for(int w = 0; w < RAM.DIRTY_PAGE_SIZE; w++)
+                    {
+                        words[i][w] = in.readInt();
+                    }
+                }
+                if (in.readInt() != END)
+                {
+                    System.out.println("ERROR: " + fileName
+                                       + " has a damaged checkpoint");
+                    return -2;
+                }
+
+                for(int i = 0; i < count; i++)
+                {
+                    long addr = (long)pages[i] << RAM.DIRTY_PAGE_BITS;
+                    int len = (int)Math.min(RAM.DIRTY_PAGE_SIZE,
+                                            ram.getCapacity() - addr);
+                    ram.getMemory().setBlock(addr, words[i], 0, len);
+                }
+                regs = recRegs;
+                replayed++;
+            }//while
+        }
+        catch(EOFException e)
+        {
+            //The last record was not finished so it is left out
+        }
+        catch(IOException e)
+        {
+            System.out.println("\nError reading from checkpoint file: "
+                               + fileName);
+            return -4;
+        }
+        finally
+        {
+            try
+            {
+                in.close();
+            }
+            catch(IOException e)
+            {/* do nothing*/ }
+        }
+
+        //Load the registers and drop anything decoded from the old RAM
+        if (replayed > 0)
+        {
+            for(int i = 0; i < cpus.length; i++)
+            {
+                System.arraycopy(regs[i], 0, cpus[i].getRegisters(), 0,
+                                 CPU.NUMREG);
+                cpus[i].getDecodeCache().flush();
+            }
+        }
+        return replayed;
+    }//restore
+
+};//class Checkpointer
@@ -0,0 +1,108 @@
+package sos;
+
+/**
+ * This class is the base of every basic block of Pidgin code translated by
+ * the {@link BlockCompiler}.  A block is a straight run of register-only
+ * instructions, optionally ending in a branch.  Each block is turned into
+ * JVM bytecode by a {@link BlockClassWriter} as a subclass of this one whose
+ * execute method does the work of the block, so the JIT compiles a hot
+ * Pidgin loop into machine code just as it would a Java one.
+ *
+ * Generated blocks are defined by their own class loader, so everything
+ * they need from this class is public or protected.
+ *
+ * @see BlockCompiler
+ * @see BlockClassWriter
+ * @see CPU
+ */
+public abstract class CompiledBlock
+{
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the address of the first instruction in the block
+     **/
+    private int m_start;
+
+    /**
+     * the number of instructions in the block (including the ending branch)
+     **/
+    private int m_length;
+
+    /**
+     * the (absolute) value of the program counter after the block when its
+     * ending branch is not taken or there is no branch at all
+     **/
+    private int m_fallPC;
+
+    /**
+     * the blocks (if they have been compiled) that follow a taken branch and
+     * that start at m_fallPC.  These are filled in lazily so that hot loops
+     * jump straight from one block to the next.
+     **/
+    CompiledBlock m_taken = null;
+    CompiledBlock m_fall = null;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * CompiledBlock ctor
+     *
+     * @param start  the address of the first instruction in the block
+     * @param length the number of instructions in the block
+     * @param fallPC the program counter when no branch is taken
+     */
+    protected CompiledBlock(int start, int length, int fallPC)
+    {
+        m_start = start;
+        m_length = length;
+        m_fallPC = fallPC;
+    }//ctor
+
+    /**
+     * getStart
+     *
+     * @return the address of the first instruction in the block
+     */
+    public int getStart()
+    {
+        return m_start;
+    }
+
+    /**
+     * getLength
+     *
+     * @return the number of instructions in the block (including the ending
+     *         branch)
+     */
+    public int getLength()
+    {
+        return m_length;
+    }
+
+    /**
+     * getFallPC
+     *
+     * @return the program counter when the ending branch is not taken
+     */
+    public int getFallPC()
+    {
+        return m_fallPC;
+    }
+
+    /**
+     * execute
+     *
+     * runs the block against the given registers.  The program counter
+     * register is not touched; the caller stores the returned value in it.
+     *
+     * @param r the register file of the CPU
+     * @return the value of the program counter after the block
+     */
+    public abstract int execute(int[] r);
+
+};//class CompiledBlock
@@ -0,0 +1,47 @@
+package sos;
+
+/**
+ * This class simulates a console.  Writing prints a value; reading takes
+ * the next value from the input it was given (or 0 once the input has run
+ * out).  The address of a request is ignored.
+ *
+ * @see Device
+ */
+public class ConsoleDevice extends Device
+{
+    /**
+     * the default time taken to print or read a value (1 ms)
+     **/
+    public static final long DEFAULT_LATENCY = 1000000;
+
+    /**
+     * the values read from the console and the next one to read
+     **/
+    private int m_input[];
+    private int m_next = 0;
+
+    /**
+     * ConsoleDevice ctor
+     *
+     * @param input the values that reads will return in turn
+     */
+    public ConsoleDevice(int[] input)
+    {
+        super("console", DEFAULT_LATENCY, DEFAULT_QUEUE_SIZE);
+        m_input = input;
+    }//ctor
+
+    protected void service(IORequest req)
+    {
+        if (req.m_op == IORequest.OP_WRITE)
+        {
+            System.out.println("CONSOLE: " + req.m_value);
+        }
+        else
+        {
+            req.m_value = (m_next < m_input.length) ? m_input[m_next++] : 0;
+        }
+        req.m_success = true;
+    }//service
+
+};//class ConsoleDevice
@@ -0,0 +1,646 @@
+package sos;
+
+/**
+ * This class holds instructions that have already been fetched from the
+ * simulated RAM in a decoded form so that the CPU does not have to build a
+ * new instruction array for every instruction it executes.
+ *
+ * The cache is direct-mapped and indexed by the address of the instruction.
+ * Each entry is spread across a set of parallel arrays (opcode and the three
+ * arguments) so that a lookup never allocates.  The RAM notifies the cache
+ * whenever a word is written so that entries covering overwritten code are
+ * thrown away.
+ *
+ * @see CPU
+ * @see RAM
+ */
+public class DecodeCache
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the default number of entries in the cache (must be a power of two)
+     **/
+    public static final int DEFAULT_SIZE = 1024;
+
+    /**
+     * tag value used to mark an empty entry
+     **/
+    private static final int EMPTY = -1;
+
+    /**
+     * the largest number of words that a single (possibly fused) entry can
+     * cover
+     **/
+    private static final int MAX_SPAN = 3 * CPU.INSTRSIZE;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * The RAM that instructions are decoded from
+     **/
+    private RAM m_RAM = null;
+
+    /**
+     * used to turn an address into an index into the entry arrays
+     **/
+    private int m_mask;
+
+    /**
+     * the address of the instruction held by each entry (or EMPTY)
+     **/
+    private int m_tags[];
+
+    /**
+     * the decoded opcode and arguments of each entry
+     **/
+    private int m_opcodes[];
+    private int m_args1[];
+    private int m_args2[];
+    private int m_args3[];
+
+    /**
+     * the operation the CPU actually dispatches on for each entry.  This is
+     * the same as the opcode unless the entry starts a group of instructions
+     * that were fused into one internal operation, in which case the
+     * arguments of the second instruction are kept in m_args4..m_args6.
+     **/
+    private int m_fusedOps[];
+    private int m_args4[];
+    private int m_args5[];
+    private int m_args6[];
+
+    /**
+     * true for each entry whose instruction is illegal or names a register
+     * other than the general registers (R0 - R4) as an operand.  Those
+     * instructions can not be run by the CPU's register-hoisting loop.
+     **/
+    private boolean m_special[];
+
+    /**
+     * specifies whether common instruction groups are fused when decoded
+     **/
+    private boolean m_fusion = false;
+
+    /**
+     * the lowest and highest instruction addresses decoded since the last
+     * flush.  Writes outside of this window can not touch a cached entry.
+     **/
+    private int m_lowAddr;
+    private int m_highAddr;
+
+    /**
+     * incremented every time decoded code is overwritten (or the cache is
+     * flushed).  Anything derived from decoded instructions can compare
+     * this value to find out if it has gone stale.
+     **/
+    private int m_generation = 0;
+
+    /**
+     * the generation in which each entry was pinned (see {@link #pin}).  An
+     * entry is only pinned while this matches m_generation.
+     **/
+    private int m_pinned[];
+
+    /**
+     * the lowest and highest addresses of pinned entries that have since
+     * been replaced by other instructions.  Something derived from them may
+     * still be in use, so writes to them still change the generation.
+     **/
+    private int m_orphanLow;
+    private int m_orphanHigh;
+
+    /**
+     * statistics that describe how well the cache is working
+     **/
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_invalidations = 0;
+    private long m_fusions = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * DecodeCache ctor
+     *
+     * @param ram  the RAM to decode instructions from
+     * @param size the number of entries in the cache (rounded up to a power
+     *             of two)
+     */
+    public DecodeCache(RAM ram, int size)
+    {
+        int entries = 1;
+        while (entries < size)
+        {
+            entries <<= 1;
+        }
+
+        m_RAM = ram;
+        m_mask = entries - 1;
+        m_tags = new int[entries];
+        m_opcodes = new int[entries];
+        m_args1 = new int[entries];
+        m_args2 = new int[entries];
+        m_args3 = new int[entries];
+        m_fusedOps = new int[entries];
+        m_args4 = new int[entries];
+        m_args5 = new int[entries];
+        m_args6 = new int[entries];
+        m_special = new boolean[entries];
+        m_pinned = new int[entries];
+        flush();
+    }//ctor
+
+    /**
+     * lookup
+     *
+     * finds the entry holding the instruction at the given address, decoding
+     * it from RAM if it is not already cached
+     *
+     * @param pc the address of the instruction
+     * @return the index of the entry holding the instruction
+     */
+    public int lookup(int pc)
+    {
+        int slot = (pc >>> 2) & m_mask;
+        if (m_tags[slot] == pc)
+        {
+            m_hits++;
+            return slot;
+        }
+
+        //Decode the instruction and remember it for next time
+        m_misses++;
+        if ((m_tags[slot] != EMPTY) && (m_pinned[slot] == m_generation))
+        {
+            orphan(m_tags[slot]);
+        }
+        m_pinned[slot] = m_generation - 1;
+        int[] instr = m_RAM.fetch(pc);
+        m_opcodes[slot] = instr[0];
+        m_args1[slot] = instr[1];
+        m_args2[slot] = instr[2];
+        m_args3[slot] = instr[3];
+        m_fusedOps[slot] = instr[0];
+        m_special[slot] = isSpecial(instr[0], instr[1], instr[2], instr[3]);
+        m_tags[slot] = pc;
+        if (m_fusion)
+        {
+            fuse(slot, pc);
+        }
+
+        if (pc < m_lowAddr) m_lowAddr = pc;
+        if (pc > m_highAddr) m_highAddr = pc;
+
+        return slot;
+    }//lookup
+
+    /**
+     * getTags
+     *
+     * gives a loop that looks up every instruction it runs the tags
+     * directly, so that it can check for a hit itself and only call lookup
+     * on a miss.  Such a loop must report its hits with addHits.
+     *
+     * @return the address held by each entry (or EMPTY).  The entry for an
+     *         address is at index (address >>> 2) & getMask().
+     */
+    int[] getTags()
+    {
+        return m_tags;
+    }
+
+    /**
+     * getMask
+     *
+     * @return the mask that turns (address >>> 2) into an entry index
+     */
+    int getMask()
+    {
+        return m_mask;
+    }
+
+    /**
+     * addHits
+     *
+     * counts hits that were found without calling lookup (see getTags)
+     *
+     * @param hits the number of hits
+     */
+    void addHits(long hits)
+    {
+        m_hits += hits;
+    }
+
+    /**
+     * isSpecial
+     *
+     * @return true if the given instruction is illegal or uses a register
+     *         other than R0 - R4 as an operand
+     */
+    private boolean isSpecial(int op, int a1, int a2, int a3)
+    {
+        switch(op)
+        {
+            case CPU.BRANCH:
+            case CPU.TRAP:
+                return false;
+            case CPU.SET:
+            case CPU.POP:
+            case CPU.PUSH:
+                return !isGenReg(a1);
+            case CPU.COPY:
+            case CPU.BNE:
+            case CPU.BLT:
+            case CPU.LOAD:
+            case CPU.SAVE:
+                return !isGenReg(a1) || !isGenReg(a2);
+            case CPU.ADD:
+            case CPU.SUB:
+            case CPU.MUL:
+            case CPU.DIV:
+                return !isGenReg(a1) || !isGenReg(a2) || !isGenReg(a3);
+            default:
+                return true;
+        }//switch
+    }//isSpecial
+
+    /**
+     * isGenReg
+     *
+     * @return true if the given register index is a general register
+     */
+    private boolean isGenReg(int reg)
+    {
+        return (reg >= 0) && (reg < CPU.NUMGENREG);
+    }//isGenReg
+
+    /**
+     * fuse
+     *
+     * checks whether the instruction just decoded into the given entry starts
+     * one of the common Pidgin idioms and, if so, replaces the entry's
+     * operation with the matching fused operation.  Only instructions that
+     * use nothing but the general registers are fused.  (An instruction that
+     * writes the PC would mean the instructions after it are not the ones
+     * that get run, and one that writes BASE or LIM has to be seen by the
+     * CPU on its own.)
+     *
+     * @param slot the entry holding the first instruction
+     * @param pc   the address of the first instruction
+     * @see CPU#ADD_BNE
+     */
+    private void fuse(int slot, int pc)
+    {
+        //Don't look past the end of RAM
+        if (pc + MAX_SPAN > m_RAM.getSize())
+        {
+            return;
+        }
+
+        int op = m_opcodes[slot];
+        int[] next = m_RAM.fetch(pc + CPU.INSTRSIZE);
+        int fused = op;
+
+        if (m_special[slot] || isSpecial(next[0], next[1], next[2], next[3]))
+        {
+            return;
+        }
+        else if ((op == CPU.ADD) && (next[0] == CPU.BNE))
+        {
+            fused = CPU.ADD_BNE;
+        }
+        else if ((op == CPU.SUB) && (next[0] == CPU.BNE))
+        {
+            fused = CPU.SUB_BNE;
+        }
+        else if ((op == CPU.POP) && (next[0] == CPU.COPY))
+        {
+            fused = CPU.POP_COPY;
+        }
+        else if ((op == CPU.SET) && (next[0] == CPU.PUSH))
+        {
+            //The exit sequence added by Program.load is SET, PUSH, TRAP
+            int[] third = m_RAM.fetch(pc + 2 * CPU.INSTRSIZE);
+            fused = (third[0] == CPU.TRAP) ? CPU.SET_PUSH_TRAP : CPU.SET_PUSH;
+        }
+
+        if (fused != op)
+        {
+            m_fusedOps[slot] = fused;
+            m_args4[slot] = next[1];
+            m_args5[slot] = next[2];
+            m_args6[slot] = next[3];
+            m_fusions++;
+        }
+    }//fuse
+
+    /**
+     * setFusion
+     *
+     * turns instruction fusion on or off.  The cache is flushed so that
+     * every instruction is decoded again under the new setting.
+     *
+     * @param enabled true to fuse common instruction groups
+     */
+    public void setFusion(boolean enabled)
+    {
+        m_fusion = enabled;
+        flush();
+    }//setFusion
+
+    /**
+     * getFusedOpcode
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return the operation to dispatch on for the given entry.  This is
+     *         either the opcode or one of the fused operations defined in
+     *         the CPU.
+     */
+    public int getFusedOpcode(int slot)
+    {
+        return m_fusedOps[slot];
+    }
+
+    /**
+     * getArg4
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return the first argument of the second instruction in a fused entry
+     */
+    public int getArg4(int slot)
+    {
+        return m_args4[slot];
+    }
+
+    /**
+     * getArg5
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return the second argument of the second instruction in a fused entry
+     */
+    public int getArg5(int slot)
+    {
+        return m_args5[slot];
+    }
+
+    /**
+     * getArg6
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return the third argument of the second instruction in a fused entry
+     */
+    public int getArg6(int slot)
+    {
+        return m_args6[slot];
+    }
+
+    /**
+     * isSpecial
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return true if the instruction in the given entry is illegal or uses
+     *         a register other than R0 - R4 as an operand
+     */
+    public boolean isSpecial(int slot)
+    {
+        return m_special[slot];
+    }
+
+    /**
+     * getOpcode
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return the opcode of the instruction in the given entry
+     */
+    public int getOpcode(int slot)
+    {
+        return m_opcodes[slot];
+    }
+
+    /**
+     * getArg1
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return the first argument of the instruction in the given entry
+     */
+    public int getArg1(int slot)
+    {
+        return m_args1[slot];
+    }
+
+    /**
+     * getArg2
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return the second argument of the instruction in the given entry
+     */
+    public int getArg2(int slot)
+    {
+        return m_args2[slot];
+    }
+
+    /**
+     * getArg3
+     *
+     * @param slot an index returned by {@link #lookup}
+     * @return the third argument of the instruction in the given entry
+     */
+    public int getArg3(int slot)
+    {
+        return m_args3[slot];
+    }
+
+    /**
+     * invalidate
+     *
+     * discards any cached instruction that contains the given address.  This
+     * is called by the RAM every time a word is written.
+     *
+     * @param addr the address that was written
+     */
+    public void invalidate(int addr)
+    {
+        //Most writes are to the stack or heap so quickly skip those
+        if ((addr < m_lowAddr) || (addr > m_highAddr + MAX_SPAN - 1))
+        {
+            return;
+        }
+
+        //Any entry starting in the MAX_SPAN words before (and including) the
+        //address may contain it
+        boolean changed = (addr >= m_orphanLow) && (addr <= m_orphanHigh);
+        for(int pc = addr - MAX_SPAN + 1; pc <= addr; pc++)
+        {
+            int slot = (pc >>> 2) & m_mask;
+            if (m_tags[slot] == pc)
+            {
+                m_tags[slot] = EMPTY;
+                m_invalidations++;
+                changed = true;
+            }
+        }//for
+        if (changed)
+        {
+            nextGeneration();
+        }
+    }//invalidate
+
+    /**
+     * invalidateRange
+     *
+     * throws away any entries that contain words in the given range of
+     * addresses because those words have just been overwritten
+     *
+     * @param addr the address of the first word written
+     * @param len  the number of words written
+     */
+    public void invalidateRange(int addr, int len)
+    {
+        int last = addr + len - 1;
+        if ((len <= 0) || (last < m_lowAddr)
+            || (addr > m_highAddr + MAX_SPAN - 1))
+        {
+            return;
+        }
+
+        //Flushing is cheaper than checking more addresses than there are
+        //entries
+        if (len > m_mask)
+        {
+            flush();
+            return;
+        }
+
+        boolean changed = (last >= m_orphanLow) && (addr <= m_orphanHigh);
+        for(int pc = addr - MAX_SPAN + 1; pc <= last; pc++)
+        {
+            int slot = (pc >>> 2) & m_mask;
+            if (m_tags[slot] == pc)
+            {
+                m_tags[slot] = EMPTY;
+                m_invalidations++;
+                changed = true;
+            }
+        }//for
+        if (changed)
+        {
+            nextGeneration();
+        }
+    }//invalidateRange
+
+    /**
+     * flush
+     *
+     * discards every entry in the cache
+     */
+    public void flush()
+    {
+        for(int i = 0; i <= m_mask; i++)
+        {
+            m_tags[i] = EMPTY;
+        }
+        m_lowAddr = Integer.MAX_VALUE;
+        m_highAddr = Integer.MIN_VALUE;
+        nextGeneration();
+    }//flush
+
+    /**
+     * pin
+     *
+     * marks an entry as one that something else (a compiled block) has
+     * been derived from.  Until the generation next changes, a write to its
+     * instruction changes the generation even if the entry has been
+     * replaced in the meantime.
+     *
+     * @param slot an index returned by {@link #lookup}
+     */
+    public void pin(int slot)
+    {
+        m_pinned[slot] = m_generation;
+    }
+
+    /**
+     * orphan
+     *
+     * remembers the address of a pinned entry that is being replaced
+     *
+     * @param pc the address of the instruction in the entry
+     */
+    private void orphan(int pc)
+    {
+        if (pc < m_orphanLow) m_orphanLow = pc;
+        if (pc + MAX_SPAN - 1 > m_orphanHigh) m_orphanHigh = pc + MAX_SPAN - 1;
+    }//orphan
+
+    /**
+     * nextGeneration
+     *
+     * moves on to a new generation, which unpins every entry
+     */
+    private void nextGeneration()
+    {
+        m_generation++;
+        m_orphanLow = Integer.MAX_VALUE;
+        m_orphanHigh = Integer.MIN_VALUE;
+    }//nextGeneration
+
+    /**
+     * getGeneration
+     *
+     * @return a counter that changes whenever decoded code (or code that a
+     *         pinned entry held) has been overwritten
+     */
+    public int getGeneration()
+    {
+        return m_generation;
+    }
+
+    /**
+     * getHits
+     *
+     * @return the number of lookups that found an already decoded instruction
+     */
+    public long getHits()
+    {
+        return m_hits;
+    }
+
+    /**
+     * getMisses
+     *
+     * @return the number of lookups that had to decode from RAM
+     */
+    public long getMisses()
+    {
+        return m_misses;
+    }
+
+    /**
+     * getFusions
+     *
+     * @return the number of instruction groups that have been fused
+     */
+    public long getFusions()
+    {
+        return m_fusions;
+    }
+
+    /**
+     * getInvalidations
+     *
+     * @return the number of entries discarded because their code was
+     *         overwritten
+     */
+    public long getInvalidations()
+    {
+        return m_invalidations;
+    }
+
+};//class DecodeCache
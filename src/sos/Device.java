@@ -0,0 +1,240 @@
+package sos;
+
+import java.util.concurrent.*;
+
+/**
+ * This class is the base of the simulated I/O devices.  Each device has a
+ * queue of requests that is serviced, one request at a time, by a host
+ * thread of its own.  Servicing a request takes the device's latency and
+ * the completed request is then posted to the CPU that made it as an
+ * interrupt, so the CPU can run other processes while the I/O is
+ * outstanding.
+ *
+ * @see SOS#registerDevice
+ * @see ConsoleDevice
+ * @see DiskDevice
+ */
+public abstract class Device
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the default most requests that may wait at a device
+     **/
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the name of the device used when printing statistics
+     **/
+    private String m_name;
+
+    /**
+     * the id the SOS gave the device (or -1)
+     **/
+    private int m_id = -1;
+
+    /**
+     * the host time (in nanoseconds) taken to service each request
+     **/
+    private long m_latency;
+
+    /**
+     * the requests waiting to be serviced
+     **/
+    private ArrayBlockingQueue<IORequest> m_queue;
+
+    /**
+     * the thread that services the requests
+     **/
+    private Thread m_thread = null;
+
+    /**
+     * statistics describing the device.  The queue depth is sampled each
+     * time a request is submitted; the latency from submission to
+     * completion is recorded on the device thread.
+     **/
+    private Histogram m_depths = new Histogram();
+    private Histogram m_latencies = new Histogram();
+    private long m_rejected = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * Device ctor
+     *
+     * @param name      the name of the device
+     * @param latency   the host nanoseconds taken to service a request
+     * @param queueSize the most requests that may wait at the device
+     */
+    public Device(String name, long latency, int queueSize)
+    {
+        m_name = name;
+        m_latency = latency;
+        m_queue = new ArrayBlockingQueue<IORequest>(Math.max(queueSize, 1));
+    }//ctor
+
+    /**
+     * service
+     *
+     * carries out a request on the device thread.  A read sets m_value;
+     * either kind sets m_success.
+     *
+     * @param req the request
+     */
+    protected abstract void service(IORequest req);
+
+    /**
+     * start
+     *
+     * starts the thread that services the device's requests
+     *
+     * @param id the id the SOS gave the device
+     */
+    public void start(int id)
+    {
+        m_id = id;
+        m_thread = new Thread(new Runnable() {
+            public void run()
+            {
+                serviceLoop();
+            }
+        }, "device-" + m_name);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }//start
+
+    /**
+     * stop
+     *
+     * stops the device thread (requests still waiting are dropped)
+     */
+    public void stop()
+    {
+        if (m_thread != null)
+        {
+            m_thread.interrupt();
+            try
+            {
+                m_thread.join();
+            }
+            catch(InterruptedException ie)
+            {/* do nothing*/ }
+            m_thread = null;
+        }
+    }//stop
+
+    /**
+     * submit
+     *
+     * queues a request at the device.  This never blocks.
+     *
+     * @param req the request
+     * @return true if the request was queued, false if the queue is full
+     */
+    public synchronized boolean submit(IORequest req)
+    {
+        req.m_device = this;
+        req.m_submitted = System.nanoTime();
+        if (!m_queue.offer(req))
+        {
+            m_rejected++;
+            return false;
+        }
+        m_depths.record(m_queue.size());
+        return true;
+    }//submit
+
+    /**
+     * serviceLoop
+     *
+     * services requests in the order they were submitted until the device
+     * is stopped
+     */
+    private void serviceLoop()
+    {
+        try
+        {
+            while (true)
+            {
+                IORequest req = m_queue.take();
+                if (m_latency > 0)
+                {
+                    Thread.sleep(m_latency / 1000000,
+                                 (int)(m_latency % 1000000));
+                }
+                service(req);
+                req.m_completed = System.nanoTime();
+                m_latencies.record(req.m_completed - req.m_submitted);
+                req.m_CPU.postInterrupt(req);
+            }
+        }
+        catch(InterruptedException ie)
+        {
+            //the device has been stopped
+        }
+    }//serviceLoop
+
+    /**
+     * getName
+     *
+     * @return the name of the device
+     */
+    public String getName()
+    {
+        return m_name;
+    }
+
+    /**
+     * getId
+     *
+     * @return the id the SOS gave the device (or -1)
+     */
+    public int getId()
+    {
+        return m_id;
+    }
+
+    /**
+     * getQueueDepths
+     *
+     * @return the number of requests at the device each time one was
+     *         submitted
+     */
+    public Histogram getQueueDepths()
+    {
+        return m_depths;
+    }
+
+    /**
+     * getLatencies
+     *
+     * @return the host nanoseconds from submission to completion of each
+     *         request
+     */
+    public Histogram getLatencies()
+    {
+        return m_latencies;
+    }
+
+    /**
+     * formatStats
+     *
+     * @return the statistics of the device as lines of text
+     */
+    public String formatStats()
+    {
+        return m_name + ": requests=" + m_latencies.getCount()
+            + " rejected=" + m_rejected
+            + "\n  queue depth " + m_depths.formatStats()
+            + "\n  latency ns  " + m_latencies.formatStats();
+    }//formatStats
+
+};//class Device
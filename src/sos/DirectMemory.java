@@ -0,0 +1,279 @@
+package sos;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * This class holds the words of a RAM outside of the Java heap, so that
+ * machines with billions of words of memory do not slow down garbage
+ * collection.  The words live in a sparse scratch file that is mapped into
+ * memory and deleted straight away, so nothing is left behind when the
+ * host JVM exits.
+ *
+ * Mapping the file allocates nothing.  The host operating system hands
+ * out a zero-filled page the first time a page is touched, so the memory a
+ * machine costs grows with the pages its programs actually use rather
+ * than with its configured size, and reading a word that has never been
+ * written returns zero.
+ *
+ * Like HeapMemory this backend is meant for a single host thread.
+ *
+ * @see Memory
+ * @see RAM
+ */
+public class DirectMemory extends Memory
+{
+    /**
+     * each mapped region holds 2^REGION_BITS words (1 GB) since a single
+     * mapping can not be larger than 2 GB
+     **/
+    public static final int REGION_BITS = 28;
+    private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+    /**
+     * the number of words fill writes at a time
+     **/
+    private static final int FILL_WORDS = 1024;
+
+    /**
+     * the number of words in this memory
+     **/
+    private long m_capacity;
+
+    /**
+     * the mapped regions of the scratch file holding the words
+     **/
+    private IntBuffer m_regions[];
+
+    /**
+     * the constructor is private; use create
+     */
+    private DirectMemory()
+    {
+    }
+
+    /**
+     * create
+     *
+     * maps a new sparse scratch file large enough for the memory.  All of
+     * the words start as zero.
+     *
+     * @param capacity number of integers ("words") in memory
+     * @return the new memory or null if the scratch file could not be
+     *         created
+     */
+    public static DirectMemory create(long capacity)
+    {
+        DirectMemory mem = new DirectMemory();
+        File file = null;
+        RandomAccessFile raf = null;
+        try
+        {
+            file = File.createTempFile("sos", ".mem");
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(capacity * 4);
+            mem.map(raf.getChannel(), capacity);
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not create direct memory: " + e);
+            mem = null;
+        }
+
+        //The mappings stay valid once the file is closed and deleted
+        try
+        {
+            if (raf != null) raf.close();
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not close direct memory: " + e);
+        }
+        if ((file != null) && (!file.delete()))
+        {
+            file.deleteOnExit();
+        }
+        return mem;
+    }//create
+
+    /**
+     * map
+     *
+     * maps the regions of the scratch file
+     *
+     * @param channel  the scratch file
+     * @param capacity the number of words in the file
+     */
+    private void map(FileChannel channel, long capacity) throws IOException
+    {
+        m_capacity = capacity;
+        int count = (int)((capacity + REGION_MASK) >>> REGION_BITS);
+        m_regions = new IntBuffer[count];
+        for(int i = 0; i < count; i++)
+        {
+            long first = (long)i << REGION_BITS;
+            long words = Math.min(capacity - first, 1L << REGION_BITS);
+            MappedByteBuffer region =
+                channel.map(FileChannel.MapMode.READ_WRITE, first * 4,
+                            words * 4);
+            region.order(ByteOrder.nativeOrder());
+            m_regions[i] = region.asIntBuffer();
+        }
+    }//map
+
+    /**
+     * getCapacity
+     *
+     * @return the number of words in this memory
+     */
+    public long getCapacity()
+    {
+        return m_capacity;
+    }
+
+    /**
+     * get
+     *
+     * @param addr the address of the word to read
+     * @return the value of the word (zero if it has never been written)
+     */
+    public int get(long addr)
+    {
+        if ((addr < 0) || (addr >= m_capacity))
+        {
+            throw new ArrayIndexOutOfBoundsException("address " + addr);
+        }
+        return m_regions[(int)(addr >>> REGION_BITS)]
+            .get((int)(addr & REGION_MASK));
+    }
+
+    /**
+     * set
+     *
+     * @param addr the address of the word to write
+     * @param val  the new value of the word
+     */
+    public void set(long addr, int val)
+    {
+        if ((addr < 0) || (addr >= m_capacity))
+        {
+            throw new ArrayIndexOutOfBoundsException("address " + addr);
+        }
+        m_regions[(int)(addr >>> REGION_BITS)]
+            .put((int)(addr & REGION_MASK), val);
+    }
+
+    /**
+     * getBlock
+     *
+     * copies a run of words out of this memory a region at a time
+     *
+     * @param addr the address of the first word to read
+     * @param dst  the array receiving the words
+     * @param off  the index in dst of the first word
+     * @param len  the number of words to copy
+     */
+    public void getBlock(long addr, int[] dst, int off, int len)
+    {
+        checkRange(addr, len);
+        while (len > 0)
+        {
+            int n = run(addr, len);
+            region(addr).get(dst, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }//while
+    }//getBlock
+
+    /**
+     * setBlock
+     *
+     * copies a run of words into this memory a region at a time
+     *
+     * @param addr the address of the first word to write
+     * @param src  the array holding the words
+     * @param off  the index in src of the first word
+     * @param len  the number of words to copy
+     */
+    public void setBlock(long addr, int[] src, int off, int len)
+    {
+        checkRange(addr, len);
+        while (len > 0)
+        {
+            int n = run(addr, len);
+            region(addr).put(src, off, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }//while
+    }//setBlock
+
+    /**
+     * fill
+     *
+     * sets a run of words to the same value by copying a block of them at a
+     * time
+     *
+     * @param addr the address of the first word to write
+     * @param len  the number of words to write
+     * @param val  the value to write
+     */
+    public void fill(long addr, int len, int val)
+    {
+        checkRange(addr, len);
+        int[] block = new int[Math.min(len, FILL_WORDS)];
+        Arrays.fill(block, val);
+        while (len > 0)
+        {
+            int n = run(addr, Math.min(len, block.length));
+            region(addr).put(block, 0, n);
+            addr += n;
+            len -= n;
+        }//while
+    }//fill
+
+    /**
+     * run
+     *
+     * @param addr the address of the first word of a run
+     * @param len  the number of words in the run
+     * @return how many of those words lie in the region holding addr
+     */
+    private static int run(long addr, int len)
+    {
+        return (int)Math.min(len, (1L << REGION_BITS) - (addr & REGION_MASK));
+    }//run
+
+    /**
+     * region
+     *
+     * @param addr the address of a word
+     * @return the region holding the word, positioned at the word
+     */
+    private IntBuffer region(long addr)
+    {
+        IntBuffer region = m_regions[(int)(addr >>> REGION_BITS)];
+        region.position((int)(addr & REGION_MASK));
+        return region;
+    }//region
+
+    /**
+     * checkRange
+     *
+     * makes sure a run of words lies inside this memory
+     */
+    private void checkRange(long addr, int len)
+    {
+        if ((addr < 0) || (len < 0) || (addr + len > m_capacity))
+        {
+            throw new ArrayIndexOutOfBoundsException("address " + addr
+                                                     + " length " + len);
+        }
+    }//checkRange
+
+};//class DirectMemory
@@ -0,0 +1,51 @@
+package sos;
+
+/**
+ * This class simulates a disk that holds a fixed number of words.  Each
+ * request reads or writes the word at its address.
+ *
+ * @see Device
+ */
+public class DiskDevice extends Device
+{
+    /**
+     * the default time taken to read or write a word (100 microseconds)
+     **/
+    public static final long DEFAULT_LATENCY = 100000;
+
+    /**
+     * the words on the disk (only touched by the device thread)
+     **/
+    private int m_words[];
+
+    /**
+     * DiskDevice ctor
+     *
+     * @param size    the number of words on the disk
+     * @param latency the host nanoseconds taken to service a request
+     */
+    public DiskDevice(int size, long latency)
+    {
+        super("disk", latency, DEFAULT_QUEUE_SIZE);
+        m_words = new int[size];
+    }//ctor
+
+    protected void service(IORequest req)
+    {
+        if ((req.m_addr < 0) || (req.m_addr >= m_words.length))
+        {
+            req.m_success = false;
+            return;
+        }
+        if (req.m_op == IORequest.OP_WRITE)
+        {
+            m_words[req.m_addr] = req.m_value;
+        }
+        else
+        {
+            req.m_value = m_words[req.m_addr];
+        }
+        req.m_success = true;
+    }//service
+
+};//class DiskDevice
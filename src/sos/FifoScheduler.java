@@ -0,0 +1,57 @@
+package sos;
+
+import java.util.ArrayDeque;
+
+/**
+ * This scheduler runs processes in the order they became ready, each until
+ * it stops on its own.  It is never preempted, so it has the least
+ * switching overhead but a long process holds up every process behind it.
+ *
+ * @see Scheduler
+ */
+public class FifoScheduler implements Scheduler
+{
+    /**
+     * the ready processes in the order they will run
+     **/
+    private ArrayDeque<ProcessControlBlock> m_queue =
+        new ArrayDeque<ProcessControlBlock>();
+
+    public String getName()
+    {
+        return "FIFO";
+    }
+
+    public void add(ProcessControlBlock pcb)
+    {
+        m_queue.offer(pcb);
+    }
+
+    public void preempted(ProcessControlBlock pcb)
+    {
+        //a FIFO process is never given a quantum to use up, so if it is
+        //stopped anyway it keeps its place at the front of the queue
+        m_queue.offerFirst(pcb);
+    }
+
+    public ProcessControlBlock next()
+    {
+        return m_queue.poll();
+    }
+
+    public boolean remove(ProcessControlBlock pcb)
+    {
+        return m_queue.remove(pcb);
+    }
+
+    public int size()
+    {
+        return m_queue.size();
+    }
+
+    public long getQuantum(ProcessControlBlock pcb)
+    {
+        return Long.MAX_VALUE;
+    }
+
+};//class FifoScheduler
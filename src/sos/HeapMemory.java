@@ -0,0 +1,106 @@
+package sos;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the words of a RAM in an ordinary Java array.  It is the
+ * fastest backend but is limited to a single host thread and to memories
+ * that fit comfortably on the Java heap.
+ *
+ * @see Memory
+ * @see RAM
+ */
+public class HeapMemory extends Memory
+{
+    /**
+     * This array contains the simulated RAM itself
+     **/
+    private int m_mem[] = null;
+
+    /**
+     * the constructor does nothing special.  (Java arrays start out zeroed.)
+     *
+     * @param size number of integers ("words") in memory
+     */
+    public HeapMemory(int size)
+    {
+        m_mem = new int[size];
+    }//ctor
+
+    /**
+     * getCapacity
+     *
+     * @return the length of the array
+     */
+    public long getCapacity()
+    {
+        return m_mem.length;
+    }
+
+    /**
+     * get
+     *
+     * @param addr the address of the word to read
+     * @return the value of the word
+     */
+    public int get(long addr)
+    {
+        return m_mem[(int)addr];
+    }
+
+    /**
+     * set
+     *
+     * @param addr the address of the word to write
+     * @param val  the new value of the word
+     */
+    public void set(long addr, int val)
+    {
+        m_mem[(int)addr] = val;
+    }
+
+    /**
+     * getBlock
+     *
+     * copies a run of words out of the array in one go
+     *
+     * @param addr the address of the first word to read
+     * @param dst  the array receiving the words
+     * @param off  the index in dst of the first word
+     * @param len  the number of words to copy
+     */
+    public void getBlock(long addr, int[] dst, int off, int len)
+    {
+        System.arraycopy(m_mem, (int)addr, dst, off, len);
+    }
+
+    /**
+     * setBlock
+     *
+     * copies a run of words into the array in one go
+     *
+     * @param addr the address of the first word to write
+     * @param src  the array holding the words
+     * @param off  the index in src of the first word
+     * @param len  the number of words to copy
+     */
+    public void setBlock(long addr, int[] src, int off, int len)
+    {
+        System.arraycopy(src, off, m_mem, (int)addr, len);
+    }
+
+    /**
+     * fill
+     *
+     * sets a run of words to the same value
+     *
+     * @param addr the address of the first word to write
+     * @param len  the number of words to write
+     * @param val  the value to write
+     */
+    public void fill(long addr, int len, int val)
+    {
+        Arrays.fill(m_mem, (int)addr, (int)addr + len, val);
+    }
+
+};//class HeapMemory
@@ -0,0 +1,168 @@
+package sos;
+
+/**
+ * This class collects a distribution of non-negative values (such as the
+ * times processes wait for the CPU) so that percentiles can be reported.
+ * Values are counted in log-linear buckets: each power of two is split into
+ * SUB_BUCKETS equal buckets, so a percentile is accurate to within about
+ * 1/SUB_BUCKETS of its value.  The buckets are allocated up front and
+ * recording a value never allocates.
+ */
+public class Histogram
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * each power of two is split into 2^SUB_BITS buckets
+     **/
+    public static final int SUB_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * enough buckets to hold any non-negative long
+     **/
+    private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the number of values that fell in each bucket
+     **/
+    private long m_counts[] = new long[NUM_BUCKETS];
+
+    /**
+     * summary statistics of every value recorded
+     **/
+    private long m_count = 0;
+    private long m_sum = 0;
+    private long m_max = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * record
+     *
+     * adds a value to the distribution
+     *
+     * @param value the value (negative values are counted as zero)
+     */
+    public void record(long value)
+    {
+        value = Math.max(value, 0);
+        m_counts[bucketOf(value)]++;
+        m_count++;
+        m_sum += value;
+        m_max = Math.max(m_max, value);
+    }//record
+
+    /**
+     * bucketOf
+     *
+     * @param value a non-negative value
+     * @return the index of the bucket that counts it
+     */
+    private static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int)value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }//bucketOf
+
+    /**
+     * lowestOf
+     *
+     * @param bucket the index of a bucket
+     * @return the smallest value counted by that bucket
+     */
+    private static long lowestOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket & (SUB_BUCKETS - 1);
+        return (1L << exp) | (sub << (exp - SUB_BITS));
+    }//lowestOf
+
+    /**
+     * getPercentile
+     *
+     * @param percent the percentile wanted (0 through 100)
+     * @return the smallest value that at least that percent of the values
+     *         are no bigger than (to the accuracy of the buckets)
+     */
+    public long getPercentile(double percent)
+    {
+        if (m_count == 0)
+        {
+            return 0;
+        }
+        long rank = (long)Math.ceil(percent / 100.0 * m_count);
+        rank = Math.max(rank, 1);
+        long seen = 0;
+        for(int i = 0; i < NUM_BUCKETS; i++)
+        {
+            seen += m_counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(lowestOf(i), m_max);
+            }
+        }
+        return m_max;
+    }//getPercentile
+
+    /**
+     * getCount
+     *
+     * @return the number of values recorded
+     */
+    public long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * getMean
+     *
+     * @return the average of the values recorded
+     */
+    public double getMean()
+    {
+        return (m_count == 0) ? 0.0 : (double)m_sum / m_count;
+    }
+
+    /**
+     * getMax
+     *
+     * @return the largest value recorded
+     */
+    public long getMax()
+    {
+        return m_max;
+    }
+
+    /**
+     * formatStats
+     *
+     * @return the mean, median, 90th and 99th percentiles and maximum as a
+     *         line of text
+     */
+    public String formatStats()
+    {
+        return "mean=" + Math.round(getMean()) + " p50=" + getPercentile(50)
+            + " p90=" + getPercentile(90) + " p99=" + getPercentile(99)
+            + " max=" + m_max;
+    }//formatStats
+
+};//class Histogram
@@ -0,0 +1,81 @@
+package sos;
+
+/**
+ * This class describes one request made to a simulated {@link Device}.  It
+ * is queued at the device, serviced on the device's own thread and then
+ * handed back to the CPU that made it as an interrupt.
+ *
+ * @see SOS#registerDevice
+ */
+public class IORequest
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the kinds of request
+     **/
+    public static final int OP_READ  = 0;
+    public static final int OP_WRITE = 1;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the device the request is for
+     **/
+    public Device m_device = null;
+
+    /**
+     * the process that made the request, the CPU it was running on and
+     * the CPU the completion interrupt goes to
+     **/
+    public ProcessControlBlock m_process = null;
+    public CPU m_CPU = null;
+
+    /**
+     * OP_READ or OP_WRITE, the device address and the value written (or
+     * read, once the request is complete)
+     **/
+    public int m_op = OP_READ;
+    public int m_addr = 0;
+    public int m_value = 0;
+
+    /**
+     * true if the device could carry out the request
+     **/
+    public boolean m_success = false;
+
+    /**
+     * the host time (System.nanoTime) the request was submitted and
+     * completed
+     **/
+    public long m_submitted = 0;
+    public long m_completed = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * IORequest ctor
+     *
+     * @param process the process making the request
+     * @param cpu     the CPU the completion interrupt goes to
+     * @param op      OP_READ or OP_WRITE
+     * @param addr    the device address
+     * @param value   the value to write (ignored for a read)
+     */
+    public IORequest(ProcessControlBlock process, CPU cpu, int op, int addr,
+                     int value)
+    {
+        m_process = process;
+        m_CPU = cpu;
+        m_op = op;
+        m_addr = addr;
+        m_value = value;
+    }//ctor
+
+};//class IORequest
@@ -0,0 +1,328 @@
+package sos;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class holds the words of a RAM in a memory-mapped file so that a
+ * simulated machine survives the host JVM.  Writes go straight into the
+ * host's page cache and reach the file whenever the host chooses (or when
+ * {@link #sync} is called).  Reopening a machine maps the file again, which
+ * takes the same time no matter how much memory the machine has.
+ *
+ * The file starts with a header holding a magic number, the byte order of
+ * the words, the capacity, a copy of the CPU registers (see
+ * {@link #saveRegisters}) and whether the machine has finished (see
+ * {@link #setExited}).  The words follow the header.
+ *
+ * Like HeapMemory this backend is meant for a single host thread.
+ *
+ * @see Memory
+ * @see RAM
+ */
+public class MappedMemory extends Memory
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * identifies a machine image file
+     **/
+    public static final int MAGIC = 0x534F534D;     // "SOSM"
+
+    //These constants define the layout of the header (in ints)
+    public static final int HDR_MAGIC    = 0;
+    public static final int HDR_ORDER    = 1;
+    public static final int HDR_CAPACITY = 2;       // two ints (a long)
+    public static final int HDR_REGS     = 4;
+    public static final int HDR_EXITED   = HDR_REGS + CPU.NUMREG;
+    public static final int HEADER_SIZE  = HDR_EXITED + 1;
+
+    /**
+     * values stored in the HDR_ORDER word
+     **/
+    private static final int ORDER_BIG    = 0;
+    private static final int ORDER_LITTLE = 1;
+
+    /**
+     * each mapped region holds 2^REGION_BITS words (1 GB) since a single
+     * mapping can not be larger than 2 GB
+     **/
+    public static final int REGION_BITS = 28;
+    private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the number of words in this memory
+     **/
+    private long m_capacity;
+
+    /**
+     * the file holding the memory and its header
+     **/
+    private RandomAccessFile m_file = null;
+    private MappedByteBuffer m_header = null;
+
+    /**
+     * the mapped regions of the file holding the words
+     **/
+    private MappedByteBuffer m_regions[];
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * the constructor is private; use create or open
+     */
+    private MappedMemory()
+    {
+    }
+
+    /**
+     * create
+     *
+     * creates (or replaces) a machine image file and maps it.  All of the
+     * words start as zero.
+     *
+     * @param fileName the file to hold the memory
+     * @param capacity number of integers ("words") in memory
+     * @return the new memory or null if the file could not be created
+     */
+    public static MappedMemory create(String fileName, long capacity)
+    {
+        MappedMemory mem = new MappedMemory();
+        try
+        {
+            mem.m_file = new RandomAccessFile(fileName, "rw");
+            mem.m_file.setLength(0);
+            mem.m_file.setLength((HEADER_SIZE + capacity) * 4);
+            mem.map(capacity, ByteOrder.nativeOrder());
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not create machine image "
+                               + fileName + ": " + e);
+            mem.close();
+            return null;
+        }
+
+        mem.m_header.putInt(HDR_MAGIC * 4, MAGIC);
+        mem.m_header.putInt(HDR_ORDER * 4,
+                            (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN)
+                            ? ORDER_BIG : ORDER_LITTLE);
+        mem.m_header.putLong(HDR_CAPACITY * 4, capacity);
+        return mem;
+    }//create
+
+    /**
+     * open
+     *
+     * maps an existing machine image file.  None of the memory is read.
+     *
+     * @param fileName the file holding the memory
+     * @return the memory or null if the file is missing or is not a machine
+     *         image
+     */
+    public static MappedMemory open(String fileName)
+    {
+        MappedMemory mem = new MappedMemory();
+        try
+        {
+            mem.m_file = new RandomAccessFile(fileName, "rw");
+            if (mem.m_file.length() < HEADER_SIZE * 4)
+            {
+                System.out.println("ERROR: " + fileName
+                                   + " is not a machine image");
+                mem.close();
+                return null;
+            }
+
+            //Check the header (which is always big-endian)
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE * 4);
+            mem.m_file.getChannel().read(header, 0);
+            long capacity = header.getLong(HDR_CAPACITY * 4);
+            if ((header.getInt(HDR_MAGIC * 4) != MAGIC)
+                || (capacity < 0)
+                || (mem.m_file.length() < (HEADER_SIZE + capacity) * 4))
+            {
+                System.out.println("ERROR: " + fileName
+                                   + " is not a machine image");
+                mem.close();
+                return null;
+            }
+
+            ByteOrder order = (header.getInt(HDR_ORDER * 4) == ORDER_BIG)
+                ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            mem.map(capacity, order);
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not open machine image "
+                               + fileName + ": " + e);
+            mem.close();
+            return null;
+        }
+
+        return mem;
+    }//open
+
+    /**
+     * map
+     *
+     * maps the header and the regions of the file
+     *
+     * @param capacity the number of words in the file
+     * @param order    the byte order of the words
+     */
+    private void map(long capacity, ByteOrder order) throws IOException
+    {
+        FileChannel channel = m_file.getChannel();
+        m_capacity = capacity;
+        m_header = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                               HEADER_SIZE * 4);
+
+        int count = (int)((capacity + REGION_MASK) >>> REGION_BITS);
+        m_regions = new MappedByteBuffer[count];
+        for(int i = 0; i < count; i++)
+        {
+            long first = (long)i << REGION_BITS;
+            long words = Math.min(capacity - first, 1L << REGION_BITS);
+            m_regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                       (HEADER_SIZE + first) * 4, words * 4);
+            m_regions[i].order(order);
+        }
+    }//map
+
+    /**
+     * getCapacity
+     *
+     * @return the number of words in the image (not counting the header)
+     */
+    public long getCapacity()
+    {
+        return m_capacity;
+    }
+
+    /**
+     * get
+     *
+     * @param addr the address of the word to read
+     * @return the value of the word
+     */
+    public int get(long addr)
+    {
+        return m_regions[(int)(addr >>> REGION_BITS)]
+            .getInt((int)(addr & REGION_MASK) << 2);
+    }
+
+    /**
+     * set
+     *
+     * writes a word into the mapped file (it reaches the disk when the
+     * image is synced or closed)
+     *
+     * @param addr the address of the word to write
+     * @param val  the new value of the word
+     */
+    public void set(long addr, int val)
+    {
+        m_regions[(int)(addr >>> REGION_BITS)]
+            .putInt((int)(addr & REGION_MASK) << 2, val);
+    }
+
+    /**
+     * saveRegisters
+     *
+     * stores a copy of the CPU registers in the header so that the machine
+     * can be resumed where it left off when the image is reopened
+     *
+     * @param regs the registers of the CPU
+     */
+    public void saveRegisters(int[] regs)
+    {
+        for(int i = 0; i < CPU.NUMREG; i++)
+        {
+            m_header.putInt((HDR_REGS + i) * 4, regs[i]);
+        }
+    }//saveRegisters
+
+    /**
+     * loadRegisters
+     *
+     * copies the registers saved by saveRegisters into the CPU registers
+     *
+     * @param regs the registers of the CPU
+     */
+    public void loadRegisters(int[] regs)
+    {
+        for(int i = 0; i < CPU.NUMREG; i++)
+        {
+            regs[i] = m_header.getInt((HDR_REGS + i) * 4);
+        }
+    }//loadRegisters
+
+    /**
+     * setExited
+     *
+     * records in the header whether the program in the image has finished,
+     * in which case its saved registers can not be resumed
+     *
+     * @param exited true if the program has exited or faulted
+     */
+    public void setExited(boolean exited)
+    {
+        m_header.putInt(HDR_EXITED * 4, exited ? 1 : 0);
+    }//setExited
+
+    /**
+     * hasExited
+     *
+     * @return true if the program in the image has finished
+     */
+    public boolean hasExited()
+    {
+        return m_header.getInt(HDR_EXITED * 4) != 0;
+    }
+
+    /**
+     * sync
+     *
+     * forces every word written so far out to the file
+     */
+    public void sync()
+    {
+        m_header.force();
+        for(int i = 0; i < m_regions.length; i++)
+        {
+            m_regions[i].force();
+        }
+    }//sync
+
+    /**
+     * close
+     *
+     * closes the file.  The mappings stay valid until they are garbage
+     * collected but the memory should not be used after this.
+     */
+    public void close()
+    {
+        try
+        {
+            if (m_file != null) m_file.close();
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not close machine image: " + e);
+        }
+        m_file = null;
+    }//close
+
+};//class MappedMemory
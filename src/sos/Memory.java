@@ -0,0 +1,105 @@
+package sos;
+
+/**
+ * This class is the storage behind a {@link RAM}.  The RAM looks after
+ * latency, ports and decode caches while a Memory simply holds the words.
+ * Addresses are longs so that a backend can hold more words than fit in a
+ * Java array.
+ *
+ * @see RAM
+ * @see HeapMemory
+ * @see SharedMemory
+ * @see DirectMemory
+ * @see MappedMemory
+ * @see SparseMemory
+ */
+public abstract class Memory
+{
+    /**
+     * getCapacity
+     *
+     * @return the number of words held by this memory
+     */
+    public abstract long getCapacity();
+
+    /**
+     * get
+     *
+     * @param addr the address of the word to read
+     * @return the value of the word
+     */
+    public abstract int get(long addr);
+
+    /**
+     * set
+     *
+     * @param addr the address of the word to write
+     * @param val  the new value of the word
+     */
+    public abstract void set(long addr, int val);
+
+    /**
+     * getBlock
+     *
+     * copies a run of words out of this memory
+     *
+     * @param addr the address of the first word to read
+     * @param dst  the array receiving the words
+     * @param off  the index in dst of the first word
+     * @param len  the number of words to copy
+     */
+    public void getBlock(long addr, int[] dst, int off, int len)
+    {
+        for(int i = 0; i < len; i++)
+        {
+            dst[off + i] = get(addr + i);
+        }
+    }//getBlock
+
+    /**
+     * setBlock
+     *
+     * copies a run of words into this memory
+     *
+     * @param addr the address of the first word to write
+     * @param src  the array holding the words
+     * @param off  the index in src of the first word
+     * @param len  the number of words to copy
+     */
+    public void setBlock(long addr, int[] src, int off, int len)
+    {
+        for(int i = 0; i < len; i++)
+        {
+            set(addr + i, src[off + i]);
+        }
+    }//setBlock
+
+    /**
+     * fill
+     *
+     * sets a run of words to the same value
+     *
+     * @param addr the address of the first word to write
+     * @param len  the number of words to write
+     * @param val  the value to write
+     */
+    public void fill(long addr, int len, int val)
+    {
+        for(int i = 0; i < len; i++)
+        {
+            set(addr + i, val);
+        }
+    }//fill
+
+    /**
+     * getOrdering
+     *
+     * @return the memory ordering of get and set (one of the RAM.ORDER_*
+     *         values)
+     */
+    public int getOrdering()
+    {
+        return RAM.ORDER_PLAIN;
+    }
+
+};//class Memory
@@ -0,0 +1,140 @@
+package sos;
+
+import java.util.ArrayDeque;
+
+/**
+ * This scheduler is a multilevel feedback queue.  New processes start in
+ * the top level, which has the shortest quantum.  A process that uses up
+ * its whole quantum drops a level, where the quantum is twice as long but
+ * it only runs when every level above is empty.  Short and interactive
+ * processes therefore finish quickly while long ones still get long slices
+ * with little switching.  Every so often all processes are moved back to
+ * the top level so that none of them starve.
+ *
+ * @see Scheduler
+ */
+public class MlfqScheduler implements Scheduler
+{
+    /**
+     * the default number of levels
+     **/
+    public static final int DEFAULT_LEVELS = 3;
+
+    /**
+     * the number of processes picked between moving every process back to
+     * the top level
+     **/
+    public static final int BOOST_PERIOD = 1000;
+
+    /**
+     * the ready processes of each level in the order they will run
+     **/
+    private ArrayDeque<ProcessControlBlock> m_levels[];
+
+    /**
+     * the quantum of the top level (each level below doubles it)
+     **/
+    private long m_quantum;
+
+    /**
+     * the number of processes picked since the last boost
+     **/
+    private int m_picks = 0;
+
+    /**
+     * the number of processes on all of the levels
+     **/
+    private int m_size = 0;
+
+    /**
+     * MlfqScheduler ctor
+     *
+     * @param levels  the number of levels
+     * @param quantum the quantum of the top level
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MlfqScheduler(int levels, long quantum)
+    {
+        m_levels = new ArrayDeque[Math.max(levels, 1)];
+        for(int i = 0; i < m_levels.length; i++)
+        {
+            m_levels[i] = new ArrayDeque<ProcessControlBlock>();
+        }
+        m_quantum = Math.max(quantum, 1);
+    }//ctor
+
+    public String getName()
+    {
+        return "MLFQ(" + m_levels.length + "x" + m_quantum + ")";
+    }
+
+    public void add(ProcessControlBlock pcb)
+    {
+        m_levels[pcb.getLevel()].offer(pcb);
+        m_size++;
+    }
+
+    public void preempted(ProcessControlBlock pcb)
+    {
+        pcb.setLevel(Math.min(pcb.getLevel() + 1, m_levels.length - 1));
+        add(pcb);
+    }
+
+    public ProcessControlBlock next()
+    {
+        if (++m_picks >= BOOST_PERIOD)
+        {
+            boost();
+        }
+        for(int i = 0; i < m_levels.length; i++)
+        {
+            ProcessControlBlock pcb = m_levels[i].poll();
+            if (pcb != null)
+            {
+                m_size--;
+                return pcb;
+            }
+        }
+        return null;
+    }//next
+
+    /**
+     * boost
+     *
+     * moves every process back to the top level
+     */
+    private void boost()
+    {
+        m_picks = 0;
+        for(int i = 1; i < m_levels.length; i++)
+        {
+            ProcessControlBlock pcb;
+            while ((pcb = m_levels[i].poll()) != null)
+            {
+                pcb.setLevel(0);
+                m_levels[0].offer(pcb);
+            }
+        }
+    }//boost
+
+    public boolean remove(ProcessControlBlock pcb)
+    {
+        if (m_levels[pcb.getLevel()].remove(pcb))
+        {
+            m_size--;
+            return true;
+        }
+        return false;
+    }//remove
+
+    public int size()
+    {
+        return m_size;
+    }
+
+    public long getQuantum(ProcessControlBlock pcb)
+    {
+        return m_quantum << pcb.getLevel();
+    }
+
+};//class MlfqScheduler
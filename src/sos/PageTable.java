@@ -0,0 +1,207 @@
+package sos;
+
+/**
+ * This class maps the pages of one process's address space onto frames of
+ * the simulated RAM.  Page tables are created and owned by the {@link SOS};
+ * the CPU only looks pages up (through its TLB) when a translation is not
+ * already cached.
+ *
+ * Pages are given a frame the first time they are touched, so a process
+ * only takes up as much RAM as it actually uses rather than the whole size
+ * it was created with.  Pages holding the program itself may be shared with
+ * other processes created from the same program; such a page is copied
+ * the first time it is written (copy-on-write).
+ *
+ * @see SOS#setPaging
+ * @see CPU#setPageTable
+ */
+public class PageTable
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * each page holds 2^PAGE_BITS words.  This must be a multiple of
+     * CPU.INSTRSIZE so that no instruction is split across two pages.
+     **/
+    public static final int PAGE_BITS = 4;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * frame value used to mark a page that has not been given a frame yet
+     **/
+    public static final int UNMAPPED = -1;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the frame holding each page (or UNMAPPED)
+     **/
+    private int m_frames[];
+
+    /**
+     * true for each page whose frame is shared with other processes and so
+     * must be copied before it is written
+     **/
+    private boolean m_shared[];
+
+    /**
+     * the operating system that hands out frames
+     **/
+    private SOS m_OS = null;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * PageTable ctor
+     *
+     * @param numPages the number of pages in the address space
+     * @param os       the operating system that hands out frames
+     */
+    public PageTable(int numPages, SOS os)
+    {
+        m_frames = new int[numPages];
+        m_shared = new boolean[numPages];
+        for(int i = 0; i < numPages; i++)
+        {
+            m_frames[i] = UNMAPPED;
+        }
+        m_OS = os;
+    }//ctor
+
+    /**
+     * lookup
+     *
+     * finds the frame holding a page, giving the page a frame if it does
+     * not have one yet
+     *
+     * @param page the page number
+     * @return the frame number or -1 if the page is outside of the address
+     *         space or there is no free frame
+     */
+    public int lookup(int page)
+    {
+        if ((page < 0) || (page >= m_frames.length))
+        {
+            return -1;
+        }
+        if (m_frames[page] == UNMAPPED)
+        {
+            m_frames[page] = m_OS.allocateFrame();
+        }
+        return m_frames[page];
+    }//lookup
+
+    /**
+     * lookupForWrite
+     *
+     * finds the frame holding a page that is about to be written.  A shared
+     * page is first given a private copy of its frame.
+     *
+     * @param page the page number
+     * @return the frame number or -1 if the page is outside of the address
+     *         space or there is no free frame
+     */
+    public int lookupForWrite(int page)
+    {
+        int frame = lookup(page);
+        if ((frame >= 0) && m_shared[page])
+        {
+            frame = m_OS.copyFrame(frame);
+            if (frame < 0)
+            {
+                return -1;
+            }
+            m_frames[page] = frame;
+            m_shared[page] = false;
+        }
+        return frame;
+    }//lookupForWrite
+
+    /**
+     * share
+     *
+     * maps a page onto a frame that is shared with other processes.  The
+     * caller is responsible for counting the extra reference to the frame.
+     *
+     * @param page  the page number
+     * @param frame the shared frame
+     */
+    public void share(int page, int frame)
+    {
+        m_frames[page] = frame;
+        m_shared[page] = true;
+    }//share
+
+    /**
+     * isShared
+     *
+     * @param page the page number
+     * @return true if the page must be copied before it is written
+     */
+    public boolean isShared(int page)
+    {
+        return (page >= 0) && (page < m_shared.length) && m_shared[page];
+    }
+
+    /**
+     * translate
+     *
+     * turns an address in this address space into a RAM address
+     *
+     * @param addr the address to translate
+     * @return the RAM address or -1 if the address can not be mapped
+     */
+    public int translate(int addr)
+    {
+        int frame = lookup(addr >>> PAGE_BITS);
+        if (frame < 0)
+        {
+            return -1;
+        }
+        return (frame << PAGE_BITS) | (addr & PAGE_MASK);
+    }//translate
+
+    /**
+     * getNumPages
+     *
+     * @return the number of pages in the address space
+     */
+    public int getNumPages()
+    {
+        return m_frames.length;
+    }
+
+    /**
+     * getFrame
+     *
+     * @param page the page number
+     * @return the frame holding the page or UNMAPPED (never allocates)
+     */
+    public int getFrame(int page)
+    {
+        return m_frames[page];
+    }
+
+    /**
+     * getMappedPages
+     *
+     * @return the number of pages that have been given a frame
+     */
+    public int getMappedPages()
+    {
+        int count = 0;
+        for(int i = 0; i < m_frames.length; i++)
+        {
+            if (m_frames[i] != UNMAPPED) count++;
+        }
+        return count;
+    }//getMappedPages
+
+};//class PageTable
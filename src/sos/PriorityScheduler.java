@@ -0,0 +1,91 @@
+package sos;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * This scheduler always runs the ready process with the best priority (the
+ * lowest value, as with Unix nice levels).  Processes with the same
+ * priority take turns a quantum at a time.  A low-priority process only
+ * runs when no better one is ready, so it can starve under load.
+ *
+ * @see Scheduler
+ * @see SOS#addProcess(Program, int, int)
+ */
+public class PriorityScheduler implements Scheduler
+{
+    /**
+     * the ready processes, best priority first and then in the order they
+     * became ready
+     **/
+    private PriorityQueue<ProcessControlBlock> m_queue =
+        new PriorityQueue<ProcessControlBlock>(16,
+            new Comparator<ProcessControlBlock>() {
+                public int compare(ProcessControlBlock a, ProcessControlBlock b)
+                {
+                    if (a.getPriority() != b.getPriority())
+                    {
+                        return (a.getPriority() < b.getPriority()) ? -1 : 1;
+                    }
+                    return Long.compare(a.getSequence(), b.getSequence());
+                }
+            });
+
+    /**
+     * the number of instructions in each time slice
+     **/
+    private long m_quantum;
+
+    /**
+     * counts the processes that have become ready (so that equal
+     * priorities are served first come, first served)
+     **/
+    private long m_sequence = 0;
+
+    /**
+     * PriorityScheduler ctor
+     *
+     * @param quantum the number of instructions in each time slice
+     */
+    public PriorityScheduler(long quantum)
+    {
+        m_quantum = Math.max(quantum, 1);
+    }
+
+    public String getName()
+    {
+        return "Priority(" + m_quantum + ")";
+    }
+
+    public void add(ProcessControlBlock pcb)
+    {
+        pcb.setSequence(m_sequence++);
+        m_queue.offer(pcb);
+    }
+
+    public void preempted(ProcessControlBlock pcb)
+    {
+        add(pcb);
+    }
+
+    public ProcessControlBlock next()
+    {
+        return m_queue.poll();
+    }
+
+    public boolean remove(ProcessControlBlock pcb)
+    {
+        return m_queue.remove(pcb);
+    }
+
+    public int size()
+    {
+        return m_queue.size();
+    }
+
+    public long getQuantum(ProcessControlBlock pcb)
+    {
+        return m_quantum;
+    }
+
+};//class PriorityScheduler
@@ -0,0 +1,492 @@
+package sos;
+
+/**
+ * This class holds everything the {@link SOS} needs to know about one
+ * process: its id, its state, the memory it was given and a copy of its
+ * registers for the times it is not running on a CPU.  The register array
+ * is allocated once, when the process is created, and a context switch just
+ * copies the CPU's registers into it and back out again.
+ *
+ * @see SOS#runScheduler
+ */
+public class ProcessControlBlock
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * the states a process may be in
+     **/
+    public static final int STATE_READY      = 0;  // waiting for a CPU
+    public static final int STATE_RUNNING    = 1;  // loaded on a CPU
+    public static final int STATE_TERMINATED = 2;  // finished or killed
+    public static final int STATE_BLOCKED    = 3;  // waiting for I/O
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the id of the process (unique for the life of the SOS)
+     **/
+    private int m_pid;
+
+    /**
+     * one of the STATE_* values
+     **/
+    private int m_state = STATE_READY;
+
+    /**
+     * the registers of the process while it is not running on a CPU
+     **/
+    private int m_registers[] = new int[CPU.NUMREG];
+
+    /**
+     * the address of the block of RAM holding the process (or -1) and its
+     * page table (or null if it is not paged)
+     **/
+    private int m_block = -1;
+    private PageTable m_pageTable = null;
+
+    /**
+     * the program the process was created from (kept while the process
+     * shares that program's image in paged mode)
+     **/
+    private Program m_program = null;
+
+    /**
+     * the index of the CPU the process is loaded on (or -1)
+     **/
+    private int m_core = -1;
+
+    /**
+     * the number of I/O requests the process is waiting for and the result
+     * to push onto its stack when it next runs (if there is one)
+     **/
+    private int m_outstanding = 0;
+    private boolean m_hasResult = false;
+    private int m_result = 0;
+
+    /**
+     * the priority of the process (lower values run first)
+     **/
+    private int m_priority = 0;
+
+    /**
+     * bookkeeping kept here for the scheduler: the queue level of the
+     * process and when it joined its queue
+     **/
+    private int m_level = 0;
+    private long m_sequence = 0;
+
+    /**
+     * statistics describing how the process has been scheduled.  Times
+     * are measured in instructions run by the CPU, so a wait is the number
+     * of instructions run between the process becoming ready and being
+     * dispatched.
+     **/
+    private long m_arrival = 0;
+    private long m_firstDispatch = -1;
+    private long m_readySince = 0;
+    private long m_totalWait = 0;
+    private long m_instructions = 0;
+    private long m_dispatches = 0;
+    private long m_maxWait = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * ProcessControlBlock ctor
+     *
+     * @param pid the id of the process
+     */
+    public ProcessControlBlock(int pid)
+    {
+        m_pid = pid;
+    }//ctor
+
+    /**
+     * save
+     *
+     * copies the registers of a CPU into this block
+     *
+     * @param cpu the CPU the process was running on
+     */
+    public void save(CPU cpu)
+    {
+        System.arraycopy(cpu.getRegisters(), 0, m_registers, 0, CPU.NUMREG);
+    }//save
+
+    /**
+     * restore
+     *
+     * copies the saved registers into a CPU
+     *
+     * @param cpu the CPU the process is about to run on
+     */
+    public void restore(CPU cpu)
+    {
+        System.arraycopy(m_registers, 0, cpu.getRegisters(), 0, CPU.NUMREG);
+    }//restore
+
+    /**
+     * getPid
+     *
+     * @return the id of the process
+     */
+    public int getPid()
+    {
+        return m_pid;
+    }
+
+    /**
+     * getState
+     *
+     * @return one of the STATE_* values
+     */
+    public int getState()
+    {
+        return m_state;
+    }
+
+    /**
+     * setState
+     *
+     * @param state one of the STATE_* values
+     */
+    public void setState(int state)
+    {
+        m_state = state;
+    }
+
+    /**
+     * getRegisters
+     *
+     * @return the saved registers of the process (only accurate while it is
+     *         not loaded on a CPU)
+     */
+    public int[] getRegisters()
+    {
+        return m_registers;
+    }
+
+    /**
+     * getBlock
+     *
+     * @return the address of the block of RAM holding the process or -1
+     */
+    public int getBlock()
+    {
+        return m_block;
+    }
+
+    /**
+     * setBlock
+     *
+     * @param block the address of the block of RAM holding the process or
+     *              -1
+     */
+    public void setBlock(int block)
+    {
+        m_block = block;
+    }
+
+    /**
+     * getPageTable
+     *
+     * @return the page table of the process or null if it is not paged
+     */
+    public PageTable getPageTable()
+    {
+        return m_pageTable;
+    }
+
+    /**
+     * setPageTable
+     *
+     * @param table the page table of the process or null
+     */
+    public void setPageTable(PageTable table)
+    {
+        m_pageTable = table;
+    }
+
+    /**
+     * getProgram
+     *
+     * @return the program the process shares the image of or null
+     */
+    public Program getProgram()
+    {
+        return m_program;
+    }
+
+    /**
+     * setProgram
+     *
+     * @param prog the program the process shares the image of or null
+     */
+    public void setProgram(Program prog)
+    {
+        m_program = prog;
+    }
+
+    /**
+     * getCore
+     *
+     * @return the index of the CPU the process is loaded on or -1
+     */
+    public int getCore()
+    {
+        return m_core;
+    }
+
+    /**
+     * setCore
+     *
+     * @param core the index of the CPU the process is loaded on or -1
+     */
+    public void setCore(int core)
+    {
+        m_core = core;
+    }
+
+    /**
+     * getOutstanding
+     *
+     * @return the number of I/O requests the process is waiting for
+     */
+    public int getOutstanding()
+    {
+        return m_outstanding;
+    }
+
+    /**
+     * setOutstanding
+     *
+     * @param count the number of I/O requests the process is waiting for
+     */
+    public void setOutstanding(int count)
+    {
+        m_outstanding = count;
+    }
+
+    /**
+     * setResult
+     *
+     * holds a value to be pushed onto the process's stack when it next
+     * runs (e.g. the value read by an I/O request)
+     *
+     * @param value the value
+     */
+    public void setResult(int value)
+    {
+        m_result = value;
+        m_hasResult = true;
+    }//setResult
+
+    /**
+     * hasResult
+     *
+     * @return true if there is a value waiting to be pushed
+     */
+    public boolean hasResult()
+    {
+        return m_hasResult;
+    }
+
+    /**
+     * takeResult
+     *
+     * @return the value waiting to be pushed (which is then forgotten)
+     */
+    public int takeResult()
+    {
+        m_hasResult = false;
+        return m_result;
+    }//takeResult
+
+    /**
+     * getPriority
+     *
+     * @return the priority of the process (lower values run first)
+     */
+    public int getPriority()
+    {
+        return m_priority;
+    }
+
+    /**
+     * setPriority
+     *
+     * @param priority the priority of the process (lower values run first)
+     */
+    public void setPriority(int priority)
+    {
+        m_priority = priority;
+    }
+
+    /**
+     * getLevel
+     *
+     * @return the scheduler queue level of the process
+     */
+    public int getLevel()
+    {
+        return m_level;
+    }
+
+    /**
+     * setLevel
+     *
+     * @param level the scheduler queue level of the process
+     */
+    public void setLevel(int level)
+    {
+        m_level = level;
+    }
+
+    /**
+     * getSequence
+     *
+     * @return when the process joined its scheduler queue
+     */
+    public long getSequence()
+    {
+        return m_sequence;
+    }
+
+    /**
+     * setSequence
+     *
+     * @param sequence when the process joined its scheduler queue
+     */
+    public void setSequence(long sequence)
+    {
+        m_sequence = sequence;
+    }
+
+    /**
+     * arrived
+     *
+     * records that the process has been created and is ready for the first
+     * time
+     *
+     * @param now the instruction count of the CPU it is waiting for
+     */
+    public void arrived(long now)
+    {
+        m_arrival = now;
+        makeReady(now);
+    }//arrived
+
+    /**
+     * makeReady
+     *
+     * records that the process has started waiting for a CPU
+     *
+     * @param now the instruction count of the CPU it is waiting for
+     */
+    public void makeReady(long now)
+    {
+        m_state = STATE_READY;
+        m_readySince = now;
+    }//makeReady
+
+    /**
+     * dispatched
+     *
+     * records that the process has been given a CPU
+     *
+     * @param core the index of the CPU
+     * @param now  the instruction count of the CPU
+     */
+    public void dispatched(int core, long now)
+    {
+        m_state = STATE_RUNNING;
+        m_core = core;
+        if (m_dispatches == 0)
+        {
+            m_firstDispatch = now;
+        }
+        m_dispatches++;
+        m_totalWait += now - m_readySince;
+        m_maxWait = Math.max(m_maxWait, now - m_readySince);
+    }//dispatched
+
+    /**
+     * addInstructions
+     *
+     * @param count the number of instructions the process just ran
+     */
+    public void addInstructions(long count)
+    {
+        m_instructions += count;
+    }
+
+    /**
+     * getInstructions
+     *
+     * @return the number of instructions the process has run
+     */
+    public long getInstructions()
+    {
+        return m_instructions;
+    }
+
+    /**
+     * getDispatches
+     *
+     * @return the number of times the process has been given a CPU
+     */
+    public long getDispatches()
+    {
+        return m_dispatches;
+    }
+
+    /**
+     * getArrival
+     *
+     * @return when the process was created
+     */
+    public long getArrival()
+    {
+        return m_arrival;
+    }
+
+    /**
+     * getResponseTime
+     *
+     * @return how long the process waited before it first ran (or -1 if it
+     *         has not run yet)
+     */
+    public long getResponseTime()
+    {
+        return (m_firstDispatch < 0) ? -1 : m_firstDispatch - m_arrival;
+    }
+
+    /**
+     * getTotalWait
+     *
+     * @return the total time the process has spent waiting for a CPU
+     */
+    public long getTotalWait()
+    {
+        return m_totalWait;
+    }
+
+    /**
+     * getMaxWait
+     *
+     * @return the longest the process has waited for a CPU (in
+     *         instructions run by other processes)
+     */
+    public long getMaxWait()
+    {
+        return m_maxWait;
+    }
+
+};//class ProcessControlBlock
@@ -535,6 +535,62 @@ public class Program
         return 0;
     }//fixOrphans
 
+    /**
+     * verify
+     *
+     * is called once all label references have been resolved.  It checks
+     * that every argument used as a register by its instruction names one of
+     * the CPU's registers, so the CPU never has to check this while it runs.
+     *
+     * @return a success/error code (0 is success; anything else is failure)
+     * @see CPU#NUMREG
+     */
+    private int verify()
+    {
+        for(int i = 0; i + CPU.INSTRSIZE <= m_prog.size(); i += CPU.INSTRSIZE)
+        {
+            int opcode = m_prog.get(i).intValue();
+
+            //Work out how many of the arguments are registers
+            int numRegs = 0;
+            switch(opcode)
+            {
+                case CPU.SET:
+                case CPU.POP:
+                case CPU.PUSH:
+                    numRegs = 1;
+                    break;
+                case CPU.COPY:
+                case CPU.BNE:
+                case CPU.BLT:
+                case CPU.LOAD:
+                case CPU.SAVE:
+                    numRegs = 2;
+                    break;
+                case CPU.ADD:
+                case CPU.SUB:
+                case CPU.MUL:
+                case CPU.DIV:
+                    numRegs = 3;
+                    break;
+            }//switch
+
+            for(int j = 1; j <= numRegs; j++)
+            {
+                int reg = m_prog.get(i + j).intValue();
+                if ((reg < 0) || (reg >= CPU.NUMREG))
+                {
+                    System.out.println("\nERROR: register R" + reg
+                                       + " does not exist (instruction at address "
+                                       + i + ")");
+                    return -1;
+                }
+            }//for
+        }//for
+
+        return 0;
+    }//verify
+
     /**
      * load
      *
@@ -624,7 +680,13 @@ public class Program
             return -5;
         }
 
-        //Step 6:  Add an exit system call to the end of the program
+        //Step 6:  Make sure every register operand names a real register
+        if (verify() != 0)
+        {
+            return -7;
+        }
+
+        //Step 7:  Add an exit system call to the end of the program
         m_prog.add(new Integer(CPU.SET));
         m_prog.add(new Integer(0));
         m_prog.add(new Integer(0));
@@ -13,40 +13,273 @@ import java.util.*;
  */
 public class RAM
 {
+    //constants
+    /**
+     * latency modes.  In virtual mode each access adds the latency to a
+     * simulated clock; in wall-clock mode the host thread really sleeps.
+     **/
+    public static final int LATENCY_VIRTUAL   = 0;
+    public static final int LATENCY_WALLCLOCK = 1;
+
+    /**
+     * memory ordering modes.  Plain accesses are only safe when a single
+     * host thread uses the RAM.  In release mode reads are volatile (and so
+     * have acquire semantics) and writes are release stores, which is enough
+     * for one core to publish data to another.  In volatile mode every
+     * access is sequentially consistent.
+     **/
+    public static final int ORDER_PLAIN    = 0;
+    public static final int ORDER_RELEASE  = 1;
+    public static final int ORDER_VOLATILE = 2;
+
+    /**
+     * writes are tracked in pages of 2^DIRTY_PAGE_BITS words
+     **/
+    public static final int DIRTY_PAGE_BITS = 6;
+    public static final int DIRTY_PAGE_SIZE = 1 << DIRTY_PAGE_BITS;
+
     //member veriables
     /**
-     * The size of the RAM (expressed as a number of integers)
+     * The size of the RAM (expressed as a number of integers).  For a
+     * memory with more words than an int can count this is Integer.MAX_VALUE.
      **/
     private int m_size = 0;
     
     /**
-     * This array contains the simulated RAM itself
+     * This holds the simulated RAM itself
+     *
+     * @see Memory
      **/
-    private int m_mem[] = null;
+    private Memory m_memory = null;
     
     /**
      * This describes how long it takes the simulated RAM to retrieve a given
      * value.  
      **/
     private int m_latency;
+
+    /**
+     * how the latency is simulated (LATENCY_VIRTUAL or LATENCY_WALLCLOCK)
+     **/
+    private int m_latencyMode = LATENCY_VIRTUAL;
+
+    /**
+     * the number of simulated nanoseconds spent accessing this RAM.  Each
+     * port has its own clock so that no two threads ever update it.
+     **/
+    private long m_simTime = 0;
+
+    /**
+     * The decode caches that hold instructions read from this RAM.  They
+     * are told about every write made through this port so stale
+     * instructions are never executed.
+     **/
+    private DecodeCache m_decodeCaches[] = new DecodeCache[0];
+
+    /**
+     * The first level of the cache hierarchy in front of this port (or null
+     * if every access is charged the full RAM latency)
+     *
+     * @see Cache
+     **/
+    private Cache m_cache = null;
+
+    /**
+     * the pages of the RAM that have been written.  This is shared by every
+     * port onto the RAM, so tracking can be turned on before or after the
+     * ports are created.
+     **/
+    private DirtyPages m_dirty = new DirtyPages();
     
     /**
-     * the constructor does nothing special
+     * the constructor does nothing special.  Latency is simulated with the
+     * virtual clock.
      *
      * @param size number of integers ("words") in ram
      * @param latency the number of nanoseconds to delay for RAM latency
      */
     public RAM(int size, int latency)
     {
-        m_size = size;
-        m_mem = new int[m_size];
-        for(int i = 0; i < m_size; i++)
-        {
-            m_mem[i] = 0;
-        }
+        this(size, latency, LATENCY_VIRTUAL);
+    }//ctor
+
+    /**
+     * this constructor also selects how latency is simulated
+     *
+     * @param size number of integers ("words") in ram
+     * @param latency the number of nanoseconds to delay for RAM latency
+     * @param latencyMode LATENCY_VIRTUAL or LATENCY_WALLCLOCK
+     */
+    public RAM(int size, int latency, int latencyMode)
+    {
+        this(size, latency, latencyMode, ORDER_PLAIN);
+    }//ctor
+
+    /**
+     * this constructor also selects the memory ordering of each access.  Use
+     * ORDER_RELEASE or ORDER_VOLATILE for a RAM shared by several cores.
+     *
+     * @param size number of integers ("words") in ram
+     * @param latency the number of nanoseconds to delay for RAM latency
+     * @param latencyMode LATENCY_VIRTUAL or LATENCY_WALLCLOCK
+     * @param ordering ORDER_PLAIN, ORDER_RELEASE or ORDER_VOLATILE
+     */
+    public RAM(int size, int latency, int latencyMode, int ordering)
+    {
+        this((ordering == ORDER_PLAIN) ? new HeapMemory(size)
+                                       : new SharedMemory(size, ordering),
+             latency, latencyMode);
+    }//ctor
+
+    /**
+     * this constructor uses the given backend to hold the memory (e.g. a
+     * {@link SparseMemory} for a huge but mostly empty machine or a
+     * {@link DirectMemory} for one with more memory than is comfortable on
+     * the Java heap)
+     *
+     * @param memory the backend holding the words of the RAM
+     * @param latency the number of nanoseconds to delay for RAM latency
+     * @param latencyMode LATENCY_VIRTUAL or LATENCY_WALLCLOCK
+     */
+    public RAM(Memory memory, int latency, int latencyMode)
+    {
+        m_memory = memory;
+        m_size = (int)Math.min(memory.getCapacity(), Integer.MAX_VALUE);
         m_latency = latency;
+        m_latencyMode = latencyMode;
+    }//ctor
+
+    /**
+     * this constructor creates a new port onto an existing RAM.  The port
+     * shares the memory itself but has its own latency clock and decode
+     * caches.
+     *
+     * @param other the RAM to share memory with
+     */
+    private RAM(RAM other)
+    {
+        m_size = other.m_size;
+        m_memory = other.m_memory;
+        m_dirty = other.m_dirty;
+        m_latency = other.m_latency;
+        m_latencyMode = other.m_latencyMode;
     }//ctor
 
+    /**
+     * newPort
+     *
+     * creates another view of this RAM for a CPU that runs on its own host
+     * thread.  Writes made through one port are seen through the others with
+     * the ordering the RAM was created with.  A CPU's decode cache only
+     * hears about writes made through its own port, so (as with the
+     * instruction caches of real chips) code written by another core is not
+     * guaranteed to be seen until that core's cache is flushed.
+     *
+     * @return a new port onto the same memory
+     */
+    public RAM newPort()
+    {
+        return new RAM(this);
+    }//newPort
+
+    /**
+     * getOrdering
+     *
+     * @return ORDER_PLAIN, ORDER_RELEASE or ORDER_VOLATILE
+     */
+    public int getOrdering()
+    {
+        return m_memory.getOrdering();
+    }
+
+    /**
+     * setDirtyTracking
+     *
+     * turns tracking of written pages on or off for this RAM and every
+     * port onto it.  Every page starts out clean.
+     *
+     * @param enabled true to track which pages are written
+     * @see Checkpointer
+     */
+    public void setDirtyTracking(boolean enabled)
+    {
+        m_dirty.setEnabled(enabled, getPageCount());
+    }//setDirtyTracking
+
+    /**
+     * getPageCount
+     *
+     * @return the number of dirty-tracking pages in the RAM
+     */
+    public int getPageCount()
+    {
+        return (int)((getCapacity() + DIRTY_PAGE_SIZE - 1) >>> DIRTY_PAGE_BITS);
+    }
+
+    /**
+     * isDirty
+     *
+     * @param page a page number
+     * @return true if the page has been written since it was last cleaned
+     */
+    public boolean isDirty(int page)
+    {
+        return m_dirty.isDirty(page);
+    }
+
+    /**
+     * takeDirtyPages
+     *
+     * marks every page as not written.  This takes time proportional to
+     * the number of pages written rather than to the size of the RAM.
+     *
+     * @return the numbers of the pages written since this was last called
+     *         (in increasing order)
+     */
+    public int[] takeDirtyPages()
+    {
+        return m_dirty.take();
+    }//takeDirtyPages
+
+    /**
+     * markDirty
+     *
+     * records that a run of words has been written
+     *
+     * @param addr the address of the first word written
+     * @param len  the number of words written
+     */
+    private void markDirty(long addr, int len)
+    {
+        if (len <= 0) return;
+        int last = (int)((addr + len - 1) >>> DIRTY_PAGE_BITS);
+        for(int page = (int)(addr >>> DIRTY_PAGE_BITS); page <= last; page++)
+        {
+            m_dirty.mark(page);
+        }
+    }//markDirty
+
+    /**
+     * getMemory
+     *
+     * @return the backend holding the words of this RAM
+     */
+    public Memory getMemory()
+    {
+        return m_memory;
+    }
+
+    /**
+     * getCapacity
+     *
+     * @return the size of the RAM as a number of integers (which, unlike
+     *         getSize, may be more than fits in an int)
+     */
+    public long getCapacity()
+    {
+        return m_memory.getCapacity();
+    }
+
     /**
      * getSize
      *
@@ -69,6 +302,126 @@ public class RAM
         return m_latency;
     }
 
+    /**
+     * getLatencyMode
+     *
+     * @return LATENCY_VIRTUAL or LATENCY_WALLCLOCK
+     *
+     */
+    public int getLatencyMode()
+    {
+        return m_latencyMode;
+    }
+
+    /**
+     * getSimulatedTime
+     *
+     * @return the number of simulated nanoseconds spent on RAM accesses.  In
+     *         wall-clock mode this is the time the host was asked to sleep.
+     *
+     */
+    public long getSimulatedTime()
+    {
+        return m_simTime;
+    }
+
+    /**
+     * setCache
+     *
+     * puts a cache hierarchy in front of this port.  Each port (and so each
+     * core) should have its own hierarchy.
+     *
+     * @param cache the first level of the hierarchy or null for none
+     */
+    public void setCache(Cache cache)
+    {
+        m_cache = cache;
+    }
+
+    /**
+     * getCache
+     *
+     * @return the first level of the cache hierarchy or null if there is
+     *         none
+     */
+    public Cache getCache()
+    {
+        return m_cache;
+    }
+
+    /**
+     * delay
+     *
+     * charges the latency of a single access to the full RAM
+     */
+    private void delay()
+    {
+        delay(m_latency);
+    }//delay
+
+    /**
+     * delay
+     *
+     * charges the latency of a single access to a word that may be cached
+     *
+     * @param addr  the address being accessed
+     * @param write true for a write
+     */
+    private void delay(int addr, boolean write)
+    {
+        if (m_cache == null)
+        {
+            delay(m_latency);
+        }
+        else
+        {
+            delay(m_cache.access(addr, write, m_latency));
+        }
+    }//delay
+
+    /**
+     * delay
+     *
+     * charges the given latency, either to the simulated clock or by
+     * sleeping the host thread
+     *
+     * @param latency the number of nanoseconds to charge
+     */
+    private void delay(long latency)
+    {
+        if (latency <= 0)
+        {
+            return;
+        }
+
+        m_simTime += latency;
+        if (m_latencyMode == LATENCY_WALLCLOCK)
+        {
+            try
+            {
+                Thread.sleep(latency / 1000000, (int)(latency % 1000000));
+            }
+            catch(InterruptedException ie)
+            {/* do nothing*/ }
+        }
+    }//delay
+
+    /**
+     * attachDecodeCache
+     *
+     * registers a decode cache that must be invalidated whenever this RAM is
+     * written
+     *
+     * @param cache the cache to notify of writes
+     */
+    public void attachDecodeCache(DecodeCache cache)
+    {
+        DecodeCache[] caches = new DecodeCache[m_decodeCaches.length + 1];
+        System.arraycopy(m_decodeCaches, 0, caches, 0, m_decodeCaches.length);
+        caches[m_decodeCaches.length] = cache;
+        m_decodeCaches = caches;
+    }//attachDecodeCache
+
     /**
      * fetch
      * 
@@ -79,15 +432,83 @@ public class RAM
     public int[] fetch(int pc)
     {
         int instr[] = new int[CPU.INSTRSIZE];
-        for(int i = 0; i < CPU.INSTRSIZE; i++)
-        {
-            instr[i] = m_mem[pc+i];
-        }
+        m_memory.getBlock(pc, instr, 0, CPU.INSTRSIZE);
 
         return instr;
         
     }//fetch
 
+    /**
+     * readBlock
+     *
+     * copies a run of words out of the simulated RAM.  The latency of the
+     * whole block is charged at once (and the caches are bypassed, as they
+     * would be by a DMA transfer).
+     *
+     * @param addr  the address of the first word to read
+     * @param dst   the array receiving the words
+     * @param off   the index in dst of the first word
+     * @param len   the number of words to copy
+     */
+    public void readBlock(int addr, int[] dst, int off, int len)
+    {
+        //Simulate RAM latency
+        delay((long)m_latency * len);
+
+        m_memory.getBlock(addr, dst, off, len);
+    }//readBlock
+
+    /**
+     * writeBlock
+     *
+     * copies a run of words into the simulated RAM, charging the latency of
+     * the whole block at once
+     *
+     * @param addr  the address of the first word to write
+     * @param src   the array holding the words
+     * @param off   the index in src of the first word
+     * @param len   the number of words to copy
+     */
+    public void writeBlock(int addr, int[] src, int off, int len)
+    {
+        //Simulate RAM latency
+        delay((long)m_latency * len);
+
+        m_memory.setBlock(addr, src, off, len);
+        markDirty(addr, len);
+
+        //Throw away any decoded copy of the words that were just overwritten
+        for(DecodeCache cache : m_decodeCaches)
+        {
+            cache.invalidateRange(addr, len);
+        }
+    }//writeBlock
+
+    /**
+     * fill
+     *
+     * sets a run of words in the simulated RAM to the same value, charging
+     * the latency of the whole block at once
+     *
+     * @param addr  the address of the first word to write
+     * @param len   the number of words to write
+     * @param val   the value to write
+     */
+    public void fill(int addr, int len, int val)
+    {
+        //Simulate RAM latency
+        delay((long)m_latency * len);
+
+        m_memory.fill(addr, len, val);
+        markDirty(addr, len);
+
+        //Throw away any decoded copy of the words that were just overwritten
+        for(DecodeCache cache : m_decodeCaches)
+        {
+            cache.invalidateRange(addr, len);
+        }
+    }//fill
+
     /**
      * read
      *
@@ -99,19 +520,25 @@ public class RAM
     public int read(int addr)
     {
         //Simulate RAM latency
-        if (m_latency > 0)
-        {
-            try
-            {
-                Thread.sleep(0, m_latency);
-            }
-            catch(InterruptedException ie)
-            {/* do nothing*/ }
-        }
+        delay(addr, false);
         
-        return m_mem[addr];
+        return word(addr);
     }//read
 
+    /**
+     * word
+     *
+     * reads a word with the ordering this RAM was created with but without
+     * charging any latency
+     *
+     * @param addr  the location to retrieve from
+     * @return      the value at the given location
+     */
+    private int word(int addr)
+    {
+        return m_memory.get(addr);
+    }//word
+
     /**
      * write
      *
@@ -123,17 +550,171 @@ public class RAM
     public void write(int addr, int val)
     {
         //Simulate RAM latency 
-        if (m_latency > 0)
+        delay(addr, true);
+        
+        m_memory.set(addr, val);
+        m_dirty.mark(addr >>> DIRTY_PAGE_BITS);
+
+        //Throw away any decoded copy of the word that was just overwritten
+        for(DecodeCache cache : m_decodeCaches)
         {
-            try
+            cache.invalidate(addr);
+        }
+    }//write
+
+    /**
+     * read
+     *
+     * loads an integer from anywhere in a (possibly very large) simulated
+     * RAM
+     *
+     * @param addr  the location to retrieve from
+     * @return      the value at the given location
+     */
+    public int read(long addr)
+    {
+        if (addr <= Integer.MAX_VALUE)
+        {
+            return read((int)addr);
+        }
+
+        //Simulate RAM latency (too high up to be cached)
+        delay();
+
+        return m_memory.get(addr);
+    }//read
+
+    /**
+     * write
+     *
+     * saves an integer anywhere in a (possibly very large) simulated RAM
+     *
+     * @param addr  the addrss to write to
+     * @param val   the value to write
+     */
+    public void write(long addr, int val)
+    {
+        if (addr <= Integer.MAX_VALUE)
+        {
+            write((int)addr, val);
+            return;
+        }
+
+        //Simulate RAM latency (code never lives up here so no cache can be
+        //holding it)
+        delay();
+
+        m_memory.set(addr, val);
+        m_dirty.mark((int)(addr >>> DIRTY_PAGE_BITS));
+    }//write
+
+    /**
+     * The pages of a RAM written since they were last taken.  Each page has
+     * a flag, and the first write to a clean page also adds it to a list so
+     * the written pages can be found without looking at every flag.  A
+     * write to a page that is already dirty only reads its flag, and only
+     * the first write to a page takes the lock, so cores writing the same
+     * page at the same time can not lose it or add it twice.
+     **/
+    private static class DirtyPages
+    {
+        /**
+         * one flag for each page (or null if writes are not being tracked)
+         **/
+        private boolean m_flags[] = null;
+
+        /**
+         * the numbers of the pages whose flag is set
+         **/
+        private int m_pages[] = new int[16];
+        private int m_count = 0;
+
+        /**
+         * setEnabled
+         *
+         * @param enabled  true to track which pages are written
+         * @param numPages the number of pages in the RAM
+         */
+        public synchronized void setEnabled(boolean enabled, int numPages)
+        {
+            if (!enabled)
             {
-                Thread.sleep(0, m_latency);
+                m_flags = null;
+                m_count = 0;
             }
-            catch(InterruptedException ie)
-            {/* do nothing*/ }
+            else if (m_flags == null)
+            {
+                m_flags = new boolean[numPages];
+            }
+        }//setEnabled
+
+        /**
+         * isDirty
+         *
+         * @param page a page number
+         * @return true if the page has been written since it was last taken
+         */
+        public boolean isDirty(int page)
+        {
+            boolean[] flags = m_flags;
+            return (flags != null) && flags[page];
         }
-        
-        m_mem[addr] = val;
-    }//write
+
+        /**
+         * mark
+         *
+         * records that a page has been written
+         *
+         * @param page a page number
+         */
+        public void mark(int page)
+        {
+            boolean[] flags = m_flags;
+            if ((flags != null) && !flags[page])
+            {
+                add(page);
+            }
+        }//mark
+
+        /**
+         * add
+         *
+         * sets the flag of a page and adds it to the list (unless another
+         * core has just done so)
+         *
+         * @param page a page number
+         */
+        private synchronized void add(int page)
+        {
+            if ((m_flags == null) || m_flags[page])
+            {
+                return;
+            }
+            m_flags[page] = true;
+            if (m_count == m_pages.length)
+            {
+                m_pages = Arrays.copyOf(m_pages, 2 * m_count);
+            }
+            m_pages[m_count++] = page;
+        }//add
+
+        /**
+         * take
+         *
+         * @return the numbers of the pages written (in increasing order),
+         *         which are all marked clean again
+         */
+        public synchronized int[] take()
+        {
+            int[] pages = Arrays.copyOf(m_pages, m_count);
+            for(int i = 0; i < m_count; i++)
+            {
+                m_flags[m_pages[i]] = false;
+            }
+            m_count = 0;
+            Arrays.sort(pages);
+            return pages;
+        }//take
+    };//class DirtyPages
 
 };
@@ -0,0 +1,77 @@
+package sos;
+
+import java.util.ArrayDeque;
+
+/**
+ * This scheduler gives each ready process the CPU in turn for at most one
+ * quantum, so no process waits longer than one quantum for each of the
+ * others.  A short quantum bounds how long a ready process waits for the
+ * CPU; a long one spends less time switching between processes.
+ *
+ * @see Scheduler
+ */
+public class RoundRobinScheduler implements Scheduler
+{
+    /**
+     * the number of instructions a process may run before the timer
+     * preempts it
+     **/
+    public static final int DEFAULT_QUANTUM = 100;
+
+    /**
+     * the ready processes in the order they will run
+     **/
+    private ArrayDeque<ProcessControlBlock> m_queue =
+        new ArrayDeque<ProcessControlBlock>();
+
+    /**
+     * the number of instructions in each time slice
+     **/
+    private long m_quantum;
+
+    /**
+     * RoundRobinScheduler ctor
+     *
+     * @param quantum the number of instructions in each time slice
+     */
+    public RoundRobinScheduler(long quantum)
+    {
+        m_quantum = Math.max(quantum, 1);
+    }
+
+    public String getName()
+    {
+        return "RR(" + m_quantum + ")";
+    }
+
+    public void add(ProcessControlBlock pcb)
+    {
+        m_queue.offer(pcb);
+    }
+
+    public void preempted(ProcessControlBlock pcb)
+    {
+        m_queue.offer(pcb);
+    }
+
+    public ProcessControlBlock next()
+    {
+        return m_queue.poll();
+    }
+
+    public boolean remove(ProcessControlBlock pcb)
+    {
+        return m_queue.remove(pcb);
+    }
+
+    public int size()
+    {
+        return m_queue.size();
+    }
+
+    public long getQuantum(ProcessControlBlock pcb)
+    {
+        return m_quantum;
+    }
+
+};//class RoundRobinScheduler
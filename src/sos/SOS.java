@@ -16,6 +16,34 @@ import java.util.*;
 
 public class SOS
 {
+    // ======================================================================
+    // Constants
+    // ----------------------------------------------------------------------
+
+    /**
+     * The system call numbers.  A program makes a system call by pushing
+     * its arguments and then the call number and running TRAP.
+     **/
+    public static final int SYSCALL_EXIT     = 0;    // exit the program
+    public static final int SYSCALL_OUTPUT   = 1;    // print a value
+    public static final int SYSCALL_GETPID   = 2;    // push the process id
+    public static final int SYSCALL_YIELD    = 3;    // give up the CPU
+    public static final int SYSCALL_COREDUMP = 4;    // print registers, exit
+    public static final int SYSCALL_BATCH    = 5;    // run several calls
+    public static final int SYSCALL_READ     = 6;    // read from a device
+    public static final int SYSCALL_WRITE    = 7;    // write to a device
+    public static final int NUM_SYSCALLS     = 8;
+
+    /**
+     * the most system calls that can be made with one SYSCALL_BATCH
+     **/
+    public static final int MAX_BATCH = 16;
+
+    /**
+     * the default number of words compaction may copy in one pause
+     **/
+    public static final int DEFAULT_COMPACTION_BUDGET = 4096;
+
     // ======================================================================
     // Member variables
     // ----------------------------------------------------------------------
@@ -27,15 +55,147 @@ public class SOS
     public static final boolean m_verbose = false;
 
     /**
-     * The CPU the operating system is managing.
+     * The CPU the operating system is managing.  (On a multi-core machine
+     * this is core 0.)
      **/
     private CPU m_CPU = null;
 
+    /**
+     * All of the CPU cores the operating system is managing.
+     **/
+    private CPU m_CPUs[] = null;
+
     /**
      * The RAM attached to the CPU.
      **/
     private RAM m_RAM = null;
 
+    /**
+     * Hands out the blocks of RAM that processes (and page frames) live in.
+     **/
+    private BuddyAllocator m_allocator = null;
+
+    /**
+     * Every process that has been created and has not yet terminated
+     **/
+    private ArrayList<ProcessControlBlock> m_processes =
+        new ArrayList<ProcessControlBlock>();
+
+    /**
+     * The process loaded on each core (or null if it has none)
+     **/
+    private ProcessControlBlock m_running[] = null;
+
+    /**
+     * The policy that holds the processes waiting for a CPU and decides
+     * which one gets it next
+     **/
+    private Scheduler m_scheduler =
+        new RoundRobinScheduler(RoundRobinScheduler.DEFAULT_QUANTUM);
+
+    /**
+     * writes a checkpoint of the machine between quanta (or null)
+     **/
+    private Checkpointer m_checkpointer = null;
+
+    /**
+     * the id that will be given to the next process created
+     **/
+    private int m_nextPid = 1;
+
+    /**
+     * statistics describing the work done by the scheduler.  The
+     * histograms hold the turnaround, total wait and response time of each
+     * process that has terminated under the current scheduler.
+     **/
+    private long m_contextSwitches = 0;
+    private long m_maxWait = 0;
+    private Histogram m_turnaroundTimes = new Histogram();
+    private Histogram m_waitTimes = new Histogram();
+    private Histogram m_responseTimes = new Histogram();
+
+    /**
+     * The devices, indexed by device id
+     **/
+    private ArrayList<Device> m_devices = new ArrayList<Device>();
+
+    /**
+     * the number of processes blocked waiting for I/O
+     **/
+    private int m_blocked = 0;
+
+    /**
+     * The system calls, indexed by call number
+     **/
+    private SystemCall m_syscalls[] = new SystemCall[NUM_SYSCALLS];
+
+    /**
+     * The results of the system calls in the batch each core is running,
+     * which are pushed once the whole batch is done (and how many there
+     * are, or -1 when the core is not running a batch)
+     **/
+    private int m_batchResults[][] = null;
+    private int m_batchCounts[] = null;
+
+    /**
+     * statistics describing the system calls made on each core
+     **/
+    private long m_traps[] = null;
+    private long m_syscallCounts[] = null;
+
+    /**
+     * statistics describing the work done by compaction
+     **/
+    private long m_relocations = 0;
+    private long m_wordsRelocated = 0;
+    private long m_maxCompactNanos = 0;
+
+    /**
+     * the most words one pause for compaction may copy (0 turns compaction
+     * off) and whether memory has been freed since compaction last found
+     * nothing to move
+     **/
+    private int m_compactionBudget = DEFAULT_COMPACTION_BUDGET;
+    private boolean m_compactPending = false;
+
+    /**
+     * the number of times the OS has written code into RAM (loading or
+     * moving a process) and the value it had when each core's decode cache
+     * was last flushed.  The OS writes through its own port, which the
+     * decode caches of the other cores do not hear about, so a core whose
+     * count is behind may hold stale instructions.
+     **/
+    private long m_codeWrites = 0;
+    private long m_coreFlushed[] = null;
+
+    /**
+     * specifies whether processes get a paged address space (instead of one
+     * contiguous block of RAM relocated by BASE and LIM)
+     **/
+    private boolean m_paging = false;
+
+    /**
+     * The frames of RAM not given to any page.  m_freeFrames[0] through
+     * m_freeFrames[m_numFree - 1] are free.
+     **/
+    private int m_freeFrames[] = null;
+    private int m_numFree = 0;
+
+    /**
+     * The number of page tables (and program images) using each frame.  A
+     * frame is only freed when this drops to zero.
+     **/
+    private int m_frameRefs[] = null;
+
+    /**
+     * The program images already written to RAM, keyed by the Program they
+     * were exported from.  Processes created from the same Program share
+     * these frames until they write to them.  An image is thrown away (and
+     * its frames released) when the last process using it ends.
+     **/
+    private IdentityHashMap<Program, ProgramImage> m_images =
+        new IdentityHashMap<Program, ProgramImage>();
+
     /*
      * ======================================================================
      * Constructors & Debugging
@@ -46,12 +206,47 @@ public class SOS
      * The constructor does nothing special
      */
     public SOS(CPU c, RAM r)
+    {
+        this(new CPU[] { c }, r);
+    }// SOS ctor
+
+    /**
+     * This constructor manages a multi-core machine.  Each CPU should be
+     * attached to its own port onto the shared RAM.
+     *
+     * @see RAM#newPort
+     */
+    public SOS(CPU[] cpus, RAM r)
     {
         // Init member list
-        m_CPU = c;
+        m_CPUs = cpus;
+        m_CPU = cpus[0];
         m_RAM = r;
+        m_allocator = new BuddyAllocator(r.getSize());
+        m_running = new ProcessControlBlock[cpus.length];
+        m_coreFlushed = new long[cpus.length];
+        m_batchResults = new int[cpus.length][MAX_BATCH];
+        m_batchCounts = new int[cpus.length];
+        m_traps = new long[cpus.length];
+        m_syscallCounts = new long[cpus.length];
+        Arrays.fill(m_batchCounts, -1);
+        initSystemCalls();
+        for (int i = 0; i < cpus.length; i++)
+        {
+            cpus[i].registerTrapHandler(new CoreTrapHandler(i));
+        }
     }// SOS ctor
 
+    /**
+     * getNumCores
+     *
+     * @return the number of CPU cores managed by the operating system
+     */
+    public int getNumCores()
+    {
+        return m_CPUs.length;
+    }
+
     /**
      * Does a System.out.print as long as m_verbose is true
      **/
@@ -80,118 +275,1700 @@ public class SOS
      * ----------------------------------------------------------------------
      */
 
-    // None yet!
+    /**
+     * setPaging
+     *
+     * turns paged memory on or off for processes created from now on.  When
+     * it is first turned on all of the RAM the allocator can still hand out
+     * is split into frames.
+     *
+     * @param enabled true to give each process its own paged address space
+     * @see PageTable
+     */
+    public void setPaging(boolean enabled)
+    {
+        m_paging = enabled;
+        if (m_paging && (m_freeFrames == null))
+        {
+            int frames = m_RAM.getSize() >>> PageTable.PAGE_BITS;
+            m_freeFrames = new int[frames];
+            m_frameRefs = new int[frames];
+
+            int addr = m_allocator.allocate(PageTable.PAGE_SIZE);
+            while (addr >= 0) {
+                m_freeFrames[m_numFree++] = addr >>> PageTable.PAGE_BITS;
+                addr = m_allocator.allocate(PageTable.PAGE_SIZE);
+            }
 
-    /*
-     * ======================================================================
-     * Device Management Methods
-     * ----------------------------------------------------------------------
+            // hand out the lowest frames first
+            for (int i = 0; i < m_numFree / 2; i++) {
+                int tmp = m_freeFrames[i];
+                m_freeFrames[i] = m_freeFrames[m_numFree - 1 - i];
+                m_freeFrames[m_numFree - 1 - i] = tmp;
+            }
+        }
+    }// setPaging
+
+    /**
+     * allocateFrame
+     *
+     * gives out a free frame of RAM.  The frame is cleared first since it
+     * may have belonged to an earlier process.  This is called by a page
+     * table the first time one of its pages is touched (which may happen on
+     * any core's thread).
+     *
+     * @return the frame number or -1 if RAM is full
      */
+    public synchronized int allocateFrame()
+    {
+        if (m_numFree == 0)
+        {
+            m_CPU.errorMessage("Out of memory: no free frames");
+            return -1;
+        }
 
-    // None yet!
+        int frame = m_freeFrames[--m_numFree];
+        m_frameRefs[frame] = 1;
+        m_RAM.fill(frame << PageTable.PAGE_BITS, PageTable.PAGE_SIZE, 0);
+        return frame;
+    }// allocateFrame
 
-    /*
-     * ======================================================================
-     * Process Management Methods
-     * ----------------------------------------------------------------------
+    /**
+     * copyFrame
+     *
+     * gives a page table its own copy of a shared frame.  This is called
+     * the first time a process writes to a page it shares with others.
+     *
+     * @param frame the shared frame
+     * @return the new frame or -1 if RAM is full
      */
+    public synchronized int copyFrame(int frame)
+    {
+        int copy = allocateFrame();
+        if (copy < 0)
+        {
+            return -1;
+        }
 
-    // None yet!
+        int[] words = new int[PageTable.PAGE_SIZE];
+        m_RAM.readBlock(frame << PageTable.PAGE_BITS, words, 0, words.length);
+        m_RAM.writeBlock(copy << PageTable.PAGE_BITS, words, 0, words.length);
+        releaseFrame(frame);
+        return copy;
+    }// copyFrame
 
-    /*
-     * ======================================================================
-     * Program Management Methods
-     * ----------------------------------------------------------------------
+    /**
+     * releaseFrame
+     *
+     * drops one reference to a frame, returning it to the free list when
+     * nothing uses it any more
+     *
+     * @param frame the frame no longer used by the caller
      */
+    private synchronized void releaseFrame(int frame)
+    {
+        m_frameRefs[frame]--;
+        if (m_frameRefs[frame] == 0)
+        {
+            m_freeFrames[m_numFree++] = frame;
+        }
+    }// releaseFrame
 
     /**
-     * createProcess starts a process
-     * 
-     * @param prog program to be run
-     * @param allocSize ammount of memory given to the program
+     * freePages
+     *
+     * returns every frame used by a page table to the free list
+     *
+     * @param table the page table being thrown away
      */
-    public void createProcess(Program prog, int allocSize)
+    private synchronized void freePages(PageTable table)
     {
-        // copy the program into an array of ints
-        int[] program = prog.export();
-        int progSize = program.length - 1; //minus one because of 0th position
+        for (int page = 0; page < table.getNumPages(); page++) {
+            if (table.getFrame(page) != PageTable.UNMAPPED) {
+                releaseFrame(table.getFrame(page));
+            }
+        }
+    }// freePages
 
-        // Split the RAM into 3 parts: the program, the stack, and the heap
-        int[][] split_mem = assignMemory(progSize, allocSize, 0);
+    /**
+     * releaseMemory
+     *
+     * gives back all of the memory used by a process
+     *
+     * @param pcb the process
+     */
+    private void releaseMemory(ProcessControlBlock pcb)
+    {
+        if (pcb.getBlock() >= 0)
+        {
+            m_allocator.free(pcb.getBlock());
+            pcb.setBlock(-1);
+            m_compactPending = true;
+        }
+        if (pcb.getPageTable() != null)
+        {
+            freePages(pcb.getPageTable());
+            pcb.setPageTable(null);
+            releaseImage(pcb.getProgram());
+            pcb.setProgram(null);
+        }
+    }// releaseMemory
 
-        // When an error occurs while allocating memory, quit
-        if (split_mem == null)
+    /**
+     * compact
+     *
+     * moves the blocks of live processes toward the bottom of RAM so that
+     * the free memory above them coalesces into larger blocks.  A single
+     * call copies at most maxWords words, so compaction can be spread over
+     * many short pauses (for instance one between each scheduling quantum)
+     * instead of stopping every process for one long one.  A process that
+     * is on a core may be running on another host thread, so nothing is
+     * moved unless every core is idle.
+     *
+     * @param maxWords the most words that may be copied by this call
+     * @return the number of words copied (0 if nothing more could be moved
+     *         within the budget)
+     */
+    public synchronized int compact(int maxWords)
+    {
+        if (!allCoresIdle())
         {
-            m_CPU.errorMessage("Memory allocation failed, terminating");
-            System.exit(1);
+            return 0;
         }
 
-        // write program to ram
-        for (int i = 0; i < progSize; i++) {
-            m_RAM.write(split_mem[0][0] + i, program[i]);
+        long start = System.nanoTime();
+        int moved = 0;
+
+        // Try the highest blocks first since moving them frees the most
+        ArrayList<ProcessControlBlock> order =
+            new ArrayList<ProcessControlBlock>(m_processes);
+        Collections.sort(order, new Comparator<ProcessControlBlock>() {
+            public int compare(ProcessControlBlock a, ProcessControlBlock b)
+            {
+                return b.getBlock() - a.getBlock();
+            }
+        });
+
+        for (int i = 0; i < order.size(); i++) {
+            ProcessControlBlock pcb = order.get(i);
+            int from = pcb.getBlock();
+            if (from < 0) continue;
+            int size = m_allocator.getBlockSize(from);
+            if (moved + size > maxWords) continue;
+
+            int to = m_allocator.allocateLowest(m_allocator.getRequested(from));
+            if (to < 0) continue;
+            if (to > from)
+            {
+                m_allocator.free(to);
+                continue;
+            }
+
+            relocate(pcb, from, to, size);
+            m_allocator.free(from);
+            moved += size;
         }
 
-        // set bases and limits
-        m_CPU.setBASE(split_mem[2][0]);
-        m_CPU.setLIM(split_mem[2][1]);
-        
-        // Define the top of stack as the first entry after the program
-        m_CPU.setSP(split_mem[1][0]);
-        
-        // Point the program counter to the first instruction
-        m_CPU.setPC(split_mem[0][0]);
+        m_maxCompactNanos = Math.max(m_maxCompactNanos,
+                                     System.nanoTime() - start);
+        return moved;
+    }// compact
 
-    }// createProcess
+    /**
+     * allCoresIdle
+     *
+     * @return true if no core has a process on it
+     */
+    private boolean allCoresIdle()
+    {
+        for (int i = 0; i < m_running.length; i++)
+        {
+            if (m_running[i] != null) return false;
+        }
+        return true;
+    }// allCoresIdle
 
     /**
-     * assignMemory
-     * 
-     * Calculate the memory bounds between the program, stack, and
-     * heap, where the program gets as much space as it needs while the stack
-     * and heap each get half of the remaining space.
-     * 
-     * @param progSize the memory required for the program
-     * @param allocSize the total amount of memory given to the program
-     * @return mem_bounds a two dimensional array with the distributed memory
+     * relocate
+     *
+     * moves the memory of a process that is not on a core to a new block
+     * and rewrites its saved registers to match.  Every core flushes its
+     * decode cache before it next runs a process (see dispatch).
+     *
+     * @param pcb  the process
+     * @param from the address of the block the process is in
+     * @param to   the address of the block to move it to
+     * @param size the number of words in the block
      */
-    private int[][] assignMemory(int progSize, int allocSize, int memOffset)
+    private void relocate(ProcessControlBlock pcb, int from, int to, int size)
     {
-        // Divides the memory between the program, stack and heap
-        int[][] mem_bounds = new int[3][2];
+        int[] words = new int[size];
+        m_RAM.readBlock(from, words, 0, size);
+        m_RAM.writeBlock(to, words, 0, size);
+        pcb.setBlock(to);
+        m_codeWrites++;
 
-        // Memory not taken up by the program
-        int memory = allocSize - progSize;
+        // Everything the process knows about is relative to BASE except the
+        // PC and SP, which hold absolute addresses
+        int[] regs = pcb.getRegisters();
+        int delta = to - from;
+        regs[CPU.BASE] += delta;
+        regs[CPU.LIM] += delta;
+        regs[CPU.PC] += delta;
+        regs[CPU.SP] += delta;
 
-        // Program memory
-        mem_bounds[0][0] = 4 + memOffset; //starting point of program
-        mem_bounds[0][1] = progSize + memOffset;
+        m_relocations++;
+        m_wordsRelocated += size;
+    }// relocate
 
-        // Stack memory
-        mem_bounds[1][0] = allocSize + memOffset; //starting point of stack
-        mem_bounds[1][1] = progSize + 1 + memOffset; //ending point of stack
+    /**
+     * getRelocations
+     *
+     * @return the number of times compaction has moved a process
+     */
+    public long getRelocations()
+    {
+        return m_relocations;
+    }
 
-        // Base/Limit
-        mem_bounds[2][0] = memOffset; // Base
-        mem_bounds[2][1] = allocSize + memOffset; // Limit
+    /**
+     * getWordsRelocated
+     *
+     * @return the number of words copied by compaction
+     */
+    public long getWordsRelocated()
+    {
+        return m_wordsRelocated;
+    }
 
-        return mem_bounds;
-    
-    }//assignMemory
+    /**
+     * setCompactionBudget
+     *
+     * sets the length of each pause for compaction.  The scheduler
+     * compacts a little between quanta, and creating a process that does
+     * not fit while every core is idle compacts once before giving up,
+     * each time copying no more than this many words.  A block bigger
+     * than the budget is never moved.
+     *
+     * @param words the most words one pause may copy (0 turns compaction
+     *              off)
+     */
+    public void setCompactionBudget(int words)
+    {
+        m_compactionBudget = Math.max(words, 0);
+    }
 
-    /*
-     * ======================================================================
-     * Interrupt Handlers
-     * ----------------------------------------------------------------------
+    /**
+     * getCompactionBudget
+     *
+     * @return the most words one pause for compaction may copy
+     */
+    public int getCompactionBudget()
+    {
+        return m_compactionBudget;
+    }
+
+    /**
+     * compactSlice
+     *
+     * runs one pause of compaction within the budget if any memory has been
+     * freed since compaction last ran out of things to move
+     */
+    private void compactSlice()
+    {
+        if (m_compactPending && (m_compactionBudget > 0) && allCoresIdle())
+        {
+            if (compact(m_compactionBudget) == 0)
+            {
+                m_compactPending = false;
+            }
+        }
+    }// compactSlice
+
+    /**
+     * getMaxCompactionPause
+     *
+     * @return the longest host time (in nanoseconds) taken by one call to
+     *         compact
+     */
+    public long getMaxCompactionPause()
+    {
+        return m_maxCompactNanos;
+    }
+
+    /**
+     * getAllocator
+     *
+     * @return the allocator that hands out blocks of RAM
      */
+    public BuddyAllocator getAllocator()
+    {
+        return m_allocator;
+    }
 
-    // None yet!
+    /**
+     * getFreeFrames
+     *
+     * @return the number of frames of RAM not given to any page
+     */
+    public synchronized int getFreeFrames()
+    {
+        return m_numFree;
+    }
 
     /*
      * ======================================================================
-     * System Calls
+     * Device Management Methods
      * ----------------------------------------------------------------------
      */
 
-    // None yet!
+    /**
+     * registerDevice
+     *
+     * adds a device to the machine and starts the thread that services it.
+     * Programs name the device by the id returned.
+     *
+     * @param dev the device
+     * @return the id of the device
+     */
+    public synchronized int registerDevice(Device dev)
+    {
+        int id = m_devices.size();
+        m_devices.add(dev);
+        dev.start(id);
+        return id;
+    }// registerDevice
+
+    /**
+     * getDevice
+     *
+     * @param id the id of a device
+     * @return the device or null if there is no device with that id
+     */
+    public synchronized Device getDevice(int id)
+    {
+        if ((id < 0) || (id >= m_devices.size()))
+        {
+            return null;
+        }
+        return m_devices.get(id);
+    }// getDevice
+
+    /**
+     * stopDevices
+     *
+     * stops the threads of every device
+     */
+    public synchronized void stopDevices()
+    {
+        for (int i = 0; i < m_devices.size(); i++)
+        {
+            m_devices.get(i).stop();
+        }
+    }// stopDevices
+
+    /**
+     * getBlockedCount
+     *
+     * @return the number of processes waiting for I/O
+     */
+    public synchronized int getBlockedCount()
+    {
+        return m_blocked;
+    }
+
+    /**
+     * formatDeviceStats
+     *
+     * @return the statistics of every device as lines of text
+     */
+    public synchronized String formatDeviceStats()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < m_devices.size(); i++)
+        {
+            if (i > 0) sb.append("\n");
+            sb.append(m_devices.get(i).formatStats());
+        }
+        return sb.toString();
+    }// formatDeviceStats
+
+    /**
+     * submitIO
+     *
+     * sends an I/O request to a device and blocks the process that made it
+     * until the device is done
+     *
+     * @param core  the index of the CPU making the request
+     * @param id    the id of the device
+     * @param op    IORequest.OP_READ or IORequest.OP_WRITE
+     * @param addr  the device address
+     * @param value the value to write
+     * @return CPU.TrapHandler.STOP (so the CPU can run another process) or
+     *         FAIL
+     */
+    private int submitIO(int core, int id, int op, int addr, int value)
+    {
+        CPU cpu = m_CPUs[core];
+        ProcessControlBlock pcb = m_running[core];
+        Device dev = getDevice(id);
+        if ((pcb == null) || (dev == null))
+        {
+            cpu.errorMessage("No such device: " + id);
+            return CPU.TrapHandler.FAIL;
+        }
+
+        // block first, since the device may finish before submit returns.
+        // The core is halted in case it is run again before the process is
+        // taken off it.
+        synchronized (this)
+        {
+            if (pcb.getOutstanding() == 0)
+            {
+                m_blocked++;
+            }
+            pcb.setOutstanding(pcb.getOutstanding() + 1);
+            pcb.setState(ProcessControlBlock.STATE_BLOCKED);
+            cpu.setHalted(true);
+        }
+        if (!dev.submit(new IORequest(pcb, cpu, op, addr, value)))
+        {
+            cpu.errorMessage("Device " + dev.getName() + " is busy");
+            unblock(pcb);
+            return CPU.TrapHandler.FAIL;
+        }
+        return CPU.TrapHandler.STOP;
+    }// submitIO
+
+    /**
+     * unblock
+     *
+     * stops a process from waiting for one I/O request (one that failed or
+     * that will never be delivered because the process is being ended)
+     *
+     * @param pcb the process
+     */
+    private synchronized void unblock(ProcessControlBlock pcb)
+    {
+        pcb.setOutstanding(pcb.getOutstanding() - 1);
+        if (pcb.getOutstanding() == 0)
+        {
+            m_blocked--;
+            pcb.setState(ProcessControlBlock.STATE_RUNNING);
+            if (pcb.getCore() >= 0)
+            {
+                m_CPUs[pcb.getCore()].setHalted(false);
+            }
+        }
+    }// unblock
+
+    /*
+     * ======================================================================
+     * Process Management Methods
+     * ----------------------------------------------------------------------
+     */
+
+    /**
+     * setScheduler
+     *
+     * chooses the policy used to pick the next process to run.  Any
+     * processes already waiting are moved over to the new scheduler and the
+     * scheduling statistics start again, so they describe a single policy.
+     *
+     * @param scheduler the new policy
+     * @see FifoScheduler
+     * @see RoundRobinScheduler
+     * @see PriorityScheduler
+     * @see MlfqScheduler
+     */
+    public void setScheduler(Scheduler scheduler)
+    {
+        ProcessControlBlock pcb;
+        while ((pcb = m_scheduler.next()) != null)
+        {
+            scheduler.add(pcb);
+        }
+        m_scheduler = scheduler;
+
+        m_contextSwitches = 0;
+        m_maxWait = 0;
+        m_turnaroundTimes = new Histogram();
+        m_waitTimes = new Histogram();
+        m_responseTimes = new Histogram();
+    }// setScheduler
+
+    /**
+     * setCheckpointer
+     *
+     * has runScheduler write a checkpoint each time the CPU is empty and a
+     * process is about to be dispatched.  The checkpointer should already
+     * be open.
+     *
+     * @param checkpointer the checkpointer to use (or null for none)
+     * @see Checkpointer#open
+     */
+    public void setCheckpointer(Checkpointer checkpointer)
+    {
+        m_checkpointer = checkpointer;
+    }// setCheckpointer
+
+    /**
+     * getScheduler
+     *
+     * @return the policy used to pick the next process to run
+     */
+    public Scheduler getScheduler()
+    {
+        return m_scheduler;
+    }
+
+    /**
+     * runScheduler
+     *
+     * runs every ready process on the first core until they have all
+     * terminated.  The scheduler picks which process runs next and for how
+     * long; when its quantum is used up the timer preempts it and it goes
+     * back to the scheduler.  A process that yields also goes back to the
+     * scheduler (without counting as preempted), a process that starts
+     * I/O waits off the CPU until the device interrupts, and a process
+     * terminates when it exits or faults.  When every process is waiting
+     * for I/O the CPU idles until an interrupt arrives.  Between one
+     * process leaving the CPU and the next being dispatched, memory is
+     * compacted for one short pause (see setCompactionBudget) and a
+     * checkpoint is written if there is a checkpointer (see
+     * setCheckpointer).
+     */
+    public void runScheduler()
+    {
+        CPU cpu = m_CPUs[0];
+        ProcessControlBlock last = m_running[0];
+        while (true)
+        {
+            ProcessControlBlock pcb = m_running[0];
+            if (pcb == null)
+            {
+                // Nothing is on the CPU, so this is the time to do a little
+                // compaction
+                compactSlice();
+
+                pcb = m_scheduler.next();
+                if ((pcb == null) && (getBlockedCount() > 0))
+                {
+                    // Everything is waiting for I/O so idle until some of
+                    // it is done
+                    cpu.waitForInterrupt();
+                    continue;
+                }
+                if (pcb == null)
+                {
+                    break;
+                }
+
+                // Every process is off the CPU, so this is also the time to
+                // checkpoint (giving up after an error rather than
+                // reporting it every quantum)
+                if ((m_checkpointer != null)
+                    && (m_checkpointer.checkpoint() < 0))
+                {
+                    m_checkpointer = null;
+                }
+                dispatch(pcb, 0);
+                cpu.setTimer(m_scheduler.getQuantum(pcb));
+                if ((last != null) && (pcb != last))
+                {
+                    m_contextSwitches++;
+                }
+                last = pcb;
+            }
+
+            long start = cpu.getInstructionCount();
+            int status = cpu.run();
+            pcb.addInstructions(cpu.getInstructionCount() - start);
+
+            if (status == CPU.STATUS_TIMER)
+            {
+                // The quantum is used up and another process is waiting
+                // (see interruptClock)
+                preempt(0);
+            }
+            else if ((status == CPU.STATUS_TRAP)
+                     && (pcb.getState() == ProcessControlBlock.STATE_BLOCKED))
+            {
+                // The process waits off the CPU until its I/O is done
+                pcb.save(cpu);
+                pcb.setCore(-1);
+                m_running[0] = null;
+            }
+            else if ((status == CPU.STATUS_TRAP)
+                     && (pcb.getState() == ProcessControlBlock.STATE_RUNNING))
+            {
+                // The process yielded
+                if (m_scheduler.size() > 0)
+                {
+                    pcb.save(cpu);
+                    pcb.setCore(-1);
+                    pcb.makeReady(cpu.getInstructionCount());
+                    m_running[0] = null;
+                    m_scheduler.add(pcb);
+                }
+            }
+            else
+            {
+                long now = cpu.getInstructionCount();
+                m_turnaroundTimes.record(now - pcb.getArrival());
+                m_waitTimes.record(pcb.getTotalWait());
+                m_responseTimes.record(pcb.getResponseTime());
+                terminate(pcb);
+            }
+        }//while
+        cpu.setTimer(0);
+    }// runScheduler
+
+    /**
+     * dispatch
+     *
+     * loads a process onto a core (a context switch in)
+     *
+     * @param pcb  the process
+     * @param core the index of the CPU
+     */
+    private void dispatch(ProcessControlBlock pcb, int core)
+    {
+        CPU cpu = m_CPUs[core];
+
+        // The core may be attached to a different RAM port than the one
+        // code was loaded or moved through since the core last flushed, so
+        // drop anything it has decoded
+        if (m_coreFlushed[core] != m_codeWrites)
+        {
+            cpu.getDecodeCache().flush();
+            m_coreFlushed[core] = m_codeWrites;
+        }
+
+        pcb.restore(cpu);
+        if (cpu.getPageTable() != pcb.getPageTable())
+        {
+            cpu.setPageTable(pcb.getPageTable());
+        }
+
+        // Hand over the result of any I/O that finished while it waited
+        if (pcb.hasResult())
+        {
+            cpu.pushValue(pcb.takeResult());
+        }
+        cpu.setHalted(false);
+        pcb.dispatched(core, cpu.getInstructionCount());
+        m_maxWait = Math.max(m_maxWait, pcb.getMaxWait());
+        m_running[core] = pcb;
+    }// dispatch
+
+    /**
+     * preempt
+     *
+     * saves the process on a core (a context switch out) and gives it back
+     * to the scheduler
+     *
+     * @param core the index of the CPU
+     */
+    private void preempt(int core)
+    {
+        ProcessControlBlock pcb = m_running[core];
+        CPU cpu = m_CPUs[core];
+        pcb.save(cpu);
+        pcb.setCore(-1);
+        pcb.makeReady(cpu.getInstructionCount());
+        m_running[core] = null;
+        m_scheduler.preempted(pcb);
+    }// preempt
+
+    /**
+     * terminate
+     *
+     * ends a process, taking it off its core (which is halted until it is
+     * given another process) and giving its memory back
+     *
+     * @param pcb the process
+     */
+    private void terminate(ProcessControlBlock pcb)
+    {
+        if (pcb.getCore() >= 0)
+        {
+            CPU cpu = m_CPUs[pcb.getCore()];
+            pcb.save(cpu);
+            cpu.setHalted(true);
+            m_running[pcb.getCore()] = null;
+            pcb.setCore(-1);
+        }
+        else
+        {
+            m_scheduler.remove(pcb);
+        }
+        while (pcb.getOutstanding() > 0)
+        {
+            unblock(pcb);
+        }
+        pcb.setState(ProcessControlBlock.STATE_TERMINATED);
+        releaseMemory(pcb);
+        m_processes.remove(pcb);
+        debugPrintln("Process " + pcb.getPid() + " terminated after "
+                     + pcb.getInstructions() + " instructions");
+    }// terminate
+
+    /**
+     * getProcessCount
+     *
+     * @return the number of processes that have not terminated
+     */
+    public int getProcessCount()
+    {
+        return m_processes.size();
+    }
+
+    /**
+     * getReadyCount
+     *
+     * @return the number of processes waiting for a CPU
+     */
+    public int getReadyCount()
+    {
+        return m_scheduler.size();
+    }
+
+    /**
+     * getRunning
+     *
+     * @param core the index of a CPU
+     * @return the process loaded on that core or null
+     */
+    public ProcessControlBlock getRunning(int core)
+    {
+        return m_running[core];
+    }
+
+    /**
+     * getContextSwitches
+     *
+     * @return the number of times the first core has been switched from
+     *         one process to another by the scheduler
+     */
+    public long getContextSwitches()
+    {
+        return m_contextSwitches;
+    }
+
+    /**
+     * getMaxWait
+     *
+     * @return the longest any process has waited for a CPU (in
+     *         instructions run by other processes)
+     */
+    public long getMaxWait()
+    {
+        return m_maxWait;
+    }
+
+    /**
+     * getTurnaroundTimes
+     *
+     * @return the times from creation to termination of the processes run
+     *         by the scheduler (in instructions)
+     */
+    public Histogram getTurnaroundTimes()
+    {
+        return m_turnaroundTimes;
+    }
+
+    /**
+     * getWaitTimes
+     *
+     * @return the total time each process run by the scheduler spent
+     *         waiting for the CPU (in instructions)
+     */
+    public Histogram getWaitTimes()
+    {
+        return m_waitTimes;
+    }
+
+    /**
+     * getResponseTimes
+     *
+     * @return the time from creation to first running of the processes run
+     *         by the scheduler (in instructions)
+     */
+    public Histogram getResponseTimes()
+    {
+        return m_responseTimes;
+    }
+
+    /**
+     * formatSchedulerStats
+     *
+     * @return the statistics of the current scheduler as lines of text
+     */
+    public String formatSchedulerStats()
+    {
+        return m_scheduler.getName() + ": switches=" + m_contextSwitches
+            + "\n  turnaround " + m_turnaroundTimes.formatStats()
+            + "\n  wait       " + m_waitTimes.formatStats()
+            + "\n  response   " + m_responseTimes.formatStats();
+    }// formatSchedulerStats
+
+    /*
+     * ======================================================================
+     * Program Management Methods
+     * ----------------------------------------------------------------------
+     */
+
+    /**
+     * createProcess starts a process on the first core
+     * 
+     * @param prog program to be run
+     * @param allocSize ammount of memory given to the program
+     * @return 0 is success; anything else is a failure code
+     */
+    public int createProcess(Program prog, int allocSize)
+    {
+        return createProcess(prog, allocSize, 0);
+    }// createProcess
+
+    /**
+     * createProcess starts a process on a given core.  Each process is
+     * placed in a block of RAM handed out by the buddy allocator, after any
+     * process already on the core has terminated and given its block back.
+     * This must be called before the core is started on its own thread.
+     * If there is not enough memory the core is left halted.
+     * 
+     * @param prog program to be run
+     * @param allocSize ammount of memory given to the program
+     * @param core the index of the CPU to run the process on
+     * @return 0 is success; anything else is a failure code
+     */
+    public int createProcess(Program prog, int allocSize, int core)
+    {
+        // The old process on the core gives its memory back first
+        if (m_running[core] != null)
+        {
+            terminate(m_running[core]);
+        }
+
+        ProcessControlBlock pcb = newProcess(prog, allocSize);
+
+        // When an error occurs while allocating memory, leave the core
+        // halted
+        if (pcb == null)
+        {
+            m_CPU.errorMessage("Memory allocation failed");
+            m_CPUs[core].setHalted(true);
+            return -1;
+        }
+
+        dispatch(pcb, core);
+        return 0;
+    }// createProcess
+
+    /**
+     * addProcess creates a process with the default priority and hands it to
+     * the scheduler, where it waits for {@link #runScheduler} to give it the
+     * CPU.
+     * 
+     * @param prog program to be run
+     * @param allocSize ammount of memory given to the program
+     * @return the id of the new process or -1 if there was not enough memory
+     */
+    public int addProcess(Program prog, int allocSize)
+    {
+        return addProcess(prog, allocSize, 0);
+    }// addProcess
+
+    /**
+     * addProcess creates a process and hands it to the scheduler, where it
+     * waits for {@link #runScheduler} to give it the CPU.
+     * 
+     * @param prog program to be run
+     * @param allocSize ammount of memory given to the program
+     * @param priority the priority of the process (lower values run first)
+     * @return the id of the new process or -1 if there was not enough memory
+     */
+    public int addProcess(Program prog, int allocSize, int priority)
+    {
+        ProcessControlBlock pcb = newProcess(prog, allocSize);
+        if (pcb == null)
+        {
+            m_CPU.errorMessage("Memory allocation failed");
+            return -1;
+        }
+
+        pcb.setPriority(priority);
+        pcb.arrived(m_CPU.getInstructionCount());
+        m_scheduler.add(pcb);
+        return pcb.getPid();
+    }// addProcess
+
+    /**
+     * removeProcess ends the process running on a given core and gives its
+     * memory back.  The core is halted until another process is created on
+     * it.
+     *
+     * @param core the index of the CPU running the process
+     */
+    public void removeProcess(int core)
+    {
+        m_CPUs[core].setHalted(true);
+        if (m_running[core] != null)
+        {
+            terminate(m_running[core]);
+        }
+    }// removeProcess
+
+    /**
+     * newProcess
+     *
+     * builds the PCB of a new process, giving it memory, loading the
+     * program into it and setting up its saved registers.  In paged mode
+     * the process gets its own paged address space (see
+     * newPagedProcess); otherwise it gets one contiguous block.
+     * 
+     * @param prog program to be run
+     * @param allocSize ammount of memory given to the program
+     * @return the new process or null if there was not enough memory
+     */
+    private ProcessControlBlock newProcess(Program prog, int allocSize)
+    {
+        if (m_paging)
+        {
+            return newPagedProcess(prog, allocSize);
+        }
+
+        // copy the program into an array of ints
+        int[] program = prog.export();
+        int progSize = program.length - 1; //minus one because of 0th position
+
+        // Find a block for the process (which may use every address from
+        // BASE through LIM)
+        int block = m_allocator.allocate(allocSize + 1);
+
+        // The memory may be there but in pieces, so compact (one pause's
+        // worth) and try again.  Processes can only be moved while no core
+        // is running one.
+        if ((block < 0) && (m_compactionBudget > 0)
+            && (m_allocator.getFreeWords() >= allocSize + 1)
+            && allCoresIdle())
+        {
+            compact(m_compactionBudget);
+            block = m_allocator.allocate(allocSize + 1);
+        }
+        if (block < 0)
+        {
+            return null;
+        }
+
+        // Split the RAM into 3 parts: the program, the stack, and the heap
+        int[][] split_mem = assignMemory(progSize, allocSize, block);
+
+        // write program to ram
+        m_RAM.writeBlock(split_mem[0][0], program, 0, progSize);
+        m_codeWrites++;
+
+        ProcessControlBlock pcb = new ProcessControlBlock(m_nextPid++);
+        pcb.setBlock(block);
+        setRegisters(pcb, split_mem);
+        m_processes.add(pcb);
+        return pcb;
+    }// newProcess
+
+    /**
+     * newPagedProcess builds a process in its own paged address space.  The
+     * address space looks just like a contiguous block placed at address
+     * zero, but pages are only given frames of RAM when they are first
+     * touched.  The pages holding the program are shared (copy-on-write)
+     * with every other process created from the same Program, so only the
+     * first such process copies it into RAM.
+     * 
+     * @param prog program to be run
+     * @param allocSize ammount of memory given to the program
+     * @return the new process or null if there was not enough memory
+     */
+    private ProcessControlBlock newPagedProcess(Program prog, int allocSize)
+    {
+        ProgramImage image = getImage(prog);
+        if (image == null)
+        {
+            return null;
+        }
+        if (image.m_pages.getNumPages() > (allocSize >>> PageTable.PAGE_BITS) + 1)
+        {
+            // drop the image again if it was only just made for this process
+            synchronized (this)
+            {
+                if (image.m_users == 0)
+                {
+                    freePages(image.m_pages);
+                    m_images.remove(prog);
+                }
+            }
+            return null;
+        }
+        int progSize = image.m_size;
+        ProcessControlBlock pcb = new ProcessControlBlock(m_nextPid++);
+        pcb.setProgram(prog);
+
+        // The address space runs from 0 through allocSize (the LIM)
+        PageTable table = new PageTable((allocSize >>> PageTable.PAGE_BITS) + 1,
+                                        this);
+        pcb.setPageTable(table);
+        int[][] split_mem = assignMemory(progSize, allocSize, 0);
+
+        // map the program's pages onto the shared image
+        synchronized (this)
+        {
+            image.m_users++;
+            for (int page = 0; page < image.m_pages.getNumPages(); page++) {
+                int frame = image.m_pages.getFrame(page);
+                m_frameRefs[frame]++;
+                table.share(page, frame);
+            }
+        }
+
+        setRegisters(pcb, split_mem);
+        m_processes.add(pcb);
+        return pcb;
+    }// newPagedProcess
+
+    /**
+     * setRegisters
+     *
+     * sets the saved registers of a new process to match its memory
+     *
+     * @param pcb the process
+     * @param split_mem the memory bounds worked out by assignMemory
+     */
+    private void setRegisters(ProcessControlBlock pcb, int[][] split_mem)
+    {
+        int[] regs = pcb.getRegisters();
+
+        // set bases and limits
+        regs[CPU.BASE] = split_mem[2][0];
+        regs[CPU.LIM] = split_mem[2][1];
+
+        // Define the top of stack as the first entry after the program
+        regs[CPU.SP] = split_mem[1][0];
+
+        // Point the program counter to the first instruction
+        regs[CPU.PC] = split_mem[0][0];
+    }// setRegisters
+
+    /**
+     * getImage
+     *
+     * finds the program image built from a Program, writing the program
+     * into frames of its own the first time it is used
+     *
+     * @param prog the program
+     * @return the image of the program or null if there are not enough
+     *         free frames to hold it
+     */
+    private ProgramImage getImage(Program prog)
+    {
+        ProgramImage image = m_images.get(prog);
+        if (image != null)
+        {
+            return image;
+        }
+
+        // copy the program into an array of ints
+        int[] program = prog.export();
+        int progSize = program.length - 1; //minus one because of 0th position
+
+        // The image covers every page the program touches
+        int[][] split_mem = assignMemory(progSize, progSize, 0);
+        int end = split_mem[0][0] + progSize;
+        image = new ProgramImage();
+        image.m_size = progSize;
+        image.m_pages = new PageTable((end + PageTable.PAGE_MASK)
+                                      >>> PageTable.PAGE_BITS, this);
+
+        // write program to ram one page at a time
+        int done = 0;
+        while (done < progSize) {
+            int vaddr = split_mem[0][0] + done;
+            int addr = image.m_pages.translate(vaddr);
+            if (addr < 0)
+            {
+                freePages(image.m_pages);
+                return null;
+            }
+            int len = Math.min(progSize - done,
+                               PageTable.PAGE_SIZE - (vaddr & PageTable.PAGE_MASK));
+            m_RAM.writeBlock(addr, program, done, len);
+            done += len;
+        }
+        m_codeWrites++;
+
+        m_images.put(prog, image);
+        return image;
+    }// getImage
+
+    /**
+     * releaseImage
+     *
+     * drops one process's use of a program image, releasing the image's
+     * frames and forgetting it when no process uses it any more
+     *
+     * @param prog the program the image was built from
+     */
+    private synchronized void releaseImage(Program prog)
+    {
+        ProgramImage image = m_images.get(prog);
+        if (image == null)
+        {
+            return;
+        }
+        image.m_users--;
+        if (image.m_users <= 0)
+        {
+            freePages(image.m_pages);
+            m_images.remove(prog);
+        }
+    }// releaseImage
+
+    /**
+     * getPageTable
+     *
+     * @param core the index of a CPU
+     * @return the page table of the process on that core or null if it is
+     *         not running in a paged address space
+     */
+    public PageTable getPageTable(int core)
+    {
+        if (m_running[core] == null)
+        {
+            return null;
+        }
+        return m_running[core].getPageTable();
+    }
+
+    /**
+     * assignMemory
+     * 
+     * Calculate the memory bounds between the program, stack, and
+     * heap, where the program gets as much space as it needs while the stack
+     * and heap each get half of the remaining space.
+     * 
+     * @param progSize the memory required for the program
+     * @param allocSize the total amount of memory given to the program
+     * @param memOffset the address of the first word given to the program
+     * @return mem_bounds a two dimensional array with the distributed memory
+     */
+    private int[][] assignMemory(int progSize, int allocSize, int memOffset)
+    {
+        // Divides the memory between the program, stack and heap
+        int[][] mem_bounds = new int[3][2];
+
+        // Memory not taken up by the program
+        int memory = allocSize - progSize;
+
+        // Program memory
+        mem_bounds[0][0] = 4 + memOffset; //starting point of program
+        mem_bounds[0][1] = progSize + memOffset;
+
+        // Stack memory
+        mem_bounds[1][0] = allocSize + memOffset; //starting point of stack
+        mem_bounds[1][1] = progSize + 1 + memOffset; //ending point of stack
+
+        // Base/Limit
+        mem_bounds[2][0] = memOffset; // Base
+        mem_bounds[2][1] = allocSize + memOffset; // Limit
+
+        return mem_bounds;
+    
+    }//assignMemory
+
+    /*
+     * ======================================================================
+     * Interrupt Handlers
+     * ----------------------------------------------------------------------
+     */
+
+    /**
+     * interruptIOComplete
+     *
+     * handles a device finishing a request.  Once a process has no more
+     * requests outstanding it is made ready again (or, if it is still
+     * loaded on its core because no scheduler is running, simply carries
+     * on when the core is next run).
+     *
+     * @param req the completed request
+     */
+    private synchronized void interruptIOComplete(IORequest req)
+    {
+        ProcessControlBlock pcb = req.m_process;
+        if (pcb.getState() != ProcessControlBlock.STATE_BLOCKED)
+        {
+            return;     // killed while it waited
+        }
+        if (!req.m_success)
+        {
+            req.m_CPU.errorMessage("I/O failed on device "
+                                   + req.m_device.getName()
+                                   + " at address " + req.m_addr);
+        }
+        if (req.m_op == IORequest.OP_READ)
+        {
+            pcb.setResult(req.m_value);
+        }
+
+        pcb.setOutstanding(pcb.getOutstanding() - 1);
+        if (pcb.getOutstanding() > 0)
+        {
+            return;
+        }
+        m_blocked--;
+
+        if (pcb.getCore() >= 0)
+        {
+            CPU cpu = m_CPUs[pcb.getCore()];
+            if (pcb.hasResult())
+            {
+                cpu.pushValue(pcb.takeResult());
+            }
+            pcb.setState(ProcessControlBlock.STATE_RUNNING);
+            cpu.setHalted(false);
+        }
+        else
+        {
+            pcb.makeReady(req.m_CPU.getInstructionCount());
+            m_scheduler.add(pcb);
+        }
+    }// interruptIOComplete
+
+    /**
+     * interruptClock
+     *
+     * handles the timer going off on a core.  The process there is only
+     * stopped (so the scheduler can preempt it) if another process is ready
+     * to run; a process alone on the CPU just carries on.
+     *
+     * @param core the index of the CPU
+     * @return CPU.TrapHandler.STOP or RESUME
+     */
+    private int interruptClock(int core)
+    {
+        if ((m_running[core] != null) && (m_scheduler.size() > 0))
+        {
+            return CPU.TrapHandler.STOP;
+        }
+        return CPU.TrapHandler.RESUME;
+    }// interruptClock
+
+    /*
+     * ======================================================================
+     * System Calls
+     * ----------------------------------------------------------------------
+     */
+
+    /**
+     * initSystemCalls
+     *
+     * fills in the table of system calls
+     */
+    private void initSystemCalls()
+    {
+        m_syscalls[SYSCALL_EXIT] = new SystemCall() {
+            public int call(int core) { return syscallExit(core); }
+        };
+        m_syscalls[SYSCALL_OUTPUT] = new SystemCall() {
+            public int call(int core) { return syscallOutput(core); }
+        };
+        m_syscalls[SYSCALL_GETPID] = new SystemCall() {
+            public int call(int core) { return syscallGetpid(core); }
+        };
+        m_syscalls[SYSCALL_YIELD] = new SystemCall() {
+            public int call(int core) { return syscallYield(core); }
+        };
+        m_syscalls[SYSCALL_COREDUMP] = new SystemCall() {
+            public int call(int core) { return syscallCoredump(core); }
+        };
+        m_syscalls[SYSCALL_BATCH] = new SystemCall() {
+            public int call(int core) { return syscallBatch(core); }
+        };
+        m_syscalls[SYSCALL_READ] = new SystemCall() {
+            public int call(int core) { return syscallRead(core); }
+        };
+        m_syscalls[SYSCALL_WRITE] = new SystemCall() {
+            public int call(int core) { return syscallWrite(core); }
+        };
+    }// initSystemCalls
+
+    /**
+     * systemCall
+     *
+     * handles a TRAP run on a core by popping the call number off the stack
+     * and running that system call.  A TRAP with nothing on the stack is
+     * taken to be an exit (programs written before there were system calls
+     * end this way).
+     *
+     * @param core the index of the CPU that ran the TRAP
+     * @return CPU.TrapHandler.RESUME, STOP or FAIL
+     */
+    private int systemCall(int core)
+    {
+        m_traps[core]++;
+        CPU cpu = m_CPUs[core];
+        if (cpu.isStackEmpty())
+        {
+            return dispatchCall(core, SYSCALL_EXIT);
+        }
+        return dispatchCall(core, cpu.popValue());
+    }// systemCall
+
+    /**
+     * dispatchCall
+     *
+     * runs one system call
+     *
+     * @param core   the index of the CPU making the call
+     * @param number the system call number
+     * @return CPU.TrapHandler.RESUME, STOP or FAIL
+     */
+    private int dispatchCall(int core, int number)
+    {
+        m_syscallCounts[core]++;
+        if ((number < 0) || (number >= NUM_SYSCALLS))
+        {
+            m_CPUs[core].errorMessage("Unknown system call " + number);
+            return CPU.TrapHandler.FAIL;
+        }
+        debugPrintln("System call " + number + " on core " + core);
+        return m_syscalls[number].call(core);
+    }// dispatchCall
+
+    /**
+     * pushResult
+     *
+     * returns the result of a system call to the program on its stack.
+     * During a batch the result is held back until the whole batch is done.
+     *
+     * @param core  the index of the CPU making the call
+     * @param value the result
+     * @return CPU.TrapHandler.RESUME or FAIL if the stack is full
+     */
+    private int pushResult(int core, int value)
+    {
+        if (m_batchCounts[core] >= 0)
+        {
+            m_batchResults[core][m_batchCounts[core]++] = value;
+            return CPU.TrapHandler.RESUME;
+        }
+        if (!m_CPUs[core].pushValue(value))
+        {
+            return CPU.TrapHandler.FAIL;
+        }
+        return CPU.TrapHandler.RESUME;
+    }// pushResult
+
+    /**
+     * syscallExit
+     *
+     * ends the process on a core.  Its memory is given back when the
+     * scheduler (or the next process created on the core) cleans it up.
+     *
+     * @param core the index of the CPU making the call
+     * @return CPU.TrapHandler.STOP
+     */
+    private int syscallExit(int core)
+    {
+        ProcessControlBlock pcb = m_running[core];
+        if (pcb != null)
+        {
+            pcb.setState(ProcessControlBlock.STATE_TERMINATED);
+        }
+        return CPU.TrapHandler.STOP;
+    }// syscallExit
+
+    /**
+     * syscallOutput
+     *
+     * pops a value off the stack and prints it
+     *
+     * @param core the index of the CPU making the call
+     * @return CPU.TrapHandler.RESUME or FAIL if there is no value
+     */
+    private int syscallOutput(int core)
+    {
+        CPU cpu = m_CPUs[core];
+        if (cpu.isStackEmpty())
+        {
+            cpu.errorMessage("OUTPUT system call has nothing to print");
+            return CPU.TrapHandler.FAIL;
+        }
+        System.out.println("OUTPUT: " + cpu.popValue());
+        return CPU.TrapHandler.RESUME;
+    }// syscallOutput
+
+    /**
+     * syscallGetpid
+     *
+     * pushes the id of the process (0 if the core was not given its
+     * process by the SOS)
+     *
+     * @param core the index of the CPU making the call
+     * @return CPU.TrapHandler.RESUME or FAIL if the stack is full
+     */
+    private int syscallGetpid(int core)
+    {
+        ProcessControlBlock pcb = m_running[core];
+        return pushResult(core, (pcb == null) ? 0 : pcb.getPid());
+    }// syscallGetpid
+
+    /**
+     * syscallYield
+     *
+     * gives the CPU to the next ready process
+     *
+     * @param core the index of the CPU making the call
+     * @return CPU.TrapHandler.STOP
+     */
+    private int syscallYield(int core)
+    {
+        return CPU.TrapHandler.STOP;
+    }// syscallYield
+
+    /**
+     * syscallCoredump
+     *
+     * prints the registers and the top three values on the stack and then
+     * ends the process
+     *
+     * @param core the index of the CPU making the call
+     * @return CPU.TrapHandler.STOP
+     */
+    private int syscallCoredump(int core)
+    {
+        CPU cpu = m_CPUs[core];
+        System.out.println("CORE DUMP: " + CPU.formatRegs(cpu.getRegisters()));
+        for (int i = 0; (i < 3) && !cpu.isStackEmpty(); i++)
+        {
+            System.out.println("  stack: " + cpu.popValue());
+        }
+        return syscallExit(core);
+    }// syscallCoredump
+
+    /**
+     * syscallRead
+     *
+     * pops an address and a device id and starts reading from the device.
+     * The process is blocked until the read is done and the value read is
+     * then pushed onto its stack.  Reads can not be batched.
+     *
+     * @param core the index of the CPU making the call
+     * @return CPU.TrapHandler.STOP or FAIL
+     */
+    private int syscallRead(int core)
+    {
+        CPU cpu = m_CPUs[core];
+        if (m_batchCounts[core] >= 0)
+        {
+            cpu.errorMessage("READ system calls can not be batched");
+            return CPU.TrapHandler.FAIL;
+        }
+        if (cpu.isStackEmpty()) return CPU.TrapHandler.FAIL;
+        int addr = cpu.popValue();
+        if (cpu.isStackEmpty()) return CPU.TrapHandler.FAIL;
+        int id = cpu.popValue();
+        return submitIO(core, id, IORequest.OP_READ, addr, 0);
+    }// syscallRead
+
+    /**
+     * syscallWrite
+     *
+     * pops a value, an address and a device id and starts writing the
+     * value to the device.  The process is blocked until the write is done
+     * (or, in a batch, until every write in the batch is done).
+     *
+     * @param core the index of the CPU making the call
+     * @return CPU.TrapHandler.STOP or FAIL
+     */
+    private int syscallWrite(int core)
+    {
+        CPU cpu = m_CPUs[core];
+        if (cpu.isStackEmpty()) return CPU.TrapHandler.FAIL;
+        int value = cpu.popValue();
+        if (cpu.isStackEmpty()) return CPU.TrapHandler.FAIL;
+        int addr = cpu.popValue();
+        if (cpu.isStackEmpty()) return CPU.TrapHandler.FAIL;
+        int id = cpu.popValue();
+        return submitIO(core, id, IORequest.OP_WRITE, addr, value);
+    }// syscallWrite
+
+    /**
+     * syscallBatch
+     *
+     * runs several system calls with a single TRAP.  The program pushes the
+     * arguments and number of each call, then the number of calls and
+     * finally SYSCALL_BATCH.  The calls are run from the top of the stack
+     * down (so the last one pushed runs first) and any results are pushed
+     * once they have all run, in the order the calls ran.  The batch stops
+     * early if a call fails or ends the process.
+     *
+     * @param core the index of the CPU making the call
+     * @return CPU.TrapHandler.RESUME, STOP (if any call stopped the CPU) or
+     *         FAIL
+     */
+    private int syscallBatch(int core)
+    {
+        CPU cpu = m_CPUs[core];
+        if (m_batchCounts[core] >= 0)
+        {
+            cpu.errorMessage("System call batches can not be nested");
+            return CPU.TrapHandler.FAIL;
+        }
+        int count = cpu.isStackEmpty() ? -1 : cpu.popValue();
+        if ((count < 0) || (count > MAX_BATCH))
+        {
+            cpu.errorMessage("Bad system call batch size " + count);
+            return CPU.TrapHandler.FAIL;
+        }
+
+        int result = CPU.TrapHandler.RESUME;
+        boolean exited = false;
+        m_batchCounts[core] = 0;
+        for (int i = 0; i < count; i++)
+        {
+            int number = cpu.isStackEmpty() ? SYSCALL_EXIT : cpu.popValue();
+            int r = dispatchCall(core, number);
+            if (r == CPU.TrapHandler.FAIL)
+            {
+                result = r;
+                break;
+            }
+            if (r == CPU.TrapHandler.STOP)
+            {
+                result = r;
+                exited = (number == SYSCALL_EXIT)
+                         || (number == SYSCALL_COREDUMP);
+                if (exited) break;
+            }
+        }
+
+        // Hand back the results
+        int done = m_batchCounts[core];
+        m_batchCounts[core] = -1;
+        if ((result != CPU.TrapHandler.FAIL) && !exited)
+        {
+            for (int i = 0; i < done; i++)
+            {
+                if (!cpu.pushValue(m_batchResults[core][i]))
+                {
+                    return CPU.TrapHandler.FAIL;
+                }
+            }
+        }
+        return result;
+    }// syscallBatch
+
+    /**
+     * getTraps
+     *
+     * @return the number of TRAP instructions handled
+     */
+    public long getTraps()
+    {
+        long total = 0;
+        for (int i = 0; i < m_traps.length; i++)
+        {
+            total += m_traps[i];
+        }
+        return total;
+    }
+
+    /**
+     * getSystemCalls
+     *
+     * @return the number of system calls made (each call in a batch counts,
+     *         as does the batch itself)
+     */
+    public long getSystemCalls()
+    {
+        long total = 0;
+        for (int i = 0; i < m_syscallCounts.length; i++)
+        {
+            total += m_syscallCounts[i];
+        }
+        return total;
+    }
+
+    /*
+     * ======================================================================
+     * Private Classes
+     * ----------------------------------------------------------------------
+     */
+
+    /**
+     * One entry of the system call table
+     **/
+    private interface SystemCall
+    {
+        /**
+         * call
+         *
+         * @param core the index of the CPU making the call
+         * @return CPU.TrapHandler.RESUME, STOP or FAIL
+         */
+        public int call(int core);
+    };// interface SystemCall
+
+    /**
+     * Hands the TRAPs of one core to the SOS (so it knows which core made
+     * the call)
+     **/
+    private class CoreTrapHandler implements CPU.TrapHandler
+    {
+        /**
+         * the index of the CPU this handler is registered with
+         **/
+        private int m_core;
+
+        public CoreTrapHandler(int core)
+        {
+            m_core = core;
+        }
+
+        public int systemCall()
+        {
+            return SOS.this.systemCall(m_core);
+        }
+
+        public void interruptIOComplete(IORequest req)
+        {
+            SOS.this.interruptIOComplete(req);
+        }
+
+        public int interruptClock()
+        {
+            return SOS.this.interruptClock(m_core);
+        }
+    };// class CoreTrapHandler
+
+    /**
+     * A program that has been written to frames of RAM once so that
+     * processes created from it can share those frames
+     **/
+    private static class ProgramImage
+    {
+        /**
+         * the number of words in the program
+         **/
+        public int m_size = 0;
+
+        /**
+         * the frames holding the program, page by page
+         **/
+        public PageTable m_pages = null;
+
+        /**
+         * the number of processes sharing the image
+         **/
+        public int m_users = 0;
+    };// class ProgramImage
 
 };// class SOS
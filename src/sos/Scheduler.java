@@ -0,0 +1,78 @@
+package sos;
+
+/**
+ * This interface is implemented by the policies the {@link SOS} can use to
+ * decide which ready process runs next and for how long.  The SOS hands
+ * every process that becomes ready to the scheduler and asks it for the
+ * next one whenever the CPU is free.  Adding and taking processes should
+ * take O(1) or O(log n) time and should not allocate.
+ *
+ * @see SOS#setScheduler
+ * @see FifoScheduler
+ * @see RoundRobinScheduler
+ * @see PriorityScheduler
+ * @see MlfqScheduler
+ */
+public interface Scheduler
+{
+    /**
+     * getName
+     *
+     * @return the name of the policy (used when printing statistics)
+     */
+    public String getName();
+
+    /**
+     * add
+     *
+     * puts a process that has just been created (or has just stopped
+     * waiting for something) on the ready queue
+     *
+     * @param pcb the process
+     */
+    public void add(ProcessControlBlock pcb);
+
+    /**
+     * preempted
+     *
+     * puts a process that used up its whole quantum back on the ready queue
+     *
+     * @param pcb the process
+     */
+    public void preempted(ProcessControlBlock pcb);
+
+    /**
+     * next
+     *
+     * takes the process that should run next off the ready queue
+     *
+     * @return the process or null if none are ready
+     */
+    public ProcessControlBlock next();
+
+    /**
+     * remove
+     *
+     * takes a process off the ready queue without running it
+     *
+     * @param pcb the process
+     * @return true if the process was on the ready queue
+     */
+    public boolean remove(ProcessControlBlock pcb);
+
+    /**
+     * size
+     *
+     * @return the number of processes on the ready queue
+     */
+    public int size();
+
+    /**
+     * getQuantum
+     *
+     * @param pcb a process that is about to run
+     * @return the most instructions it may run before it is preempted
+     */
+    public long getQuantum(ProcessControlBlock pcb);
+
+};//interface Scheduler
@@ -0,0 +1,92 @@
+package sos;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class holds the words of a RAM that is shared by several CPU cores
+ * running on their own host threads.  Reads are volatile (and so have
+ * acquire semantics).  Writes are release stores in RAM.ORDER_RELEASE mode
+ * and volatile stores in RAM.ORDER_VOLATILE mode.
+ *
+ * @see Memory
+ * @see RAM#newPort
+ */
+public class SharedMemory extends Memory
+{
+    /**
+     * This array contains the simulated RAM itself
+     **/
+    private AtomicIntegerArray m_mem = null;
+
+    /**
+     * the memory ordering used by writes
+     **/
+    private int m_ordering;
+
+    /**
+     * the constructor does nothing special
+     *
+     * @param size number of integers ("words") in memory
+     * @param ordering RAM.ORDER_RELEASE or RAM.ORDER_VOLATILE
+     */
+    public SharedMemory(int size, int ordering)
+    {
+        m_mem = new AtomicIntegerArray(size);
+        m_ordering = ordering;
+    }//ctor
+
+    /**
+     * getCapacity
+     *
+     * @return the length of the array
+     */
+    public long getCapacity()
+    {
+        return m_mem.length();
+    }
+
+    /**
+     * get
+     *
+     * a volatile read of a word
+     *
+     * @param addr the address of the word to read
+     * @return the value of the word
+     */
+    public int get(long addr)
+    {
+        return m_mem.get((int)addr);
+    }
+
+    /**
+     * set
+     *
+     * a release store in ORDER_RELEASE mode and a volatile store
+     * otherwise
+     *
+     * @param addr the address of the word to write
+     * @param val  the new value of the word
+     */
+    public void set(long addr, int val)
+    {
+        if (m_ordering == RAM.ORDER_RELEASE)
+        {
+            m_mem.lazySet((int)addr, val);
+        }
+        else
+        {
+            m_mem.set((int)addr, val);
+        }
+    }
+
+    /**
+     * getOrdering
+     *
+     * @return RAM.ORDER_RELEASE or RAM.ORDER_VOLATILE
+     */
+    public int getOrdering()
+    {
+        return m_ordering;
+    }
+
+};//class SharedMemory
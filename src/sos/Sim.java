@@ -14,6 +14,46 @@ import java.util.*;
  */
 public class Sim
 {
+    /**
+     * the program run when no other is given
+     **/
+    public static final String DEFAULT_PROGRAM = "whitejo16_spector16_HW1.asm";
+
+    /**
+     * the amount of memory given to each process in a multi-core run
+     **/
+    public static final int PROCESS_SIZE = 300;
+
+    /**
+     * the programs run by runSchedulers when none are given
+     **/
+    public static final String[] SCHED_WORKLOAD = {
+        "crazycount.asm", "whitejo16_spector16_HW1.asm", "count10.asm",
+        "crazycount.asm", "whitejo16_spector16_HW1.asm", "count10.asm"
+    };
+
+    /**
+     * the programs run by runDevices when none are given
+     **/
+    public static final String[] IO_WORKLOAD = {
+        "devices.asm", "crazycount.asm", "count10.asm"
+    };
+
+    /**
+     * the values the console gives to programs run by runDevices
+     **/
+    public static final int[] CONSOLE_INPUT = { 42 };
+
+    /**
+     * the number of words on the disk of the machine built by runDevices
+     **/
+    public static final int DISK_SIZE = 100;
+
+    /**
+     * the most cores a multi-core run may have
+     **/
+    public static final int MAX_CORES = 64;
+
     /**
      * the constructor does nothing
      *
@@ -25,28 +65,670 @@ public class Sim
     /**
      * main
      *
-     * This function makes the simulation go.
+     * This function makes the simulation go.  With no arguments a single
+     * core runs the default program.  Otherwise the first argument is the
+     * number of cores and the rest are the programs to run on them.  A
+     * single argument names a machine image file (see runPersistent).  If
+     * the first argument is -batch each of the rest is run on a machine of
+     * its own (see runBatch).  If it is -sched the rest are run together
+     * under each scheduling policy in turn (see runSchedulers), and if it
+     * is -io they are run together on a machine with a console and a disk
+     * (see runDevices).  -paged runs them together with paged memory (see
+     * runPaged), and -checkpoint runs them together, checkpointing the
+     * machine between quanta (see runCheckpointed).  -trace runs one
+     * program with a binary trace
+     * instead of verbose output (see runTraced).  Anything else prints how
+     * to start the simulation.
      *
      */
     public static void main(String[] args)
     {
+        if ((args.length > 0) && args[0].equals("-batch"))
+        {
+            String[] files = new String[args.length - 1];
+            System.arraycopy(args, 1, files, 0, files.length);
+            runBatch(files);
+            return;
+        }
+        if ((args.length > 0) && args[0].equals("-sched"))
+        {
+            String[] files = new String[args.length - 1];
+            System.arraycopy(args, 1, files, 0, files.length);
+            runSchedulers((files.length > 0) ? files : SCHED_WORKLOAD);
+            return;
+        }
+        if ((args.length > 0) && args[0].equals("-io"))
+        {
+            String[] files = new String[args.length - 1];
+            System.arraycopy(args, 1, files, 0, files.length);
+            runDevices((files.length > 0) ? files : IO_WORKLOAD);
+            return;
+        }
+        if ((args.length > 0) && args[0].equals("-paged"))
+        {
+            String[] files = new String[args.length - 1];
+            System.arraycopy(args, 1, files, 0, files.length);
+            runPaged((files.length > 0) ? files : SCHED_WORKLOAD);
+            return;
+        }
+        if ((args.length > 1) && args[0].equals("-checkpoint"))
+        {
+            String[] files = new String[args.length - 2];
+            System.arraycopy(args, 2, files, 0, files.length);
+            runCheckpointed(args[1],
+                            (files.length > 0) ? files : SCHED_WORKLOAD);
+            return;
+        }
+        if ((args.length > 1) && args[0].equals("-trace"))
+        {
+            runTraced(args[1], (args.length > 2) ? args[2] : DEFAULT_PROGRAM);
+            return;
+        }
+        if ((args.length > 0) && args[0].startsWith("-"))
+        {
+            System.out.println("ERROR: unknown option " + args[0]);
+            printUsage();
+            return;
+        }
+        if (args.length > 1)
+        {
+            int numCores = parseCores(args[0]);
+            if (numCores <= 0)
+            {
+                System.out.println("ERROR: bad number of cores " + args[0]);
+                printUsage();
+                return;
+            }
+            String[] files = new String[args.length - 1];
+            System.arraycopy(args, 1, files, 0, files.length);
+            runMultiCore(numCores, files);
+            return;
+        }
+        if (args.length == 1)
+        {
+            runPersistent(args[0]);
+            return;
+        }
+
         RAM ram = new RAM(1000, 10);
+        ram.setCache(newCacheHierarchy());
         CPU cpu = new CPU(ram);
         SOS os = new SOS(cpu, ram);
 
         Program prog = new Program();
-        if (prog.load("whitejo16_spector16_HW1.asm", false) != 0)
+        if (prog.load(DEFAULT_PROGRAM, false) != 0)
         {
             //Error loading program so exit
             return;
         }
 
-        os.createProcess(prog, 300);
+        if (os.createProcess(prog, 300) != 0)
+        {
+            return;
+        }
 
         cpu.run();
         
         System.out.println("END OF SIMULATION");
+        System.out.println("Simulated RAM time: " + ram.getSimulatedTime()
+                           + " ns");
+        printCacheStats(ram.getCache());
         
     }//main
+
+    /**
+     * parseCores
+     *
+     * @param arg the number of cores as given on the command line
+     * @return the number of cores or -1 if arg is not a number from 1 to
+     *         MAX_CORES
+     */
+    private static int parseCores(String arg)
+    {
+        int numCores;
+        try
+        {
+            numCores = Integer.parseInt(arg);
+        }
+        catch(NumberFormatException e)
+        {
+            return -1;
+        }
+        return ((numCores < 1) || (numCores > MAX_CORES)) ? -1 : numCores;
+    }//parseCores
+
+    /**
+     * printUsage
+     *
+     * prints the ways that the simulation can be started
+     */
+    public static void printUsage()
+    {
+        System.out.println("usage: Sim                          "
+                           + "run the default program");
+        System.out.println("       Sim <image>                  "
+                           + "run or resume a machine image");
+        System.out.println("       Sim <cores> <file>...        "
+                           + "run the files on 1 to " + MAX_CORES + " cores");
+        System.out.println("       Sim -batch <file>...         "
+                           + "run each file on its own machine");
+        System.out.println("       Sim -sched [<file>...]       "
+                           + "compare the scheduling policies");
+        System.out.println("       Sim -io [<file>...]          "
+                           + "run the files with a console and a disk");
+        System.out.println("       Sim -paged [<file>...]       "
+                           + "run the files with paged memory");
+        System.out.println("       Sim -checkpoint <ckpt> [<file>...]\n"
+                           + "                                    "
+                           + "run the files, checkpointing between quanta");
+        System.out.println("       Sim -trace <trace> [<file>]  "
+                           + "run a program, tracing it to a file");
+    }//printUsage
+
+    /**
+     * newCacheHierarchy
+     *
+     * builds the cache hierarchy used by the simulation: a small, fast
+     * write-back L1 in front of a larger L2
+     *
+     * @return the first level of the hierarchy
+     */
+    public static Cache newCacheHierarchy()
+    {
+        Cache l2 = new Cache("L2", 256, 8, 4, 4, Cache.EVICT_PLRU,
+                             Cache.WRITE_BACK, null);
+        return new Cache("L1", 32, 4, 2, 1, Cache.EVICT_LRU,
+                         Cache.WRITE_BACK, l2);
+    }//newCacheHierarchy
+
+    /**
+     * printCacheStats
+     *
+     * prints the statistics of every level of a cache hierarchy
+     *
+     * @param cache the first level of the hierarchy
+     */
+    public static void printCacheStats(Cache cache)
+    {
+        for( ; cache != null; cache = cache.getNext())
+        {
+            System.out.println(cache.formatStats());
+        }
+    }//printCacheStats
+
+    /**
+     * runPersistent
+     *
+     * Runs a machine whose RAM is kept in a memory-mapped image file.  If
+     * the image already exists the machine is resumed from the registers
+     * saved in it without loading anything; otherwise the image is created
+     * and the default program is loaded into it.  A file that exists but is
+     * not a machine image is never touched, and an image whose program has
+     * already exited (or faulted) is not run again.
+     *
+     * The machine runs until its program traps.  If the program is still
+     * alive at that point (say it yielded) the image can be resumed later.
+     * A resumed machine has no process in the SOS, so it is always treated
+     * as finished once it stops.
+     *
+     * @param imageFile the machine image file
+     * @see MappedMemory
+     */
+    public static void runPersistent(String imageFile)
+    {
+        MappedMemory mem = null;
+        boolean resumed = new java.io.File(imageFile).exists();
+        if (resumed)
+        {
+            mem = MappedMemory.open(imageFile);
+            if (mem == null)
+            {
+                //Not a machine image (open has said why), so leave it alone
+                return;
+            }
+            if (mem.hasExited())
+            {
+                System.out.println("ERROR: the program in " + imageFile
+                                   + " has already exited");
+                mem.close();
+                return;
+            }
+        }
+        else
+        {
+            mem = MappedMemory.create(imageFile, 1000);
+            if (mem == null) return;
+        }
+
+        RAM ram = new RAM(mem, 10, RAM.LATENCY_VIRTUAL);
+        CPU cpu = new CPU(ram);
+        SOS os = new SOS(cpu, ram);
+        if (resumed)
+        {
+            mem.loadRegisters(cpu.getRegisters());
+        }
+        else
+        {
+            Program prog = new Program();
+            if (prog.load(DEFAULT_PROGRAM, false) != 0)
+            {
+                //Error loading program so throw away the image and exit
+                mem.close();
+                new java.io.File(imageFile).delete();
+                return;
+            }
+            if (os.createProcess(prog, 300) != 0)
+            {
+                mem.close();
+                new java.io.File(imageFile).delete();
+                return;
+            }
+        }
+
+        int status = cpu.run();
+
+        ProcessControlBlock pcb = os.getRunning(0);
+        boolean exited = (status != CPU.STATUS_TRAP) || (pcb == null)
+            || (pcb.getState() == ProcessControlBlock.STATE_TERMINATED);
+        mem.saveRegisters(cpu.getRegisters());
+        mem.setExited(exited);
+        mem.sync();
+        mem.close();
+        System.out.println("END OF SIMULATION ("
+                           + (resumed ? "resumed" : "created") + " "
+                           + imageFile + ")");
+    }//runPersistent
+
+    /**
+     * runTraced
+     *
+     * Runs a program on a single core like the default simulation, but
+     * instead of printing every instruction and the registers as it goes
+     * the CPU writes a binary record of each one to a trace file.  The
+     * trace can be turned back into the verbose text with TraceDecoder.
+     *
+     * @param traceFile the file to write the trace to
+     * @param progFile  the program to run
+     * @see Tracer
+     * @see TraceDecoder
+     */
+    public static void runTraced(String traceFile, String progFile)
+    {
+        RAM ram = new RAM(1000, 10);
+        ram.setCache(newCacheHierarchy());
+        CPU cpu = new CPU(ram);
+        SOS os = new SOS(cpu, ram);
+
+        Program prog = new Program();
+        if (prog.load(progFile, false) != 0)
+        {
+            //Error loading program so exit
+            return;
+        }
+        if (os.createProcess(prog, 300) != 0)
+        {
+            return;
+        }
+
+        Tracer tracer = new Tracer(Tracer.DEFAULT_CAPACITY);
+        if (tracer.open(traceFile) != 0)
+        {
+            return;
+        }
+        cpu.setVerbose(false);
+        cpu.setTracer(tracer);
+        cpu.run();
+        cpu.setTracer(null);
+        tracer.close();
+
+        System.out.println("END OF SIMULATION");
+        System.out.println("traced " + tracer.getRecordCount()
+                           + " instructions to " + traceFile + " ("
+                           + tracer.getStalls() + " stalls)");
+        System.out.println("Simulated RAM time: " + ram.getSimulatedTime()
+                           + " ns");
+        printCacheStats(ram.getCache());
+    }//runTraced
+
+    /**
+     * runMultiCore
+     *
+     * Runs a machine with several CPU cores sharing one RAM.  Each core runs
+     * on its own host thread and is given one of the programs (reusing them
+     * in turn if there are more cores than programs).
+     *
+     * @param numCores the number of cores in the machine
+     * @param files the programs to run
+     */
+    public static void runMultiCore(int numCores, String[] files)
+    {
+        RAM ram = new RAM(numCores * BuddyAllocator.blockSize(PROCESS_SIZE + 1),
+                          10, RAM.LATENCY_VIRTUAL, RAM.ORDER_RELEASE);
+        RAM[] ports = new RAM[numCores];
+        final CPU[] cpus = new CPU[numCores];
+        for(int i = 0; i < numCores; i++)
+        {
+            ports[i] = ram.newPort();
+            cpus[i] = new CPU(ports[i]);
+            cpus[i].setVerbose(false);
+        }
+        SOS os = new SOS(cpus, ram);
+
+        for(int i = 0; i < numCores; i++)
+        {
+            Program prog = new Program();
+            if (prog.load(files[i % files.length], false) != 0)
+            {
+                //Error loading program so exit
+                return;
+            }
+            if (os.createProcess(prog, PROCESS_SIZE, i) != 0)
+            {
+                return;
+            }
+        }
+
+        //Start every core on its own thread and wait for them all to stop
+        Thread[] threads = new Thread[numCores];
+        for(int i = 0; i < numCores; i++)
+        {
+            final CPU cpu = cpus[i];
+            threads[i] = new Thread(new Runnable() {
+                public void run()
+                {
+                    cpu.run();
+                }
+            }, "core-" + i);
+            threads[i].start();
+        }
+        for(int i = 0; i < numCores; i++)
+        {
+            try
+            {
+                threads[i].join();
+            }
+            catch(InterruptedException ie)
+            {/* do nothing*/ }
+        }
+
+        System.out.println("END OF SIMULATION");
+        for(int i = 0; i < numCores; i++)
+        {
+            int[] regs = cpus[i].getRegisters();
+            System.out.print("core " + i + ": ");
+            for(int r = 0; r < CPU.NUMGENREG; r++)
+            {
+                System.out.print("r" + r + "=" + regs[r] + " ");
+            }
+            System.out.println("instructions=" + cpus[i].getInstructionCount()
+                               + " simulated RAM time="
+                               + ports[i].getSimulatedTime() + " ns");
+        }
+        System.out.println("memory: " + os.getAllocator().formatStats());
+    }//runMultiCore
+
+    /**
+     * runSchedulers
+     *
+     * Runs the same workload on a single core under each scheduling policy
+     * in turn and prints the statistics of every policy, so that they can
+     * be compared.  The programs are all ready at the start; under the
+     * priority scheduler the ones listed first have the best priority.
+     *
+     * @param files the programs to run
+     * @see SOS#runScheduler
+     */
+    public static void runSchedulers(String[] files)
+    {
+        Program[] progs = new Program[files.length];
+        for(int i = 0; i < files.length; i++)
+        {
+            progs[i] = new Program();
+            if (progs[i].load(files[i], false) != 0)
+            {
+                //Error loading program so exit
+                return;
+            }
+        }
+
+        long quantum = RoundRobinScheduler.DEFAULT_QUANTUM;
+        Scheduler[] policies = {
+            new FifoScheduler(),
+            new RoundRobinScheduler(quantum),
+            new PriorityScheduler(quantum),
+            new MlfqScheduler(MlfqScheduler.DEFAULT_LEVELS, quantum)
+        };
+
+        String[] stats = new String[policies.length];
+        for(int p = 0; p < policies.length; p++)
+        {
+            RAM ram = new RAM(files.length
+                              * BuddyAllocator.blockSize(PROCESS_SIZE + 1),
+                              10, RAM.LATENCY_VIRTUAL);
+            CPU cpu = new CPU(ram);
+            cpu.setVerbose(false);
+            SOS os = new SOS(cpu, ram);
+            os.setScheduler(policies[p]);
+            for(int i = 0; i < progs.length; i++)
+            {
+                if (os.addProcess(progs[i], PROCESS_SIZE, i) < 0)
+                {
+                    return;
+                }
+            }
+            os.runScheduler();
+            stats[p] = os.formatSchedulerStats();
+        }
+
+        System.out.println("END OF SIMULATION");
+        for(int p = 0; p < stats.length; p++)
+        {
+            System.out.println(stats[p]);
+        }
+    }//runSchedulers
+
+    /**
+     * runDevices
+     *
+     * Runs the programs together on a single core of a machine that has a
+     * console (device 0) and a disk (device 1), so they can use the READ
+     * and WRITE system calls.  While one program waits for a device the
+     * others run.  The statistics of the scheduler and of each device are
+     * printed at the end.
+     *
+     * @param files the programs to run
+     * @see ConsoleDevice
+     * @see DiskDevice
+     */
+    public static void runDevices(String[] files)
+    {
+        RAM ram = new RAM(files.length
+                          * BuddyAllocator.blockSize(PROCESS_SIZE + 1),
+                          10, RAM.LATENCY_VIRTUAL);
+        CPU cpu = new CPU(ram);
+        cpu.setVerbose(false);
+        SOS os = new SOS(cpu, ram);
+        os.setScheduler(new RoundRobinScheduler(
+                            RoundRobinScheduler.DEFAULT_QUANTUM));
+        os.registerDevice(new ConsoleDevice(CONSOLE_INPUT));
+        os.registerDevice(new DiskDevice(DISK_SIZE,
+                                         DiskDevice.DEFAULT_LATENCY));
+
+        for(int i = 0; i < files.length; i++)
+        {
+            Program prog = new Program();
+            if ((prog.load(files[i], false) != 0)
+                || (os.addProcess(prog, PROCESS_SIZE) < 0))
+            {
+                //Error loading program so exit
+                os.stopDevices();
+                return;
+            }
+        }
+
+        os.runScheduler();
+        os.stopDevices();
+
+        System.out.println("END OF SIMULATION");
+        System.out.println(os.formatSchedulerStats());
+        System.out.println(os.formatDeviceStats());
+    }//runDevices
+
+    /**
+     * runPaged
+     *
+     * Runs the programs together on a single core with paged memory, so
+     * that processes running the same program share the frames holding
+     * it.  The statistics of the scheduler and of the TLB, and the number
+     * of frames left free, are printed at the end.
+     *
+     * @param files the programs to run
+     * @see SOS#setPaging
+     */
+    public static void runPaged(String[] files)
+    {
+        RAM ram = new RAM(files.length
+                          * BuddyAllocator.blockSize(PROCESS_SIZE + 1),
+                          10, RAM.LATENCY_VIRTUAL);
+        CPU cpu = new CPU(ram);
+        cpu.setVerbose(false);
+        SOS os = new SOS(cpu, ram);
+        os.setScheduler(new RoundRobinScheduler(
+                            RoundRobinScheduler.DEFAULT_QUANTUM));
+        os.setPaging(true);
+
+        //Each file is loaded once so its processes can share an image
+        HashMap<String, Program> progs = new HashMap<String, Program>();
+        for(int i = 0; i < files.length; i++)
+        {
+            Program prog = progs.get(files[i]);
+            if (prog == null)
+            {
+                prog = new Program();
+                if (prog.load(files[i], false) != 0)
+                {
+                    //Error loading program so exit
+                    return;
+                }
+                progs.put(files[i], prog);
+            }
+            if (os.addProcess(prog, PROCESS_SIZE) < 0)
+            {
+                return;
+            }
+        }
+
+        os.runScheduler();
+
+        System.out.println("END OF SIMULATION");
+        System.out.println(os.formatSchedulerStats());
+        System.out.println("TLB: hits=" + cpu.getTLBHits()
+                           + " misses=" + cpu.getTLBMisses());
+        System.out.println("frames: free=" + os.getFreeFrames());
+    }//runPaged
+
+    /**
+     * runCheckpointed
+     *
+     * Runs the programs together on a single core, writing a checkpoint of
+     * the machine to a new checkpoint file between quanta and once more at
+     * the end.  The file is then restored into a fresh machine to make sure
+     * the checkpoints rebuild the RAM, and the statistics of the scheduler
+     * and of the checkpoints are printed.
+     *
+     * @param ckptFile the checkpoint file to create
+     * @param files    the programs to run
+     * @see Checkpointer
+     */
+    public static void runCheckpointed(String ckptFile, String[] files)
+    {
+        //Deltas written on top of another machine's base could not be
+        //restored, so never append to an existing file
+        if (new java.io.File(ckptFile).length() > 0)
+        {
+            System.out.println("ERROR: checkpoint file " + ckptFile
+                               + " already exists");
+            return;
+        }
+
+        int size = files.length * BuddyAllocator.blockSize(PROCESS_SIZE + 1);
+        RAM ram = new RAM(size, 10, RAM.LATENCY_VIRTUAL);
+        CPU cpu = new CPU(ram);
+        cpu.setVerbose(false);
+        SOS os = new SOS(cpu, ram);
+        os.setScheduler(new RoundRobinScheduler(
+                            RoundRobinScheduler.DEFAULT_QUANTUM));
+
+        for(int i = 0; i < files.length; i++)
+        {
+            Program prog = new Program();
+            if ((prog.load(files[i], false) != 0)
+                || (os.addProcess(prog, PROCESS_SIZE) < 0))
+            {
+                //Error loading program so exit
+                return;
+            }
+        }
+
+        CPU[] cpus = { cpu };
+        Checkpointer ckpt = new Checkpointer(ram, cpus);
+        if (ckpt.open(ckptFile) != 0)
+        {
+            return;
+        }
+        os.setCheckpointer(ckpt);
+        os.runScheduler();
+        ckpt.checkpoint();
+        ckpt.close();
+
+        //Rebuild the machine from the file and compare
+        RAM copy = new RAM(size, 10, RAM.LATENCY_VIRTUAL);
+        CPU[] copyCpus = { new CPU(copy) };
+        int replayed = Checkpointer.restore(ckptFile, copy, copyCpus);
+        int diffs = 0;
+        for(int addr = 0; addr < size; addr++)
+        {
+            if (copy.getMemory().get(addr) != ram.getMemory().get(addr))
+            {
+                diffs++;
+            }
+        }
+
+        System.out.println("END OF SIMULATION");
+        System.out.println(os.formatSchedulerStats());
+        System.out.println("checkpoints: written=" + ckpt.getCheckpointCount()
+                           + " pages=" + ckpt.getPagesWritten()
+                           + " restored=" + replayed
+                           + " words differing=" + diffs);
+    }//runCheckpointed
+
+    /**
+     * runBatch
+     *
+     * Runs each program on a machine of its own.  All of the machines run
+     * at once in this JVM, sharing one host thread per processor.
+     *
+     * @param files the programs to run
+     * @see BatchRunner
+     */
+    public static void runBatch(String[] files)
+    {
+        BatchRunner.Job[] jobs = new BatchRunner.Job[files.length];
+        for(int i = 0; i < files.length; i++)
+        {
+            jobs[i] = new BatchRunner.Job(files[i]);
+        }
+
+        BatchRunner runner =
+            new BatchRunner(Runtime.getRuntime().availableProcessors());
+        BatchRunner.Result[] results = runner.run(jobs);
+        runner.shutdown();
+
+        System.out.println("END OF SIMULATION");
+        for(int i = 0; i < results.length; i++)
+        {
+            System.out.println(results[i].formatResult());
+        }
+    }//runBatch
     
 };//class Sim
@@ -0,0 +1,231 @@
+package sos;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the words of a RAM that is huge but mostly empty.  The
+ * memory is split into fixed-size chunks that are only allocated the first
+ * time one of their words is written; reading a word in a chunk that has
+ * never been written returns zero.  Creating the memory only allocates the
+ * directory of chunks, so startup time and heap use grow with the memory
+ * a program actually touches rather than with its configured size.
+ *
+ * Finding a word is two array indexes (the directory and then the chunk),
+ * so every access takes constant time without any hashing.
+ *
+ * Like HeapMemory this backend is meant for a single host thread.
+ *
+ * @see Memory
+ * @see DirectMemory
+ */
+public class SparseMemory extends Memory
+{
+    /**
+     * each chunk holds 2^CHUNK_BITS words (16 KB)
+     **/
+    public static final int CHUNK_BITS = 12;
+    public static final int CHUNK_WORDS = 1 << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_WORDS - 1;
+
+    /**
+     * the number of words in this memory
+     **/
+    private long m_capacity;
+
+    /**
+     * the chunks of memory (null until first written)
+     **/
+    private int m_chunks[][];
+
+    /**
+     * the number of chunks that have been allocated
+     **/
+    private int m_allocated = 0;
+
+    /**
+     * the constructor only allocates the directory of chunks
+     *
+     * @param capacity number of integers ("words") in memory
+     */
+    public SparseMemory(long capacity)
+    {
+        m_capacity = capacity;
+        m_chunks = new int[(int)((capacity + CHUNK_WORDS - 1) >>> CHUNK_BITS)][];
+    }//ctor
+
+    /**
+     * getCapacity
+     *
+     * @return the number of words in this memory
+     */
+    public long getCapacity()
+    {
+        return m_capacity;
+    }
+
+    /**
+     * get
+     *
+     * @param addr the address of the word to read
+     * @return the value of the word (zero if its chunk has never been
+     *         written)
+     */
+    public int get(long addr)
+    {
+        if ((addr < 0) || (addr >= m_capacity))
+        {
+            throw new ArrayIndexOutOfBoundsException("address " + addr);
+        }
+        int[] chunk = m_chunks[(int)(addr >>> CHUNK_BITS)];
+        if (chunk == null)
+        {
+            return 0;
+        }
+        return chunk[(int)(addr & CHUNK_MASK)];
+    }
+
+    /**
+     * set
+     *
+     * allocates the chunk holding the word if this is its first write
+     *
+     * @param addr the address of the word to write
+     * @param val  the new value of the word
+     */
+    public void set(long addr, int val)
+    {
+        if ((addr < 0) || (addr >= m_capacity))
+        {
+            throw new ArrayIndexOutOfBoundsException("address " + addr);
+        }
+        chunk((int)(addr >>> CHUNK_BITS))[(int)(addr & CHUNK_MASK)] = val;
+    }
+
+    /**
+     * getBlock
+     *
+     * copies a run of words out of this memory a chunk at a time
+     *
+     * @param addr the address of the first word to read
+     * @param dst  the array receiving the words
+     * @param off  the index in dst of the first word
+     * @param len  the number of words to copy
+     */
+    public void getBlock(long addr, int[] dst, int off, int len)
+    {
+        checkRange(addr, len);
+        while (len > 0)
+        {
+            int pos = (int)(addr & CHUNK_MASK);
+            int n = Math.min(len, CHUNK_WORDS - pos);
+            int[] chunk = m_chunks[(int)(addr >>> CHUNK_BITS)];
+            if (chunk == null)
+            {
+                Arrays.fill(dst, off, off + n, 0);
+            }
+            else
+            {
+                System.arraycopy(chunk, pos, dst, off, n);
+            }
+            addr += n;
+            off += n;
+            len -= n;
+        }//while
+    }//getBlock
+
+    /**
+     * setBlock
+     *
+     * copies a run of words into this memory a chunk at a time
+     *
+     * @param addr the address of the first word to write
+     * @param src  the array holding the words
+     * @param off  the index in src of the first word
+     * @param len  the number of words to copy
+     */
+    public void setBlock(long addr, int[] src, int off, int len)
+    {
+        checkRange(addr, len);
+        while (len > 0)
+        {
+            int pos = (int)(addr & CHUNK_MASK);
+            int n = Math.min(len, CHUNK_WORDS - pos);
+            System.arraycopy(src, off, chunk((int)(addr >>> CHUNK_BITS)), pos, n);
+            addr += n;
+            off += n;
+            len -= n;
+        }//while
+    }//setBlock
+
+    /**
+     * fill
+     *
+     * sets a run of words to the same value without allocating any
+     * untouched chunk that is being filled with zero
+     *
+     * @param addr the address of the first word to write
+     * @param len  the number of words to write
+     * @param val  the value to write
+     */
+    public void fill(long addr, int len, int val)
+    {
+        checkRange(addr, len);
+        while (len > 0)
+        {
+            int pos = (int)(addr & CHUNK_MASK);
+            int n = Math.min(len, CHUNK_WORDS - pos);
+            int index = (int)(addr >>> CHUNK_BITS);
+
+            //Filling an untouched chunk with zero leaves it untouched
+            if ((val != 0) || (m_chunks[index] != null))
+            {
+                Arrays.fill(chunk(index), pos, pos + n, val);
+            }
+            addr += n;
+            len -= n;
+        }//while
+    }//fill
+
+    /**
+     * chunk
+     *
+     * @param index the number of a chunk
+     * @return the chunk, allocating it if it has never been written
+     */
+    private int[] chunk(int index)
+    {
+        int[] chunk = m_chunks[index];
+        if (chunk == null)
+        {
+            chunk = new int[CHUNK_WORDS];
+            m_chunks[index] = chunk;
+            m_allocated++;
+        }
+        return chunk;
+    }//chunk
+
+    /**
+     * checkRange
+     *
+     * makes sure a run of words lies inside this memory
+     */
+    private void checkRange(long addr, int len)
+    {
+        if ((addr < 0) || (len < 0) || (addr + len > m_capacity))
+        {
+            throw new ArrayIndexOutOfBoundsException("address " + addr
+                                                     + " length " + len);
+        }
+    }//checkRange
+
+    /**
+     * getAllocatedChunks
+     *
+     * @return the number of chunks that have been allocated so far
+     */
+    public int getAllocatedChunks()
+    {
+        return m_allocated;
+    }
+
+};//class SparseMemory
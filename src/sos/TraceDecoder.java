@@ -0,0 +1,130 @@
+package sos;
+
+import java.io.*;
+
+/**
+ * This class reads a binary trace file written by a {@link Tracer} and
+ * prints it as the same text that the CPU prints in verbose mode.
+ *
+ * @see Tracer
+ * @see CPU#formatRegs
+ * @see CPU#formatInstr
+ */
+public class TraceDecoder
+{
+    /**
+     * the constructor does nothing
+     *
+     */
+    public TraceDecoder()
+    {
+    }
+
+    /**
+     * decode
+     *
+     * renders a trace file as text
+     *
+     * @param fileName the trace file to read
+     * @param out      where to print the text
+     * @return         0 is success; anything else is a failure code
+     */
+    public static int decode(String fileName, PrintStream out)
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                                         new FileInputStream(fileName)));
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not open trace file " + fileName
+                               + ": " + e);
+            return -1;
+        }
+
+        try
+        {
+            //Check the header
+            if ((in.readInt() != Tracer.MAGIC)
+                || (in.readInt() != CPU.NUMREG)
+                || (in.readInt() != Tracer.RECORD_SIZE))
+            {
+                System.out.println("ERROR: " + fileName
+                                   + " is not a trace file for this CPU");
+                return -2;
+            }
+
+            int[] record = new int[Tracer.RECORD_SIZE];
+            int[] regs = new int[CPU.NUMREG];
+            int[] instr = new int[CPU.INSTRSIZE];
+            while (true)
+            {
+                //Read the next record (stopping cleanly at the end of file)
+                try
+                {
+                    record[0] = in.readInt();
+                }
+                catch(EOFException e)
+                {
+                    break;
+                }
+                for(int i = 1; i < Tracer.RECORD_SIZE; i++)
+                {
+                    record[i] = in.readInt();
+                }
+
+                //Apply the register deltas
+                int mask = record[Tracer.REC_MASK];
+                for(int i = 0; i < CPU.NUMREG; i++)
+                {
+                    if ((mask & (1 << i)) != 0)
+                    {
+                        regs[i] = record[Tracer.REC_REGS + i];
+                    }
+                }//for
+
+                instr[0] = record[Tracer.REC_OPCODE];
+                instr[1] = record[Tracer.REC_ARG1];
+                instr[2] = record[Tracer.REC_ARG2];
+                instr[3] = record[Tracer.REC_ARG3];
+                out.println(CPU.formatRegs(regs));
+                out.print(CPU.formatInstr(instr));
+            }//while
+        }
+        catch(IOException e)
+        {
+            System.out.println("\nError reading from trace file: " + fileName);
+            return -3;
+        }
+        finally
+        {
+            try
+            {
+                in.close();
+            }
+            catch(IOException e)
+            {/* do nothing*/ }
+        }
+
+        return 0;
+    }//decode
+
+    /**
+     * main
+     *
+     * prints the trace file named by the first argument
+     *
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.out.println("usage: TraceDecoder <trace file>");
+            return;
+        }
+        decode(args[0], System.out);
+    }//main
+
+};//class TraceDecoder
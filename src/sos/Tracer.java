@@ -0,0 +1,314 @@
+package sos;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class records an execution trace of the CPU in a compact binary
+ * form.  Each instruction run produces one fixed-size record that is placed
+ * in a preallocated ring buffer.  A background thread drains the buffer to a
+ * file so the CPU never waits on the console or the disk (unless the buffer
+ * fills up).  The {@link TraceDecoder} turns a trace file back into the same
+ * text that verbose mode prints.
+ *
+ * A record holds the opcode and arguments of the instruction followed by a
+ * bit mask of the registers that changed since the previous record and
+ * the new values of those registers.  (Slots for unchanged registers are
+ * left as zero.)
+ *
+ * @see CPU#setTracer
+ * @see TraceDecoder
+ */
+public class Tracer implements Runnable
+{
+    //======================================================================
+    //Constants
+    //----------------------------------------------------------------------
+
+    /**
+     * identifies a trace file
+     **/
+    public static final int MAGIC = 0x534F5354;     // "SOST"
+
+    //These constants define the layout of a single record (in ints)
+    public static final int REC_OPCODE = 0;
+    public static final int REC_ARG1   = 1;
+    public static final int REC_ARG2   = 2;
+    public static final int REC_ARG3   = 3;
+    public static final int REC_MASK   = 4;
+    public static final int REC_REGS   = 5;
+    public static final int RECORD_SIZE = REC_REGS + CPU.NUMREG;
+
+    /**
+     * the default number of records in the ring buffer
+     **/
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    //======================================================================
+    //Member variables
+    //----------------------------------------------------------------------
+
+    /**
+     * the ring buffer itself and the mask used to wrap record numbers
+     **/
+    private int m_buffer[];
+    private int m_capacity;
+    private int m_mask;
+
+    /**
+     * the number of records ever written by the CPU and ever drained to the
+     * file.  Only the CPU writes m_head and only the writer writes m_tail.
+     **/
+    private volatile long m_head = 0;
+    private volatile long m_tail = 0;
+
+    /**
+     * set once the CPU is done so the writer knows to finish up
+     **/
+    private volatile boolean m_closing = false;
+
+    /**
+     * set if the writer could not write the file.  The CPU then stops
+     * waiting for room in the buffer.
+     **/
+    private volatile boolean m_failed = false;
+
+    /**
+     * the registers as of the previous record
+     **/
+    private int m_last[] = new int[CPU.NUMREG];
+
+    /**
+     * the file the trace is written to and the thread doing the writing
+     **/
+    private FileChannel m_channel = null;
+    private Thread m_writer = null;
+
+    /**
+     * the number of times the CPU had to wait for room in the buffer
+     **/
+    private long m_stalls = 0;
+
+    //======================================================================
+    //Methods
+    //----------------------------------------------------------------------
+
+    /**
+     * Tracer ctor
+     *
+     * @param capacity the number of records in the ring buffer (rounded up to
+     *                 a power of two)
+     */
+    public Tracer(int capacity)
+    {
+        m_capacity = 1;
+        while (m_capacity < capacity)
+        {
+            m_capacity <<= 1;
+        }
+        m_mask = m_capacity - 1;
+        m_buffer = new int[m_capacity * RECORD_SIZE];
+    }//ctor
+
+    /**
+     * open
+     *
+     * creates the trace file and starts the background writer
+     *
+     * @param fileName the file to write the trace to
+     * @return 0 is success; anything else is a failure code
+     */
+    public int open(String fileName)
+    {
+        try
+        {
+            m_channel = new FileOutputStream(fileName).getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(3 * 4);
+            header.putInt(MAGIC);
+            header.putInt(CPU.NUMREG);
+            header.putInt(RECORD_SIZE);
+            header.flip();
+            while (header.hasRemaining())
+            {
+                m_channel.write(header);
+            }
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not open trace file " + fileName
+                               + ": " + e);
+            return -1;
+        }
+
+        m_writer = new Thread(this, "trace-writer");
+        m_writer.setDaemon(true);
+        m_writer.start();
+        return 0;
+    }//open
+
+    /**
+     * record
+     *
+     * adds a record for the instruction about to be run.  This is called by
+     * the CPU and never allocates.
+     *
+     * @param regs   the registers before the instruction runs
+     * @param opcode the opcode of the instruction
+     * @param arg1   the first argument of the instruction
+     * @param arg2   the second argument of the instruction
+     * @param arg3   the third argument of the instruction
+     */
+    public void record(int[] regs, int opcode, int arg1, int arg2, int arg3)
+    {
+        long head = m_head;
+
+        //Wait for the writer if the buffer is full
+        if (head - m_tail >= m_capacity)
+        {
+            m_stalls++;
+            while (head - m_tail >= m_capacity)
+            {
+                if (m_failed) return;
+                Thread.yield();
+            }
+        }
+
+        int pos = (int)(head & m_mask) * RECORD_SIZE;
+        m_buffer[pos + REC_OPCODE] = opcode;
+        m_buffer[pos + REC_ARG1] = arg1;
+        m_buffer[pos + REC_ARG2] = arg2;
+        m_buffer[pos + REC_ARG3] = arg3;
+
+        //Only the registers that changed are recorded
+        int mask = 0;
+        for(int i = 0; i < CPU.NUMREG; i++)
+        {
+            if ((head == 0) || (regs[i] != m_last[i]))
+            {
+                mask |= (1 << i);
+                m_buffer[pos + REC_REGS + i] = regs[i];
+                m_last[i] = regs[i];
+            }
+            else
+            {
+                m_buffer[pos + REC_REGS + i] = 0;
+            }
+        }//for
+        m_buffer[pos + REC_MASK] = mask;
+
+        //Publish the record to the writer
+        m_head = head + 1;
+    }//record
+
+    /**
+     * run
+     *
+     * the body of the background writer.  Drains records from the ring
+     * buffer to the trace file until the tracer is closed.
+     */
+    public void run()
+    {
+        ByteBuffer out = ByteBuffer.allocate(1024 * RECORD_SIZE * 4);
+        try
+        {
+            while (true)
+            {
+                long tail = m_tail;
+                long head = m_head;
+                if (head == tail)
+                {
+                    //m_closing is set after the last record is published
+                    if (m_closing && (m_head == tail)) break;
+                    try
+                    {
+                        Thread.sleep(1);
+                    }
+                    catch(InterruptedException ie)
+                    {/* do nothing*/ }
+                    continue;
+                }
+
+                for(long rec = tail; rec < head; rec++)
+                {
+                    if (out.remaining() < RECORD_SIZE * 4)
+                    {
+                        drain(out);
+                    }
+                    int pos = (int)(rec & m_mask) * RECORD_SIZE;
+                    for(int i = 0; i < RECORD_SIZE; i++)
+                    {
+                        out.putInt(m_buffer[pos + i]);
+                    }
+                }//for
+                drain(out);
+                m_tail = head;
+            }//while
+        }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not write trace file: " + e);
+            m_failed = true;
+        }
+    }//run
+
+    /**
+     * drain
+     *
+     * writes the contents of a buffer to the trace file and empties it
+     *
+     * @param out the buffer to write
+     */
+    private void drain(ByteBuffer out) throws IOException
+    {
+        out.flip();
+        while (out.hasRemaining())
+        {
+            m_channel.write(out);
+        }
+        out.clear();
+    }//drain
+
+    /**
+     * close
+     *
+     * waits for every record to be written and then closes the trace file
+     */
+    public void close()
+    {
+        m_closing = true;
+        try
+        {
+            if (m_writer != null) m_writer.join();
+            if (m_channel != null) m_channel.close();
+        }
+        catch(InterruptedException ie)
+        {/* do nothing*/ }
+        catch(IOException e)
+        {
+            System.out.println("ERROR: could not close trace file: " + e);
+        }
+    }//close
+
+    /**
+     * getRecordCount
+     *
+     * @return the number of records traced so far
+     */
+    public long getRecordCount()
+    {
+        return m_head;
+    }
+
+    /**
+     * getStalls
+     *
+     * @return the number of times the CPU had to wait for the writer
+     */
+    public long getStalls()
+    {
+        return m_stalls;
+    }
+
+};//class Tracer